@@ -25,6 +25,7 @@ import java.rmi.RemoteException;
 import java.util.Properties;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -45,6 +46,7 @@ import javax.swing.table.TableColumn;
 import suncertify.db.InvalidDataHeaderException;
 import suncertify.db.InvalidMagicCookieException;
 import suncertify.protocol.Subcontractor;
+import suncertify.protocol.SubcontractorBusyException;
 import suncertify.protocol.SubcontractorNotAvailableException;
 import suncertify.protocol.SubcontractorCommand;
 import suncertify.protocol.SubcontractorNotFoundException;
@@ -157,6 +159,9 @@ public final class CSRGUI {
     /** The "Search" button. */
     private JButton searchButton;
 
+    /** The "Available Only" check box. */
+    private JCheckBox availableCheckBox;
+
     /** The Subcontractor TableModel. */
     private SubcontratorTableModel subcontractorTableModel;
 
@@ -528,6 +533,10 @@ public final class CSRGUI {
                 findSubcontractors();
             }
         });
+
+        // configure "Available Only" JCheckBox
+        availableCheckBox = new JCheckBox("Available Only");
+        contentPane.add(availableCheckBox);
     }
 
     /**
@@ -656,6 +665,12 @@ public final class CSRGUI {
                         "The selected Subcontractor no longer"
                             + " exists.",
                         "Please choose another Subcontractor.");
+                } catch (final SubcontractorBusyException e) {
+                    errorMessage = formatErrorMessage(
+                        "SubcontractorBusyException",
+                        "The selected Subcontractor is being"
+                            + " changed by another user.",
+                        "Please try again.");
                 } catch (final SubcontractorNotAvailableException e) {
                     errorMessage = formatErrorMessage(
                         "CustomerIdAlreadySetException",
@@ -823,6 +838,19 @@ public final class CSRGUI {
             0,
             SpringLayout.WEST,
             cityTextField);
+        // Available Only check box -----------------------------
+        sl.putConstraint(
+            SpringLayout.NORTH,
+            availableCheckBox,
+            OFFSET,
+            SpringLayout.SOUTH,
+            cityTextField);
+        sl.putConstraint(
+            SpringLayout.WEST,
+            availableCheckBox,
+            OFFSET,
+            SpringLayout.EAST,
+            searchButton);
         // Subcontractor table scroll pane ----------------------
         sl.putConstraint(
             SpringLayout.EAST,
@@ -1067,9 +1095,15 @@ public final class CSRGUI {
         String errorMessage = null;
 
         try {
-            sc = subcontractorCommand.find(
-                subcontractorName,
-                city);
+            if (availableCheckBox.isSelected()) {
+                sc = subcontractorCommand.findAvailable(
+                    subcontractorName,
+                    city);
+            } else {
+                sc = subcontractorCommand.find(
+                    subcontractorName,
+                    city);
+            }
         } catch (final RemoteException e) {
             errorMessage = ERRMSG_REMOTE_EXCEPTION;
         }
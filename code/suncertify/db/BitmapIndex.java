@@ -0,0 +1,246 @@
+/*
+ * @(#)BitmapIndex.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The <code>BitmapIndex</code> class indexes the values of a
+ * field that has few distinct values, such as a location, with
+ * one bitmap of record numbers per value.
+ * <p>
+ * Bitmaps for several criteria can be combined with a logical
+ * AND, so the records that match all of them are known before
+ * any record is examined. A value that is blank (for example,
+ * the owner of a record that is not booked) has a bitmap like
+ * any other value.
+ * </p>
+ * <p>
+ * Values are folded as <code>FieldIndex</code> folds them. A
+ * lookup may return more records than actually match, so
+ * callers must test each record they get back.
+ * </p>
+ * <p>
+ * A <code>BitmapIndex</code> is synchronized, so it can be
+ * searched while it is being changed.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class BitmapIndex {
+
+    /** Number of bits in a word of a bitmap, as written. */
+    private static final int WORD_BITS = 64;
+
+    /** The field length, in bytes. */
+    private final int fieldLength;
+
+    /** Bitmaps of record numbers, keyed by folded value. */
+    private final SortedMap values = new TreeMap();
+
+    /**
+     * Constructs an empty <code>BitmapIndex</code>.
+     *
+     * @param newFieldLength
+     * the field length, in bytes.
+     */
+    BitmapIndex(final int newFieldLength) {
+
+        fieldLength = newFieldLength;
+    }
+
+    /**
+     * Records that a record has a value.
+     *
+     * @param value
+     * the value.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    synchronized void add(final String value, final int recNo) {
+
+        final String key = FieldIndex.fold(value, fieldLength);
+        BitSet recNos = (BitSet) values.get(key);
+        if (null == recNos) {
+            recNos = new BitSet();
+            values.put(key, recNos);
+        }
+        recNos.set(recNo);
+    }
+
+    /**
+     * Records that a record no longer has a value.
+     *
+     * @param value
+     * the value.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    synchronized void remove(final String value, final int recNo) {
+
+        final String key = FieldIndex.fold(value, fieldLength);
+        final BitSet recNos = (BitSet) values.get(key);
+        if (null != recNos) {
+            recNos.clear(recNo);
+            if (recNos.isEmpty()) {
+                values.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Records that a record's value has changed. Other threads
+     * see either the old value or the new one, never neither.
+     *
+     * @param oldValue
+     * the old value.
+     *
+     * @param newValue
+     * the new value.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    synchronized void replace(
+        final String oldValue,
+        final String newValue,
+        final int recNo) {
+
+        if (!FieldIndex.fold(oldValue, fieldLength).equals(
+            FieldIndex.fold(newValue, fieldLength))) {
+            add(newValue, recNo);
+            remove(oldValue, recNo);
+        }
+    }
+
+    /**
+     * Returns the records whose value begins with a prefix.
+     *
+     * @param prefix
+     * the prefix.
+     *
+     * @return
+     * a new bitmap of the record numbers.
+     */
+    synchronized BitSet find(final String prefix) {
+
+        final String key = FieldIndex.fold(prefix, fieldLength);
+
+        final BitSet recNos = new BitSet();
+        final Iterator iterator = values.tailMap(key).entrySet()
+            .iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            if (!((String) entry.getKey()).startsWith(key)) {
+                break;
+            }
+            recNos.or((BitSet) entry.getValue());
+        }
+
+        return recNos;
+    }
+
+    /**
+     * Writes the index, for a snapshot: the number of values,
+     * then each folded value, the number of words in its bitmap,
+     * and the words, lowest record numbers first.
+     *
+     * @param out
+     * the output to write to.
+     *
+     * @throws IOException
+     * if the write fails.
+     */
+    synchronized void writeTo(final DataOutput out) throws IOException {
+
+        out.writeInt(values.size());
+        final Iterator iterator = values.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final BitSet recNos = (BitSet) entry.getValue();
+
+            final long[] words = new long[(recNos.length() + WORD_BITS - 1)
+                / WORD_BITS];
+            for (int recNo = recNos.nextSetBit(0); recNo >= 0;
+                recNo = recNos.nextSetBit(recNo + 1)) {
+                words[recNo / WORD_BITS] |= 1L << (recNo % WORD_BITS);
+            }
+
+            out.writeUTF((String) entry.getKey());
+            out.writeInt(words.length);
+            for (int i = 0; i < words.length; i++) {
+                out.writeLong(words[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by <code>writeTo()</code>.
+     *
+     * @param in
+     * the input to read from.
+     *
+     * @param fieldLength
+     * the field length, in bytes.
+     *
+     * @return
+     * the new index.
+     *
+     * @throws IOException
+     * if the read fails, or a count is negative.
+     */
+    static BitmapIndex readFrom(final DataInput in, final int fieldLength)
+        throws IOException {
+
+        final BitmapIndex index = new BitmapIndex(fieldLength);
+
+        final int count = FieldIndex.readCount(in);
+        for (int i = 0; i < count; i++) {
+            final String key = in.readUTF();
+            final int words = FieldIndex.readCount(in);
+            final BitSet recNos = new BitSet();
+            for (int j = 0; j < words; j++) {
+                final long word = in.readLong();
+                for (int bit = 0; bit < WORD_BITS; bit++) {
+                    if (0 != (word & (1L << bit))) {
+                        recNos.set(j * WORD_BITS + bit);
+                    }
+                }
+            }
+            index.values.put(key, recNos);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns the records whose value is blank.
+     *
+     * @return
+     * a new bitmap of the record numbers.
+     */
+    synchronized BitSet findBlank() {
+
+        final BitSet recNos = (BitSet) values.get("");
+
+        return (null == recNos)
+            ? new BitSet()
+            : (BitSet) recNos.clone();
+    }
+}
@@ -0,0 +1,569 @@
+/*
+ * @(#)ChecksummedRecordFile.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The <code>ChecksummedRecordFile</code> class implements the
+ * <code>RecordFile</code> interface by writing to the database
+ * file, and keeping a CRC-32 of each record it writes in a
+ * checksum file alongside it.
+ * <p>
+ * Each record has two checksums, and <code>verify()</code>
+ * accepts either. An update first writes the checksum of the
+ * record as it is on the disk and the checksum of the record as
+ * it will be, in one write, and only then the record; a record
+ * left as it was or wholly rewritten still matches, while a
+ * record that was only partly written matches neither. An
+ * appended record has no earlier contents to keep, so it is
+ * written before its checksum, and a record appended last whose
+ * checksum was not written is past <code>size()</code>. When a
+ * write covers only part of a record, the rest of the record is
+ * read to checksum it. Under a <code>JournaledRecordFile</code>,
+ * records are written here by the journal, and a journal replay
+ * writes their checksums again along with them.
+ * </p>
+ * <h3>
+ * Checksum file format
+ * </h3>
+ * <ul>
+ * <li>
+ * 4 byte numeric, magic cookie value.
+ * </li>
+ * <li>
+ * 4 byte numeric, length of each record in bytes.
+ * </li>
+ * <li>
+ * 8 byte numeric, position of the first record in the
+ * database file.
+ * </li>
+ * <li>
+ * Repeated for each record: 4 byte CRC-32 of the record before
+ * its last update, then 4 byte CRC-32 of the record after it;
+ * both include its 'deleted' byte.
+ * </li>
+ * </ul>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class ChecksummedRecordFile implements RecordFile {
+
+    /** The magic cookie at the start of a checksum file. */
+    private static final int MAGIC_COOKIE = 0x43524332;
+
+    /**
+     * The magic cookie of a checksum file with one checksum per
+     * record, which is written again.
+     */
+    private static final int SINGLE_MAGIC_COOKIE = 0x43524353;
+
+    /** Length of the checksum file header, in bytes. */
+    private static final int HEADER_LENGTH = 4 + 4 + 8;
+
+    /** Length of a checksum, in bytes. */
+    private static final int CHECKSUM_LENGTH = 4;
+
+    /** Length of the checksums of one record, in bytes. */
+    private static final int ENTRY_LENGTH = 2 * CHECKSUM_LENGTH;
+
+    /** Number of records read at a time to build the checksums. */
+    private static final int RECORDS_PER_READ = 512;
+
+    /** Logger for this class. */
+    private static final Logger LOGGER = Logger
+        .getLogger(ChecksummedRecordFile.class.getName());
+
+    /** The database file. */
+    private final RecordFile target;
+
+    /** The checksum file. */
+    private final RecordFile checksumFile;
+
+    /** Position of the first record in the database file. */
+    private final long startOfData;
+
+    /** Length of each record, in bytes. */
+    private final int recordLength;
+
+    /** Buffer of the calling thread, to read a record. */
+    private final ThreadLocal buffers;
+
+    /**
+     * The two checksums of each record, at twice its record
+     * number; the one before its last update comes first. Guarded
+     * by this object's monitor.
+     */
+    private int[] checksums;
+
+    /**
+     * Number of records with a checksum. Guarded by this
+     * object's monitor.
+     */
+    private int size;
+
+    /**
+     * Constructs a <code>ChecksummedRecordFile</code>. If the
+     * checksum file does not exist, it is written from the
+     * records as they are.
+     *
+     * @param newTarget
+     * the database file.
+     *
+     * @param file
+     * the checksum file.
+     *
+     * @param newStartOfData
+     * position of the first record in the database file.
+     *
+     * @param newRecordLength
+     * length of each record, in bytes.
+     *
+     * @param synchronous
+     * <code>true</code> if every checksum is written
+     * synchronously.
+     *
+     * @throws IOException
+     * if the checksum file can not be read or written, or does
+     * not belong to the database file.
+     */
+    ChecksummedRecordFile(
+        final RecordFile newTarget,
+        final File file,
+        final long newStartOfData,
+        final int newRecordLength,
+        final boolean synchronous) throws IOException {
+
+        target = newTarget;
+        startOfData = newStartOfData;
+        recordLength = newRecordLength;
+
+        buffers = new ThreadLocal() {
+
+            protected Object initialValue() {
+
+                return new byte[recordLength];
+            }
+        };
+
+        final boolean exists = file.exists();
+        checksumFile = new RandomAccessRecordFile(file, synchronous);
+        try {
+            if (exists && (checksumFile.length() >= HEADER_LENGTH)) {
+                readChecksums(file);
+            } else {
+                writeChecksums(file);
+            }
+        } catch (final IOException e) {
+            checksumFile.close();
+            throw e;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int read(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        return target.read(position, bytes, offset, length);
+    }
+
+    /**
+     * Writes bytes at the specified position, with the checksums
+     * of each record they fall in: those of an existing record
+     * before it, and that of an appended record after it.
+     *
+     * @param position
+     * the byte offset of the first byte to write.
+     *
+     * @param bytes
+     * the data.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to write.
+     *
+     * @throws IOException
+     * if the database file or the checksum file can not be
+     * written.
+     */
+    public void write(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        // the header has no checksum
+        final long end = position + length;
+        if (end <= startOfData) {
+            target.write(position, bytes, offset, length);
+            return;
+        }
+
+        final int first = (int) (Math.max(0, position - startOfData)
+            / recordLength);
+        final int records = (int) ((end - startOfData - 1)
+            / recordLength) + 1 - first;
+        final int checked = Math.min(records, size() - first);
+
+        // checksum each existing record as it is, and as it will be
+        final byte[] record = (byte[]) buffers.get();
+        int existing = 0;
+        for (; existing < checked; existing++) {
+            final long at = startOfData
+                + (long) (first + existing) * recordLength;
+            if (target.read(at, record, 0, recordLength) < recordLength) {
+                break;
+            }
+            final int previous = checksum(record, 0);
+            overlay(at, position, bytes, offset, length, record);
+            store(first + existing, previous, checksum(record, 0));
+        }
+
+        target.write(position, bytes, offset, length);
+
+        // then checksum each appended record, if it is complete
+        for (int i = existing; i < records; i++) {
+            final long at = startOfData
+                + (long) (first + i) * recordLength;
+            final int checksum;
+            if ((at >= position) && (at + recordLength <= end)) {
+                checksum = checksum(bytes, offset + (int) (at - position));
+            } else if (target.read(at, record, 0, recordLength)
+                == recordLength) {
+                checksum = checksum(record, 0);
+            } else {
+                continue;
+            }
+            store(first + i, checksum, checksum);
+        }
+    }
+
+    /**
+     * Copies the part of the bytes to be written that falls in a
+     * record over the record.
+     *
+     * @param at
+     * the position of the record.
+     *
+     * @param position
+     * the byte offset of the first byte to write.
+     *
+     * @param bytes
+     * the data.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to write.
+     *
+     * @param record
+     * the record.
+     */
+    private void overlay(
+        final long at,
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length,
+        final byte[] record) {
+
+        final long from = Math.max(at, position);
+        final long to = Math.min(at + recordLength, position + length);
+        System.arraycopy(
+            bytes,
+            offset + (int) (from - position),
+            record,
+            (int) (from - at),
+            (int) (to - from));
+    }
+
+    /** {@inheritDoc} */
+    public long length() throws IOException {
+
+        return target.length();
+    }
+
+    /**
+     * Sets the length of the file, and drops the checksums of
+     * records past the new end.
+     *
+     * @param newLength
+     * the new length of the file, in bytes.
+     *
+     * @throws IOException
+     * if the length of either file can not be changed.
+     */
+    public void setLength(final long newLength) throws IOException {
+
+        target.setLength(newLength);
+
+        final long records = Math.max(0, newLength - startOfData)
+            / recordLength;
+        synchronized (this) {
+            size = (int) Math.min(size, records);
+            checksumFile.setLength(HEADER_LENGTH
+                + (long) size * ENTRY_LENGTH);
+        }
+    }
+
+    /**
+     * Forces all written checksums, and then their records, to
+     * the storage device.
+     *
+     * @throws IOException
+     * if the force fails.
+     */
+    public void force() throws IOException {
+
+        checksumFile.force();
+        target.force();
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+
+        try {
+            target.close();
+        } finally {
+            checksumFile.close();
+        }
+    }
+
+    /**
+     * Returns the number of records with a checksum.
+     *
+     * @return
+     * the number of records with a checksum.
+     */
+    synchronized int size() {
+
+        return size;
+    }
+
+    /**
+     * Checks a record against its checksum. Threads may check
+     * records at the same time.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param bytes
+     * the record, as read from the database file.
+     *
+     * @param offset
+     * the offset in <code>bytes</code> of the 'deleted' byte.
+     *
+     * @return
+     * <code>true</code> if the record has checksums, and matches
+     * either of them.
+     */
+    boolean verify(final int recNo, final byte[] bytes, final int offset) {
+
+        final int checksum = checksum(bytes, offset);
+        synchronized (this) {
+            return (recNo < size)
+                && ((checksums[2 * recNo] == checksum)
+                || (checksums[2 * recNo + 1] == checksum));
+        }
+    }
+
+    /**
+     * Records the checksums of a record, and writes them to the
+     * checksum file in one write. Both are done under this
+     * object's monitor, so the file always holds the checksums
+     * kept in memory.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param previous
+     * the checksum of the record before the update.
+     *
+     * @param checksum
+     * the checksum of the record after the update.
+     *
+     * @throws IOException
+     * if the checksum file can not be written.
+     */
+    private void store(
+        final int recNo,
+        final int previous,
+        final int checksum) throws IOException {
+
+        synchronized (this) {
+            if (2 * recNo + 1 >= checksums.length) {
+                final int[] grown = new int[Math.max(
+                    2 * recNo + 2,
+                    checksums.length * 2)];
+                System.arraycopy(checksums, 0, grown, 0, 2 * size);
+                checksums = grown;
+            }
+            if ((checksums[2 * recNo] == previous)
+                && (checksums[2 * recNo + 1] == checksum)
+                && (recNo < size)) {
+                return;
+            }
+            checksums[2 * recNo] = previous;
+            checksums[2 * recNo + 1] = checksum;
+            size = Math.max(size, recNo + 1);
+
+            final byte[] bytes = new byte[ENTRY_LENGTH];
+            ByteBuffer.wrap(bytes).putInt(previous).putInt(checksum);
+            checksumFile.write(
+                HEADER_LENGTH + (long) recNo * ENTRY_LENGTH,
+                bytes,
+                0,
+                ENTRY_LENGTH);
+        }
+    }
+
+    /**
+     * Returns the CRC-32 of a record.
+     *
+     * @param bytes
+     * the record.
+     *
+     * @param offset
+     * the offset in <code>bytes</code> of the 'deleted' byte.
+     *
+     * @return
+     * the checksum.
+     */
+    private int checksum(final byte[] bytes, final int offset) {
+
+        final CRC32 crc = new CRC32();
+        crc.update(bytes, offset, recordLength);
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the checksum file. A checksum file with one checksum
+     * per record is written again from the records as they are.
+     *
+     * @param file
+     * the checksum file, for messages.
+     *
+     * @throws IOException
+     * if the checksum file can not be read, or does not belong
+     * to the database file.
+     */
+    private void readChecksums(final File file) throws IOException {
+
+        final long records = (checksumFile.length() - HEADER_LENGTH)
+            / ENTRY_LENGTH;
+        if (records > Integer.MAX_VALUE) {
+            throw new IOException("checksum count "
+                + records
+                + " is too large");
+        }
+
+        final byte[] bytes = new byte[HEADER_LENGTH
+            + (int) records * ENTRY_LENGTH];
+        if (checksumFile.read(0, bytes, 0, bytes.length) < bytes.length) {
+            throw new IOException("checksum file ended early: " + file);
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final int magicCookie = buffer.getInt();
+        if (SINGLE_MAGIC_COOKIE == magicCookie) {
+            writeChecksums(file);
+            return;
+        }
+        if ((MAGIC_COOKIE != magicCookie)
+            || (recordLength != buffer.getInt())
+            || (startOfData != buffer.getLong())) {
+            throw new IOException("checksum file does not match "
+                + "the database file: "
+                + file);
+        }
+
+        size = (int) records;
+        checksums = new int[Math.max(2, 2 * size)];
+        for (int i = 0; i < 2 * size; i++) {
+            checksums[i] = buffer.getInt();
+        }
+    }
+
+    /**
+     * Writes the checksum file from the records as they are.
+     *
+     * @param file
+     * the checksum file, for messages.
+     *
+     * @throws IOException
+     * if the database file can not be read, or the checksum file
+     * can not be written.
+     */
+    private void writeChecksums(final File file) throws IOException {
+
+        final long records = Math.max(0, target.length() - startOfData)
+            / recordLength;
+        if (records > Integer.MAX_VALUE) {
+            throw new IOException("record count "
+                + records
+                + " is too large");
+        }
+
+        size = (int) records;
+        checksums = new int[Math.max(2, 2 * size)];
+
+        final ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH
+            + size * ENTRY_LENGTH);
+        buffer.putInt(MAGIC_COOKIE);
+        buffer.putInt(recordLength);
+        buffer.putLong(startOfData);
+
+        // checksum the records, several at a time
+        final byte[] recordBytes = new byte[RECORDS_PER_READ
+            * recordLength];
+        int recNo = 0;
+        while (recNo < size) {
+            final int count = Math.min(RECORDS_PER_READ, size - recNo);
+            final int length = count * recordLength;
+            if (target.read(
+                startOfData + (long) recNo * recordLength,
+                recordBytes,
+                0,
+                length) < length) {
+                throw new IOException("database file ended early");
+            }
+
+            for (int i = 0; i < count; i++) {
+                final int checksum = checksum(
+                    recordBytes,
+                    i * recordLength);
+                checksums[2 * (recNo + i)] = checksum;
+                checksums[2 * (recNo + i) + 1] = checksum;
+                buffer.putInt(checksum).putInt(checksum);
+            }
+            recNo += count;
+        }
+
+        checksumFile.setLength(0);
+        checksumFile.write(0, buffer.array(), 0, buffer.position());
+        checksumFile.force();
+
+        LOGGER.info("wrote checksums of "
+            + size
+            + " records to "
+            + file);
+    }
+}
@@ -0,0 +1,723 @@
+/*
+ * @(#)ColumnarRecordTable.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The <code>ColumnarRecordTable</code> class implements the
+ * <code>RecordTable</code> interface with one contiguous byte
+ * array per field, indexed by record number, and a bitmap of
+ * deleted records.
+ * <p>
+ * A record costs its field lengths in bytes, two bytes more per
+ * field, and one bit; there are no per-record objects. Field
+ * values are kept exactly as they appear in the database file
+ * (padded to the field length), along with the length of each
+ * value without its padding. <code>String</code> objects are
+ * only created when values are read, and the padding is never
+ * decoded.
+ * </p>
+ * <p>
+ * Changes are serialized by a lock; readers take no lock. The
+ * bytes of a record in the columns are never changed once
+ * readers can see it. Instead, new values for a record are kept
+ * as an immutable version of their own, published through a
+ * volatile array, and a reader looks for one before it looks at
+ * the columns. So a reader always sees one version of a record.
+ * Now and then, and whenever the table grows, the versions are
+ * copied into new columns, which are published in their place;
+ * readers still looking at the old columns are not disturbed.
+ * Whether a record is deleted is a single <code>int</code>, and
+ * is also read without the lock.
+ * </p>
+ * <p>
+ * No lock is needed for this under the Java memory model of
+ * JSR-133: a write to a volatile field happens-before every later
+ * read of it, so a reader that finds new columns, or a version,
+ * through the volatile field also sees every write made before
+ * they were published. A reader may also come upon a version in
+ * the array just before it is published; the fields of a
+ * <code>Version</code> are final, and it is never changed once
+ * constructed, so even then it is seen whole, with its bytes.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class ColumnarRecordTable implements RecordTable {
+
+    /** Initial number of records the columns can hold. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Versions of records are copied into the columns once there
+     * is one for this many records in the columns' capacity.
+     */
+    private static final int RECORDS_PER_VERSION = 8;
+
+    /** Field lengths, in bytes. */
+    private final int[] fieldLengths;
+
+    /** Offset of each field within a version, in bytes. */
+    private final int[] fieldOffsets;
+
+    /** Length of a record's fields, in bytes. */
+    private final int recordLength;
+
+    /** Serializes changes to the table. */
+    private final Object writeLock = new Object();
+
+    /**
+     * The columns, and the length of each value; replaced as a
+     * whole when the table grows, or takes in the versions.
+     */
+    private volatile Columns columns;
+
+    /**
+     * The latest version of each record changed since the
+     * columns were last replaced, by record number;
+     * <code>null</code> if there are none. Versions are added in
+     * place, and the array is written again to publish them; new
+     * columns drop the array, and the next change starts another.
+     */
+    private volatile Version[] versions;
+
+    /** Number of versions in <code>versions</code>. */
+    private int versionCount;
+
+    /** One bit per record, set if the record is deleted. */
+    private volatile int[] deleted;
+
+    /** Number of records the columns can hold. */
+    private int capacity;
+
+    /** Number of records. */
+    private volatile int size;
+
+    /**
+     * Constructs an empty <code>ColumnarRecordTable</code>.
+     *
+     * @param newFieldLengths
+     * the length of each field, in bytes.
+     */
+    ColumnarRecordTable(final int[] newFieldLengths) {
+
+        fieldLengths = (int[]) newFieldLengths.clone();
+        fieldOffsets = new int[fieldLengths.length];
+        int position = 0;
+        for (int i = 0; i < fieldLengths.length; i++) {
+            fieldOffsets[i] = position;
+            position += fieldLengths[i];
+        }
+        recordLength = position;
+
+        capacity = INITIAL_CAPACITY;
+        columns = new Columns(fieldLengths, capacity);
+        deleted = new int[words(capacity)];
+    }
+
+    /** {@inheritDoc} */
+    public int size() {
+
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    public void setSize(final int newSize) {
+
+        // the new records are filled in by set()
+        synchronized (writeLock) {
+            if (newSize < size) {
+
+                /* Records cut off may still be read, so they are
+                 * not written again in the same columns.
+                 */
+                size = newSize;
+                replaceColumns(capacity);
+            } else {
+                ensureCapacity(newSize);
+                size = newSize;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void set(
+        final int recNo,
+        final boolean isDeleted,
+        final byte[] bytes,
+        final int offset) {
+
+        // each record has its own slice of every column
+        final Columns cols = columns;
+        int position = offset;
+        for (int i = 0; i < fieldLengths.length; i++) {
+            System.arraycopy(
+                bytes,
+                position,
+                cols.values[i],
+                recNo * fieldLengths[i],
+                fieldLengths[i]);
+            cols.lengths[i][recNo] = (short) RecordEncoder.valueLength(
+                bytes,
+                position,
+                fieldLengths[i]);
+            position += fieldLengths[i];
+        }
+
+        // records share the words of the bitmap, though
+        synchronized (writeLock) {
+            setDeletedBit(recNo, isDeleted);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void add(final String[] values) {
+
+        synchronized (writeLock) {
+            ensureCapacity(size + 1);
+
+            // nobody reads the new record until it is published
+            final Columns cols = columns;
+            for (int i = 0; i < fieldLengths.length; i++) {
+                final int length = fieldLengths[i];
+                RecordEncoder.encode(
+                    values[i],
+                    cols.values[i],
+                    size * length,
+                    length);
+                cols.lengths[i][size] = (short) RecordEncoder
+                    .valueLength(cols.values[i], size * length, length);
+            }
+            setDeletedBit(size, false);
+
+            // publish the new record last
+            size++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean isDeleted(final int recNo) {
+
+        // a single int is read at once, so it needs no retry
+        return isDeletedBit(recNo);
+    }
+
+    /** {@inheritDoc} */
+    public void setDeleted(final int recNo, final boolean isDeleted) {
+
+        synchronized (writeLock) {
+            setDeletedBit(recNo, isDeleted);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String[] getValues(final int recNo) {
+
+        // the versions are looked at before the columns
+        final Version version = version(recNo);
+        final Columns cols = columns;
+
+        final String[] values = new String[fieldLengths.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (null == version)
+                ? cols.decode(recNo, i, fieldLengths[i])
+                : version.decode(fieldOffsets[i], i);
+        }
+
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    public String getValue(final int recNo, final int field) {
+
+        final Version version = version(recNo);
+        final Columns cols = columns;
+
+        return (null == version)
+            ? cols.decode(recNo, field, fieldLengths[field])
+            : version.decode(fieldOffsets[field], field);
+    }
+
+    /** {@inheritDoc} */
+    public void setValues(final int recNo, final String[] values) {
+
+        final Version version = new Version(
+            values,
+            fieldLengths,
+            recordLength);
+        synchronized (writeLock) {
+            Version[] current = versions;
+            if (null == current) {
+                current = new Version[capacity];
+            }
+            if (null == current[recNo]) {
+                versionCount++;
+            }
+            current[recNo] = version;
+
+            // a volatile write publishes the version
+            versions = current;
+
+            // take the versions into the columns, once in a while
+            if (versionCount * RECORDS_PER_VERSION > capacity) {
+                replaceColumns(capacity);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean matches(
+        final int recNo,
+        final int[] fields,
+        final PrefixMatcher[] matchers) {
+
+        if (isDeletedBit(recNo)) {
+            return false;
+        }
+
+        // compare the stored bytes; no String is needed
+        final Version version = version(recNo);
+        final Columns cols = columns;
+        for (int i = 0; i < fields.length; i++) {
+            final int field = fields[i];
+            final boolean matched = (null == version)
+                ? matchers[i].matches(
+                    cols.values[field],
+                    recNo * fieldLengths[field],
+                    fieldLengths[field])
+                : matchers[i].matches(
+                    version.bytes,
+                    fieldOffsets[field],
+                    fieldLengths[field]);
+            if (!matched) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the latest version of a record, if it has one that
+     * is not yet in the columns. The caller must look at the
+     * columns only after this, so that columns which took the
+     * version in are seen too.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the version, or <code>null</code> to read the columns.
+     */
+    private Version version(final int recNo) {
+
+        final Version[] current = versions;
+
+        return ((null == current) || (recNo >= current.length))
+            ? null
+            : current[recNo];
+    }
+
+    /**
+     * Writes the table, as it is in memory, for a snapshot.
+     *
+     * @param out
+     * the output to write to.
+     *
+     * @throws IOException
+     * if the write fails.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+
+        synchronized (writeLock) {
+            out.writeInt(size);
+            final Version[] current = versions;
+            for (int i = 0; i < fieldLengths.length; i++) {
+                final byte[] column = columns.values[i];
+                final int length = fieldLengths[i];
+                if (null == current) {
+                    out.write(column, 0, size * length);
+                    continue;
+                }
+                for (int recNo = 0; recNo < size; recNo++) {
+                    if (null == current[recNo]) {
+                        out.write(column, recNo * length, length);
+                    } else {
+                        out.write(
+                            current[recNo].bytes,
+                            fieldOffsets[i],
+                            length);
+                    }
+                }
+            }
+            final int[] bits = deleted;
+            for (int i = 0; i < words(size); i++) {
+                out.writeInt(bits[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a table written by <code>writeTo()</code>. The
+     * columns are read whole; no record is decoded.
+     *
+     * @param in
+     * the input to read from.
+     *
+     * @param fieldLengths
+     * the length of each field, in bytes.
+     *
+     * @param maxLength
+     * the most bytes there are to read; a record count that
+     * needs more is not believed, so nothing is allocated for it.
+     *
+     * @return
+     * the new table.
+     *
+     * @throws IOException
+     * if the read fails, or the record count is not believed.
+     */
+    static ColumnarRecordTable readFrom(
+        final DataInput in,
+        final int[] fieldLengths,
+        final long maxLength) throws IOException {
+
+        final ColumnarRecordTable table = new ColumnarRecordTable(
+            fieldLengths);
+
+        final int newSize = in.readInt();
+        if (newSize < 0) {
+            throw new IOException("record count was " + newSize);
+        }
+        if ((long) newSize * table.recordLength + 4L * words(newSize)
+            > maxLength) {
+            throw new IOException("record count "
+                + newSize
+                + " needs more than "
+                + maxLength
+                + " bytes");
+        }
+
+        synchronized (table.writeLock) {
+            table.ensureCapacity(newSize);
+            final Columns cols = table.columns;
+            for (int i = 0; i < fieldLengths.length; i++) {
+                in.readFully(
+                    cols.values[i],
+                    0,
+                    newSize * fieldLengths[i]);
+            }
+            for (int i = 0; i < words(newSize); i++) {
+                table.deleted[i] = in.readInt();
+            }
+
+            // the value lengths are not kept; find them again
+            for (int i = 0; i < fieldLengths.length; i++) {
+                for (int recNo = 0; recNo < newSize; recNo++) {
+                    cols.lengths[i][recNo] = (short) RecordEncoder
+                        .valueLength(
+                            cols.values[i],
+                            recNo * fieldLengths[i],
+                            fieldLengths[i]);
+                }
+            }
+            table.size = newSize;
+        }
+
+        return table;
+    }
+
+    /**
+     * Tests the deleted bit of a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * <code>true</code> if the record is deleted.
+     */
+    private boolean isDeletedBit(final int recNo) {
+
+        return 0 != (deleted[recNo >> 5] & (1 << recNo));
+    }
+
+    /**
+     * Sets the deleted bit of a record. The caller must hold
+     * <code>writeLock</code>.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param isDeleted
+     * <code>true</code> if the record is deleted.
+     */
+    private void setDeletedBit(final int recNo, final boolean isDeleted) {
+
+        final int[] words = deleted;
+        if (isDeleted) {
+            words[recNo >> 5] |= 1 << recNo;
+        } else {
+            words[recNo >> 5] &= ~(1 << recNo);
+        }
+
+        // a volatile write makes the change visible
+        deleted = words;
+    }
+
+    /**
+     * Returns the number of words for a bitmap of records.
+     *
+     * @param records
+     * the number of records.
+     *
+     * @return
+     * the number of <code>int</code> words.
+     */
+    private static int words(final int records) {
+
+        return (records + 31) >> 5;
+    }
+
+    /**
+     * Grows the columns, if necessary, to hold the specified
+     * number of records. The caller must hold
+     * <code>writeLock</code>.
+     *
+     * @param minCapacity
+     * the number of records the columns must hold.
+     */
+    private void ensureCapacity(final int minCapacity) {
+
+        if (minCapacity <= capacity) {
+            return;
+        }
+
+        // double the capacity, to keep appends cheap
+        int newCapacity = capacity * 2;
+        if (newCapacity < minCapacity) {
+            newCapacity = minCapacity;
+        }
+
+        final int[] newDeleted = new int[words(newCapacity)];
+        System.arraycopy(deleted, 0, newDeleted, 0, deleted.length);
+        deleted = newDeleted;
+
+        replaceColumns(newCapacity);
+    }
+
+    /**
+     * Copies the records into new columns, with the latest
+     * version of each record, and publishes them in place of the
+     * old columns and versions. The caller must hold
+     * <code>writeLock</code>.
+     *
+     * @param newCapacity
+     * the number of records the new columns can hold; at least
+     * the number of records.
+     */
+    private void replaceColumns(final int newCapacity) {
+
+        final Columns cols = columns;
+        final Columns newColumns = new Columns(fieldLengths, newCapacity);
+        for (int i = 0; i < fieldLengths.length; i++) {
+            System.arraycopy(
+                cols.values[i],
+                0,
+                newColumns.values[i],
+                0,
+                size * fieldLengths[i]);
+            System.arraycopy(
+                cols.lengths[i],
+                0,
+                newColumns.lengths[i],
+                0,
+                size);
+        }
+
+        final Version[] current = versions;
+        if (null != current) {
+            for (int recNo = 0; recNo < size; recNo++) {
+                if (null != current[recNo]) {
+                    current[recNo].copyTo(newColumns, recNo, fieldLengths);
+                }
+            }
+        }
+
+        /* Readers of existing records may use either copy. The
+         * columns are published before the versions are dropped,
+         * so a reader that finds no version finds the columns
+         * that took it in.
+         */
+        columns = newColumns;
+        versions = null;
+        versionCount = 0;
+        capacity = newCapacity;
+    }
+
+    /**
+     * The <code>Columns</code> class holds one column of
+     * fixed-width values per field, and the length of each value
+     * without its padding.
+     */
+    private static final class Columns {
+
+        /** One column of values per field, by record number. */
+        private final byte[][] values;
+
+        /** The length of each value, per field, by record number. */
+        private final short[][] lengths;
+
+        /**
+         * Constructs empty <code>Columns</code>.
+         *
+         * @param fieldLengths
+         * the length of each field, in bytes.
+         *
+         * @param records
+         * the number of records the columns can hold.
+         */
+        Columns(final int[] fieldLengths, final int records) {
+
+            values = new byte[fieldLengths.length][];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = new byte[records * fieldLengths[i]];
+            }
+            lengths = new short[fieldLengths.length][records];
+        }
+
+        /**
+         * Creates a <code>String</code> from a stored value,
+         * without its padding.
+         *
+         * @param recNo
+         * the record number; 0-based.
+         *
+         * @param field
+         * the field number; 0-based.
+         *
+         * @param fieldLength
+         * the length of the field, in bytes.
+         *
+         * @return
+         * the value.
+         */
+        String decode(
+            final int recNo,
+            final int field,
+            final int fieldLength) {
+
+            return RecordEncoder.decode(
+                values[field],
+                recNo * fieldLength,
+                lengths[field][recNo]);
+        }
+    }
+
+    /**
+     * The <code>Version</code> class holds new values for a
+     * record, as they are stored in the database file. It is
+     * never changed once it is constructed.
+     */
+    private static final class Version {
+
+        /** The record's fields, one after another. */
+        private final byte[] bytes;
+
+        /** The length of each value without its padding. */
+        private final short[] lengths;
+
+        /**
+         * Constructs a <code>Version</code>, padding each value
+         * with spaces and truncating it to the field length.
+         *
+         * @param values
+         * the record's field values.
+         *
+         * @param fieldLengths
+         * the length of each field, in bytes.
+         *
+         * @param recordLength
+         * the length of all the fields, in bytes.
+         */
+        Version(
+            final String[] values,
+            final int[] fieldLengths,
+            final int recordLength) {
+
+            bytes = new byte[recordLength];
+            lengths = new short[fieldLengths.length];
+            int position = 0;
+            for (int i = 0; i < fieldLengths.length; i++) {
+                RecordEncoder.encode(
+                    values[i],
+                    bytes,
+                    position,
+                    fieldLengths[i]);
+                lengths[i] = (short) RecordEncoder.valueLength(
+                    bytes,
+                    position,
+                    fieldLengths[i]);
+                position += fieldLengths[i];
+            }
+        }
+
+        /**
+         * Creates a <code>String</code> from a value, without its
+         * padding.
+         *
+         * @param offset
+         * the offset of the field in the version.
+         *
+         * @param field
+         * the field number; 0-based.
+         *
+         * @return
+         * the value.
+         */
+        String decode(final int offset, final int field) {
+
+            return RecordEncoder.decode(bytes, offset, lengths[field]);
+        }
+
+        /**
+         * Copies the version into columns that no reader sees yet.
+         *
+         * @param columns
+         * the columns.
+         *
+         * @param recNo
+         * the record number; 0-based.
+         *
+         * @param fieldLengths
+         * the length of each field, in bytes.
+         */
+        void copyTo(
+            final Columns columns,
+            final int recNo,
+            final int[] fieldLengths) {
+
+            int position = 0;
+            for (int i = 0; i < fieldLengths.length; i++) {
+                final int length = fieldLengths[i];
+                System.arraycopy(
+                    bytes,
+                    position,
+                    columns.values[i],
+                    recNo * length,
+                    length);
+                columns.lengths[i][recNo] = lengths[i];
+                position += length;
+            }
+        }
+    }
+}
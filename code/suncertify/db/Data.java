@@ -8,21 +8,36 @@
 
 package suncertify.db;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 /**
  * The <code>Data</code> class implements the <code>DB</code>
- * interface.
+ * interface, and its <code>TimedLockDB</code> and
+ * <code>ExtendedDB</code> extensions.
  * <h2>
  * Data file format
  * </h2>
@@ -96,11 +111,45 @@ import java.util.Random;
  * This class does not depend on any specific set of field names
  * and/or field lengths.
  * </p>
+ * <h3>
+ * Storage modes
+ * </h3>
+ * <p>
+ * By default the database file is written through a
+ * <code>RandomAccessFile</code> in "rws" mode, so each record
+ * is a synchronous write. With <code>StorageMode.MAPPED</code> the
+ * file is mapped into memory instead, and the
+ * <code>ForcePolicy</code> decides when changes are forced to
+ * disk. With a journal, each record is first appended to a
+ * write-ahead journal; concurrent writers share one force of
+ * the journal, and the records are applied to the database file
+ * in the background. With checksums, a CRC-32 of each record is
+ * kept in a file of its own, and a record that was only partly
+ * written is found when the database is opened. With
+ * write-behind, changes are queued and written by a thread of
+ * their own, and each change may say, with a
+ * <code>Durability</code>, whether to wait until it is written
+ * or forced. See <code>DataOptions</code>.
+ * </p>
+ * <h3>
+ * Record layouts
+ * </h3>
+ * <p>
+ * By default each record is held in memory as an object with
+ * one <code>String</code> per field. With
+ * <code>RecordLayout.COLUMNS</code> each field is instead held
+ * as one contiguous byte column, and <code>String</code> values
+ * are only created when a record is read. With
+ * <code>RecordLayout.PAGED</code> only the header is read when
+ * the database is opened; records are read from the file a page
+ * at a time as they are needed, into a cache of a fixed number
+ * of pages.
+ * </p>
  *
  * @version 1.0
  * @author Kevin Short
  */
-public final class Data implements DB {
+public final class Data implements ExtendedDB {
 
     // class variables ------------------------------------------
 
@@ -111,39 +160,206 @@ public final class Data implements DB {
     private static final int MAGIC_COOKIE = 0x00000201;
 
     /** Indicates a record is deleted. */
-    private static final byte DELETED_RECORD = 1;
+    static final byte DELETED_RECORD = 1;
 
     /** Indicates a record is valid. */
-    private static final byte VALID_RECORD = 0;
+    static final byte VALID_RECORD = 0;
 
-    // instance variables ---------------------------------------
+    /** Number of records read at a time while loading. */
+    private static final int RECORDS_PER_READ = 512;
 
-    /** Random number generator. */
-    private final Random random = new Random();
+    /** Fewest records worth loading in a task of their own. */
+    private static final int MIN_RECORDS_PER_TASK = 4096;
 
-    /** Number of bytes per record. */
-    private final int bytesPerRecord;
+    /** Fewest records worth searching in a task of their own. */
+    private static final int MIN_RECORDS_PER_FIND_TASK = 8192;
+
+    /** Appended to the database file name, to name the journal. */
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /** Appended to the database file name, to name the checksums. */
+    private static final String CHECKSUM_SUFFIX = ".crc";
+
+    /** Appended to the database file name, to name the snapshot. */
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+
+    /** First bytes of a snapshot file. */
+    private static final int SNAPSHOT_MAGIC = 0x534e4150;
+
+    /** Version of the snapshot file format. */
+    private static final int SNAPSHOT_VERSION = 5;
 
     /**
-     * This array will be used for reading and writing all data
-     * fields, using the discovered maximum data field length.
+     * Number of bytes at the end of the database file that a
+     * snapshot checks, as well as its header.
      */
-    private final byte[] dataBytes;
+    private static final int SNAPSHOT_SAMPLE_LENGTH = 8192;
+
+    /** Appended to the database file name, to name the generation. */
+    private static final String GENERATION_SUFFIX = ".generation";
+
+    /** The generation of a file that no snapshot matches. */
+    private static final long NO_GENERATION = -1;
+
+    /** Logger for this class. */
+    private static final Logger LOGGER = Logger.getLogger(Data.class
+        .getName());
+
+    // instance variables ---------------------------------------
+
+    /** Number of bytes per record. */
+    private final int bytesPerRecord;
 
     /** Byte offset for start of data records. */
     private int startOfData;
 
-    /** Maximum data field length, in bytes. */
-    private int maxFieldLength;
+    /** Use a <code>RecordFile</code> for database updates. */
+    private final RecordFile recordFile;
+
+    /**
+     * Keeps a checksum of each record, to check records as they
+     * are loaded; <code>null</code> without checksums.
+     */
+    private final ChecksummedRecordFile checksums;
+
+    /**
+     * Applies journaled writes to the database file;
+     * <code>null</code> without a journal.
+     */
+    private final JournaledRecordFile journal;
+
+    /**
+     * Queues writes for a writer thread; <code>null</code> without
+     * write-behind.
+     */
+    private final WriteBehindRecordFile writeBehind;
+
+    /** When changes to the database file are forced to disk. */
+    private final ForcePolicy forcePolicy;
+
+    /** How far a change goes when the caller does not say. */
+    private final Durability defaultDurability;
+
+    /** Threads for work that is done in parallel. */
+    private final WorkerPool workerPool;
 
-    /** Use random access for database updates. */
-    private RandomAccessFile randomAccessFile;
+    /**
+     * Runs the periodic force and the background compaction;
+     * <code>null</code> when neither is asked for.
+     */
+    private final Timer backgroundTimer;
+
+    /**
+     * Takes expired locks from dead clients; <code>null</code>
+     * when locks have no lease.
+     */
+    private final Timer lockTimer;
 
     /** Array of all field descriptors. */
     private FieldDescriptor[] fieldDescriptors;
 
-    /** List of all data records. */
-    private List dataRecords = new ArrayList();
+    /** All data records. */
+    private final RecordTable recordTable;
+
+    /**
+     * Record numbers of deleted records, as <code>Integer</code>s
+     * in order, which <code>create()</code> may re-use, lowest
+     * first; <code>null</code> until the indexes are built.
+     * Guarded by <code>recordTable</code>.
+     */
+    private SortedSet freeRecords;
+
+    /**
+     * The record number of each record that is not deleted, by
+     * primary key; empty until the indexes are built. Guarded by
+     * <code>recordTable</code>.
+     */
+    private final KeyIndex keyIndex;
+
+    /**
+     * A prefix index for each indexed field, by field number;
+     * <code>null</code> for fields that are not indexed.
+     */
+    private final FieldIndex[] fieldIndexes;
+
+    /**
+     * A bitmap index for each field with one, by field number;
+     * <code>null</code> for fields that do not have one.
+     */
+    private final BitmapIndex[] bitmapIndexes;
+
+    /** The record locks, with their queues of waiting threads. */
+    private final LockManager lockManager;
+
+    /** Encodes records for writing, into per-thread buffers. */
+    private final RecordEncoder encoder;
+
+    /**
+     * The current record number of each record that compaction
+     * has moved, by its old record number, so that old record
+     * numbers stay valid until they are re-used. Guarded by its
+     * own monitor.
+     */
+    private final Map forwards = new HashMap();
+
+    /**
+     * The old record numbers of each moved record, as a
+     * <code>List</code>, by its current record number. Guarded by
+     * the <code>forwards</code> monitor.
+     */
+    private final Map arrivals = new HashMap();
+
+    /** <code>true</code> once compaction has moved a record. */
+    private volatile boolean recordsMoved;
+
+    /** The snapshot file; <code>null</code> without snapshots. */
+    private final File snapshotFile;
+
+    /**
+     * The file that holds the change generation of the database
+     * file, which a snapshot must match.
+     */
+    private final File generationFile;
+
+    /**
+     * The checksum file, which is deleted before the first change
+     * made without checksums; <code>null</code> with checksums.
+     */
+    private final File uncheckedFile;
+
+    /**
+     * The change generation of the database file; only counted
+     * with snapshots. Guarded by <code>changeGate</code>.
+     */
+    private long generation;
+
+    /**
+     * <code>true</code> once the generation has been moved on
+     * for the changes since the database was opened, or since
+     * the last checkpoint. Set under <code>changeGate</code>.
+     */
+    private volatile boolean generationBumped;
+
+    /**
+     * Lets a checkpoint wait for changes, and changes wait for a
+     * checkpoint; only used with snapshots.
+     */
+    private final Object changeGate = new Object();
+
+    /** Changes being made. Guarded by <code>changeGate</code>. */
+    private int changes;
+
+    /**
+     * <code>true</code> while a checkpoint waits or is written.
+     * Guarded by <code>changeGate</code>.
+     */
+    private boolean checkpointing;
+
+    /**
+     * <code>true</code> while the snapshot file matches the
+     * database file. Guarded by <code>changeGate</code>.
+     */
+    private boolean snapshotCurrent;
 
     /**
      * Hide the no-argument constructor.
@@ -156,16 +372,35 @@ public final class Data implements DB {
          * never used.
          */
         bytesPerRecord = -1;
-        dataBytes = null;
+        recordFile = null;
+        checksums = null;
+        journal = null;
+        writeBehind = null;
+        forcePolicy = null;
+        defaultDurability = null;
+        workerPool = null;
+        backgroundTimer = null;
+        lockTimer = null;
+        keyIndex = null;
+        fieldIndexes = null;
+        bitmapIndexes = null;
+        lockManager = null;
+        encoder = null;
+        snapshotFile = null;
+        generationFile = null;
+        uncheckedFile = null;
+        recordTable = null;
     }
 
     /**
      * <p>
-     * Constructs a <code>Data</code>.
+     * Constructs a <code>Data</code> with the default
+     * <code>DataOptions</code>.
      * </p>
      * <p>
-     * Reads the entire database into memory and initializes all
-     * instance variables.
+     * Reads the entire database into memory (unless the record
+     * layout is <code>RecordLayout.PAGED</code>) and initializes
+     * all instance variables.
      * </p>
      *
      * @param filename
@@ -184,22 +419,88 @@ public final class Data implements DB {
         throws InvalidMagicCookieException,
         InvalidDataHeaderException, IOException {
 
+        this(filename, new DataOptions());
+    }
+
+    /**
+     * <p>
+     * Constructs a <code>Data</code>.
+     * </p>
+     * <p>
+     * Reads the entire database into memory (unless the record
+     * layout is <code>RecordLayout.PAGED</code>) and initializes
+     * all instance variables.
+     * </p>
+     *
+     * @param filename
+     * relative or absolute pathname for the database file.
+     *
+     * @param options
+     * the settings for opening the database file.
+     *
+     * @throws InvalidMagicCookieException
+     * if the magic cookie does not match the expected value.
+     *
+     * @throws InvalidDataHeaderException
+     * if the database header is invalid.
+     *
+     * @throws IOException
+     * for all other database I/O errors.
+     *
+     * @throws IllegalArgumentException
+     * if a key field in <code>options</code> is not a field of
+     * the database, or if <code>options</code> asks for
+     * snapshots with a record layout other than
+     * <code>RecordLayout.COLUMNS</code>, or for checksums with
+     * <code>StorageMode.MAPPED</code> or write-behind but no
+     * journal.
+     */
+    public Data(final String filename, final DataOptions options)
+        throws InvalidMagicCookieException,
+        InvalidDataHeaderException, IOException {
+
         // validate arguments
         if (null == filename) {
             throw new NullPointerException("filename");
         }
+        if (null == options) {
+            throw new NullPointerException("options");
+        }
+
+        // snapshots hold the records in columns
+        if (options.isSnapshot()
+            && (RecordLayout.COLUMNS != options.getRecordLayout())) {
+            throw new IllegalArgumentException(
+                "snapshots need the COLUMNS record layout");
+        }
+
+        /* An update's checksums must reach the disk before its
+         * record, and an append's record before its checksum.
+         * Without a journal, only synchronous writes ensure that.
+         */
+        if (options.isChecksums()
+            && !options.isJournal()
+            && ((StorageMode.MAPPED == options.getStorageMode())
+                || (0 != options.getWriteBehind()))) {
+            throw new IllegalArgumentException("checksums need a journal"
+                + " with MAPPED storage or write-behind");
+        }
 
         final int bytesPerShort = 2;
         final int bytesPerInt = 4;
 
-        // use a DataInputStream to read the database into memory
+        // use a DataInputStream to read the database header
         final File file = new File(filename);
+        snapshotFile = options.isSnapshot()
+            ? new File(filename + SNAPSHOT_SUFFIX)
+            : null;
+        generationFile = new File(filename + GENERATION_SUFFIX);
+        uncheckedFile = options.isChecksums()
+            ? null
+            : new File(filename + CHECKSUM_SUFFIX);
         final DataInputStream dataInputStream = new DataInputStream(
             new FileInputStream(file));
 
-        // use a RandomAccessFile later, for database updates
-        randomAccessFile = new RandomAccessFile(file, "rws");
-
         // Start of file ----------------------------------------
 
         // read magic cookie
@@ -228,6 +529,8 @@ public final class Data implements DB {
 
         // now we know how many fields per record
         fieldDescriptors = new FieldDescriptor[fieldsPerRecord];
+        final int[] fieldLengths = new int[fieldsPerRecord];
+        int totalFieldLength = 0;
 
         // read the field descriptors
         for (int i = 0; i < fieldsPerRecord; i++) {
@@ -244,7 +547,10 @@ public final class Data implements DB {
                 0,
                 fieldNameLength);
             startOfData += fieldNameLength;
-            final String fieldName = new String(fieldNameBytes);
+            final String fieldName = RecordEncoder.decode(
+                fieldNameBytes,
+                0,
+                fieldNameLength);
 
             // make sure the counts match
             if (count != fieldNameLength) {
@@ -265,71 +571,343 @@ public final class Data implements DB {
                 fieldName,
                 fieldLength);
 
-            // keep track of max field length, for later
-            if (fieldLength > maxFieldLength) {
-                maxFieldLength = fieldLength;
+            // keep track of field lengths, for later
+            fieldLengths[i] = fieldLength;
+            totalFieldLength += fieldLength;
+        }
+
+        // we are done with the header
+        dataInputStream.close();
+
+        // the fields must fit in a record
+        if (totalFieldLength > bytesPerRecord) {
+            throw new InvalidDataHeaderException(
+                "field lengths total "
+                    + totalFieldLength
+                    + ", expected at most "
+                    + bytesPerRecord);
+        }
+
+        /* The primary key and the indexes must use real fields;
+         * check them before anything is opened.
+         */
+        final int[] keyFields = options.getKeyFields();
+        checkFields(keyFields, "key field", fieldsPerRecord);
+        final int[] indexFields = options.getIndexFields();
+        checkFields(indexFields, "index field", fieldsPerRecord);
+        final int[] bitmapFields = options.getBitmapFields();
+        checkFields(bitmapFields, "bitmap field", fieldsPerRecord);
+
+        /* Close whatever was opened if the database can not be
+         * opened after all, so that its files, and the journal,
+         * can be opened again.
+         */
+        RecordFile dataFile = null;
+        WorkerPool pool = null;
+        boolean opened = false;
+        try {
+
+            /* Use a RecordFile for reading records and for updates.
+             * A journal takes care of durability, so the database
+             * file need not be written synchronously; the journal is
+             * replayed here, before any records are read. A journal
+             * writes through the checksums, so a replay also writes
+             * the checksums of the records it writes again. With
+             * write-behind, each change says when it is forced, and
+             * the queue comes before everything else.
+             */
+            final boolean synchronous = !options.isJournal()
+                && (0 == options.getWriteBehind())
+                && (StorageMode.MAPPED != options.getStorageMode());
+            if (StorageMode.MAPPED == options.getStorageMode()) {
+                dataFile = new MappedRecordFile(file);
+            } else {
+                dataFile = new RandomAccessRecordFile(file, synchronous);
+            }
+            if (options.isChecksums()) {
+                checksums = new ChecksummedRecordFile(
+                    dataFile,
+                    new File(filename + CHECKSUM_SUFFIX),
+                    startOfData,
+                    1 + bytesPerRecord,
+                    synchronous);
+                dataFile = checksums;
+            } else {
+                checksums = null;
+            }
+            if (options.isJournal()) {
+                journal = new JournaledRecordFile(
+                    dataFile,
+                    new File(filename + JOURNAL_SUFFIX));
+                dataFile = journal;
+            } else {
+                journal = null;
+            }
+            if (0 != options.getWriteBehind()) {
+                writeBehind = new WriteBehindRecordFile(
+                    dataFile,
+                    options.getWriteBehind(),
+                    filename);
+                dataFile = writeBehind;
+            } else {
+                writeBehind = null;
+            }
+            recordFile = dataFile;
+            forcePolicy = options.getForcePolicy();
+            defaultDurability = (ForcePolicy.WRITE == forcePolicy)
+                ? Durability.FORCE
+                : Durability.MEMORY;
+            pool = new WorkerPool("Data worker", options.getThreads());
+            workerPool = pool;
+            lockManager = new LockManager(options.getLockLease());
+
+            // drop a last record that was appended without its checksum
+            if (null != checksums) {
+                dropTornAppend();
+            }
+
+            // Data -------------------------------------------------
+
+            keyIndex = new KeyIndex(keyFields, fieldLengths);
+            encoder = new RecordEncoder(fieldLengths, 1 + bytesPerRecord);
+
+            fieldIndexes = new FieldIndex[fieldsPerRecord];
+            for (int i = 0; i < indexFields.length; i++) {
+                fieldIndexes[indexFields[i]] = new FieldIndex(
+                    fieldLengths[indexFields[i]]);
+            }
+
+            bitmapIndexes = new BitmapIndex[fieldsPerRecord];
+            for (int i = 0; i < bitmapFields.length; i++) {
+                bitmapIndexes[bitmapFields[i]] = new BitmapIndex(
+                    fieldLengths[bitmapFields[i]]);
+            }
+
+            // hold the records in the requested layout
+            final RecordTable snapshot = (null == snapshotFile)
+                ? null
+                : readSnapshot(fieldLengths);
+            if (null != snapshotFile) {
+
+                // the next generation follows the last one, if any
+                synchronized (changeGate) {
+                    generation = Math.max(0, readGeneration());
+                }
+            }
+            if (null != snapshot) {
+
+                // the snapshot also held the indexes
+                recordTable = snapshot;
+                synchronized (changeGate) {
+                    snapshotCurrent = true;
+                }
+            } else if (RecordLayout.PAGED == options.getRecordLayout()) {
+                recordTable = new PagedRecordTable(
+                    recordFile,
+                    startOfData,
+                    1 + bytesPerRecord,
+                    fieldLengths,
+                    countRecords(),
+                    options.getCachePages());
+
+                // records are read as they are needed; check them now
+                if (null != checksums) {
+                    loadRecords(false, options.isRepair());
+                }
+            } else {
+                if (RecordLayout.COLUMNS == options.getRecordLayout()) {
+                    recordTable = new ColumnarRecordTable(fieldLengths);
+                } else {
+                    recordTable = new ObjectRecordTable(fieldLengths);
+                }
+                loadRecords(true, options.isRepair());
+            }
+
+            // index the records, if asked
+            if ((null == snapshot)
+                && ((indexFields.length > 0) || (bitmapFields.length > 0))) {
+                for (int recNo = 0; recNo < recordTable.size(); recNo++) {
+                    if (!recordTable.isDeleted(recNo)) {
+                        addToFieldIndexes(recNo, recordTable
+                            .getValues(recNo));
+                    }
+                }
+            }
+
+            opened = true;
+        } finally {
+            if (!opened) {
+                abandon(dataFile, pool);
             }
         }
 
-        // Data -------------------------------------------------
+        // force from a background thread, if asked
+        Timer timer = null;
+        if (((StorageMode.MAPPED == options.getStorageMode())
+            || options.isJournal()
+            || (0 != options.getWriteBehind()))
+            && (ForcePolicy.PERIODIC == forcePolicy)) {
+
+            timer = new Timer(true);
+            timer.schedule(
+                new ForceTask(),
+                options.getForceInterval(),
+                options.getForceInterval());
+        }
 
-        // Create the data field buffer
-        dataBytes = new byte[maxFieldLength];
+        /* Take expired locks from dead clients, if asked, on a
+         * thread of their own: a force or a compaction must not
+         * hold up the locks that waiting clients are owed.
+         */
+        if (0 != options.getLockLease()) {
+
+            // a lock is taken at most half a lease late
+            final long period = Math.max(1, options.getLockLease() / 2);
+            lockTimer = new Timer(true);
+            lockTimer.schedule(
+                new ExpireLocksTask(),
+                period,
+                period);
+        } else {
+            lockTimer = null;
+        }
 
-        // read to end of file
-        for (;;) {
+        // compact deleted records in the background, if asked
+        if (0 != options.getCompactInterval()) {
 
-            // read the 'deleted' byte
-            final byte deletedByte;
-            try {
-                deletedByte = dataInputStream.readByte();
-            } catch (EOFException e) {
-                /* reached end of file, so we are done */
-                break;
+            if (null == timer) {
+                timer = new Timer(true);
             }
 
-            // create a String[] for the data record
-            final String[] fieldValues = new String[fieldsPerRecord];
+            timer.schedule(
+                new CompactTask(),
+                options.getCompactInterval(),
+                options.getCompactInterval());
+        }
+        backgroundTimer = timer;
+    }
+
+    /**
+     * Drops records appended after the last record with a
+     * checksum. An appended record is written before its
+     * checksum, so such a record was being appended when the
+     * server stopped, and may be torn; an incomplete last record
+     * is dropped too.
+     *
+     * @throws IOException
+     * if the database file can not be read or truncated.
+     */
+    private void dropTornAppend() throws IOException {
+
+        final int count = checksums.size();
+        final long end = recordPosition(count);
+        if (recordFile.length() > end) {
+            LOGGER.warning("dropped "
+                + (countRecords() - count)
+                + " record(s) appended without a checksum");
+            recordFile.setLength(end);
+        }
+    }
+
+    /**
+     * Reads all data records, checks them against their
+     * checksums if there are any, and stores them in the record
+     * table if asked.
+     * Records are fixed length, so the file is split into ranges
+     * of records that are read, checked and decoded in parallel.
+     *
+     * @param store
+     * <code>true</code> to store the records in the record table.
+     *
+     * @param repair
+     * <code>true</code> to mark records that do not match their
+     * checksums deleted, rather than fail.
+     *
+     * @throws IOException
+     * if the database file can not be read, or a record does not
+     * match its checksum and <code>repair</code> is
+     * <code>false</code>.
+     */
+    private void loadRecords(final boolean store, final boolean repair)
+        throws IOException {
 
-            // collect all fields in the record
-            for (int i = 0; i < fieldsPerRecord; i++) {
+        final int count = countRecords();
+        if (store) {
+            recordTable.setSize(count);
+        }
 
-                // read data value for one field
-                final int count = dataInputStream.read(
-                    dataBytes,
-                    0,
-                    fieldDescriptors[i].getDataLength());
+        /* A few ranges per thread, so the threads finish at
+         * about the same time; but not so many that each range
+         * is too small to be worth the trouble.
+         */
+        final int tasks = Math.min(
+            workerPool.getThreads() * 4,
+            (count + MIN_RECORDS_PER_TASK - 1) / MIN_RECORDS_PER_TASK);
+
+        final List damaged = repair
+            ? Collections.synchronizedList(new ArrayList())
+            : null;
+        final Runnable[] loadTasks = new Runnable[tasks];
+        for (int i = 0; i < tasks; i++) {
+            loadTasks[i] = new LoadTask(
+                (int) ((long) count * i / tasks),
+                (int) ((long) count * (i + 1) / tasks),
+                store,
+                damaged);
+        }
 
-                /* check that the counts match; there is probably
-                 * no harm if they do not match, so just use an
-                 * assertion as we learn more about the specific
-                 * behavior
-                 */
-                assert count == fieldDescriptors[i]
-                    .getDataLength() : "Read "
-                    + count
-                    + " bytes, expected "
-                    + fieldDescriptors[i].getDataLength();
-
-                /* convert bytes to String;
-                 * enforce maximum field length, per schema
-                 */
-                fieldValues[i] = new String(
-                    dataBytes,
-                    0,
-                    fieldDescriptors[i].getDataLength());
+        try {
+            workerPool.invokeAll(loadTasks);
+        } catch (final IOExceptionOnReadException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            throw e;
+        }
+
+        // mark the damaged records deleted, which checksums them
+        if (null != damaged) {
+            for (int i = 0; i < damaged.size(); i++) {
+                final int recNo = ((Integer) damaged.get(i)).intValue();
+                LOGGER.warning("record number "
+                    + recNo
+                    + " does not match its checksum; marked deleted");
+                writeDeleted(recNo, true, defaultDurability);
+            }
+        }
+    }
 
-            // append new data record
-            dataRecords.add(new DataRecord(
-                (0 != deletedByte),
-                fieldValues));
+    /**
+     * Counts the data records in the database file, without
+     * reading them. As when the records are read, an incomplete
+     * last record is ignored.
+     *
+     * @return
+     * the number of data records.
+     *
+     * @throws IOException
+     * if the database file is too large to address by record
+     * number.
+     */
+    private int countRecords() throws IOException {
+
+        final long records = Math.max(0, recordFile.length()
+            - startOfData)
+            / (1 + bytesPerRecord);
+        if (records > Integer.MAX_VALUE) {
+            throw new IOException("record count "
+                + records
+                + " is too large");
         }
+
+        return (int) records;
     }
 
     /**
      * Reads a record from the file.
      * Returns an array where each element is a record value.
+     * Values are decoded from US ASCII, without the spaces or
+     * null bytes that pad them to their field lengths.
      *
      * @param recNo
      * the record number; 0-based.
@@ -344,27 +922,62 @@ public final class Data implements DB {
     public String[] read(final int recNo)
         throws RecordNotFoundException {
 
+        // compaction may have moved the record, or cut it off
+        final int current = follow(recNo, resolve(recNo));
+
         // validate arguments
-        if ((recNo < 0) || (recNo >= dataRecords.size())) {
+        if ((current < 0) || (current >= recordTable.size())) {
             throw new RecordNotFoundException(
                 "invalid record number " + recNo);
         }
 
-        // get specified record
-        DataRecord dataRecord = (DataRecord) dataRecords
-            .get(recNo);
-
         // make sure record was not deleted
-        if (dataRecord.isDeleted()) {
+        if (recordTable.isDeleted(current)) {
             throw new RecordNotFoundException(
                 "deleted record number " + recNo);
         }
 
-        /* return a new copy of the array of values;
-         * we return a copy rather than the original, so the
-         * caller can not change our copy
+        /* return a new copy of the array of values, all from one
+         * version of the record; the table reads it without this
+         * object's monitor, so reads never wait for creates or
+         * compaction
          */
-        return (String[]) dataRecord.getValues().clone();
+        return recordTable.getValues(current);
+    }
+
+    /**
+     * Reads several records at once; for example, the records
+     * returned by <code>find()</code>. Records that do not exist
+     * or are marked as deleted, perhaps since they were found,
+     * are skipped rather than reported with an exception.
+     *
+     * @param recNos
+     * the record numbers; 0-based.
+     *
+     * @return
+     * an array with one element per record number: an array
+     * where each element is a record value, or <code>null</code>
+     * if the record does not exist or is marked as deleted.
+     */
+    public String[][] readAll(final int[] recNos) {
+
+        // validate arguments
+        if (null == recNos) {
+            throw new NullPointerException("recNos");
+        }
+
+        final String[][] records = new String[recNos.length][];
+
+        for (int i = 0; i < recNos.length; i++) {
+            final int recNo = follow(recNos[i], resolve(recNos[i]));
+            if ((recNo >= 0)
+                && (recNo < recordTable.size())
+                && !recordTable.isDeleted(recNo)) {
+                records[i] = recordTable.getValues(recNo);
+            }
+        }
+
+        return records;
     }
 
     /**
@@ -394,8 +1007,43 @@ public final class Data implements DB {
         final String[] data,
         final long lockCookie) throws RecordNotFoundException {
 
+        update(recNo, data, lockCookie, defaultDurability);
+    }
+
+    /**
+     * Modifies the fields of a record, and returns once the change
+     * has gone as far towards the storage device as asked.
+     * Otherwise the same as <code>update(int, String[], long)</code>.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param data
+     * an array where each element is a record value;
+     * the new value for field <code>n</code> appears in
+     * <code>data[n]</code>.
+     *
+     * @param lockCookie
+     * the cookie that uniquely identifies a lock.
+     *
+     * @param durability
+     * how far the change must go before this returns.
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     */
+    public void update(
+        final int recNo,
+        final String[] data,
+        final long lockCookie,
+        final Durability durability) throws RecordNotFoundException {
+
+        // compaction may have moved the record
+        final int current = resolve(recNo);
+
         // validate arguments
-        if ((recNo < 0) || (recNo >= dataRecords.size())) {
+        if ((current < 0) || (current >= recordTable.size())) {
             throw new RecordNotFoundException(
                 "invalid record number " + recNo);
         }
@@ -405,68 +1053,210 @@ public final class Data implements DB {
             throw new NullPointerException("data");
         }
 
-        // get specified record
-        final DataRecord dataRecord = (DataRecord) dataRecords
-            .get(recNo);
+        // validate arguments
+        if (null == durability) {
+            throw new NullPointerException("durability");
+        }
 
         // make sure record was not deleted
-        if (dataRecord.isDeleted()) {
+        if (recordTable.isDeleted(current)) {
             throw new RecordNotFoundException(
                 "deleted record number " + recNo);
         }
 
-        /* Ensure that the updated record would not create a
-         * duplicate key condition.
-         */
-        for (int i = 0; i < dataRecords.size(); i++) {
-
-            // do not compare with self
-            if (recNo == i) {
-                continue;
-            }
+        // make sure the record is locked with this cookie
+        lockManager.checkLock(current, lockCookie);
 
-            // get the record
-            final DataRecord checkForDup = (DataRecord) dataRecords
-                .get(i);
+        beginChange();
+        try {
+            updateRecord(current, data, durability);
+        } finally {
+            endChange();
+        }
+    }
 
-            // ignore if deleted
-            if (checkForDup.isDeleted()) {
-                continue;
-            }
+    /**
+     * Writes new values for a record, and keeps the key and
+     * field indexes current. The caller must hold the lock on
+     * the record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param data
+     * the new values of the record.
+     *
+     * @param durability
+     * how far the record must go before this returns.
+     */
+    private void updateRecord(
+        final int recNo,
+        final String[] data,
+        final Durability durability) {
 
-            final String[] values = checkForDup.getValues();
+        /* Ensure that the updated record would not create a
+         * duplicate key condition, and claim the new key before
+         * the file is written, so no other record can take it.
+         */
+        final Object key = keyIndex.keyOf(data);
+        final Object oldKey;
+        synchronized (recordTable) {
 
-            /* For this implementation, the first two fields
-             * in the record must be unique.
-             */
-            if ((data[0] == values[0]) && (data[1] == values[1])) {
+            buildIndexes();
 
+            final int other = keyIndex.get(key);
+            if ((-1 != other) && (recNo != other)) {
                 throw new DuplicateKeyOnUpdateException();
             }
+
+            oldKey = keyIndex.keyOf(recordTable, recNo);
+            keyIndex.remove(oldKey, recNo);
+            keyIndex.put(key, recNo);
         }
 
-        // fetch the Lock identified by this cookie
-        final Lock lock = dataRecord.findLock(lockCookie);
-        assert null != lock;
+        /* Take the old values before the file is written; a paged
+         * table may read them again from the file afterwards.
+         */
+        final String[] oldValues = recordTable.getValues(recNo);
 
-        // update the file
+        // update the file, writing only the changed fields
         try {
-            writeRecord(
+            writeFields(
                 recNo,
-                new DataRecord(false, data));
+                oldValues,
+                data,
+                durability);
         } catch (final IOException e) {
+
+            // the record keeps its old key
+            synchronized (recordTable) {
+                keyIndex.remove(key, recNo);
+                keyIndex.put(oldKey, recNo);
+            }
             throw new IOExceptionOnUpdateException(
                 "record number " + recNo,
                 e);
         }
 
+        // keep the field indexes current
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            if (null != fieldIndexes[i]) {
+                fieldIndexes[i].replace(oldValues[i], data[i], recNo);
+            }
+            if (null != bitmapIndexes[i]) {
+                bitmapIndexes[i].replace(oldValues[i], data[i], recNo);
+            }
+        }
+
         /* Now that the data has been written to the
-         * file, update the in-memory object. Use a
-         * new copy of the updated data, as the
-         * caller may later change the object passed
-         * to us.
+         * file, update the in-memory record.
          */
-        dataRecord.setValues((String[]) data.clone());
+        recordTable.setValues(recNo, data);
+    }
+
+    /**
+     * Sets a field of a record to a new value, if and only if the
+     * field currently holds the expected value; for example, sets
+     * the owner of a record if the owner is blank. Values are
+     * compared as they are stored in the database file, so
+     * trailing padding is ignored and a blank value is
+     * <code>""</code>.
+     * <p>
+     * The record is locked only while the field is checked and
+     * written, so no client lock, read, or unlock is needed. The
+     * record is not written at all if the field does not hold
+     * the expected value.
+     * </p>
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param field
+     * the field number; 0-based.
+     *
+     * @param expected
+     * the value the field must hold.
+     *
+     * @param newValue
+     * the value to set.
+     *
+     * @param timeout
+     * the longest time to wait for another client to unlock the
+     * record, in milliseconds; <code>0</code> does not wait.
+     *
+     * @return
+     * 'true' if the field was set, or 'false' if it did not hold
+     * the expected value.
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     *
+     * @throws RecordLockedException
+     * if the record is still locked by another client when the
+     * time is up.
+     *
+     * @throws InterruptedException
+     * if the current thread is interrupted while it waits; it
+     * then no longer waits for the lock.
+     */
+    public boolean compareAndSet(
+        final int recNo,
+        final int field,
+        final String expected,
+        final String newValue,
+        final long timeout)
+        throws RecordNotFoundException,
+        RecordLockedException,
+        InterruptedException {
+
+        // validate arguments
+        if ((field < 0) || (field >= fieldDescriptors.length)) {
+            throw new IllegalArgumentException("field was " + field);
+        }
+
+        // validate arguments
+        if (null == expected) {
+            throw new NullPointerException("expected");
+        }
+
+        // validate arguments
+        if (null == newValue) {
+            throw new NullPointerException("newValue");
+        }
+
+        final long cookie = lock(recNo, timeout);
+
+        // the record can not move while it is locked
+        final int current = resolve(recNo);
+        try {
+
+            // the record may have been deleted while we waited
+            if (recordTable.isDeleted(current)) {
+                throw new RecordNotFoundException(
+                    "deleted record number " + recNo);
+            }
+
+            final int length = fieldDescriptors[field].getDataLength();
+            final String value = recordTable.getValue(current, field);
+            if (!RecordEncoder.canonical(value, length).equals(
+                RecordEncoder.canonical(expected, length))) {
+                return false;
+            }
+
+            final String[] data = recordTable.getValues(current);
+            data[field] = newValue;
+            beginChange();
+            try {
+                updateRecord(current, data, defaultDurability);
+            } finally {
+                endChange();
+            }
+
+            return true;
+        } finally {
+            lockManager.unlock(current, cookie);
+        }
     }
 
     /**
@@ -488,42 +1278,98 @@ public final class Data implements DB {
     public void delete(final int recNo, final long lockCookie)
         throws RecordNotFoundException {
 
+        delete(recNo, lockCookie, defaultDurability);
+    }
+
+    /**
+     * Deletes a record, and returns once the change has gone as
+     * far towards the storage device as asked.
+     * Otherwise the same as <code>delete(int, long)</code>.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param lockCookie
+     * the cookie that uniquely identifies a lock.
+     *
+     * @param durability
+     * how far the change must go before this returns.
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     */
+    public void delete(
+        final int recNo,
+        final long lockCookie,
+        final Durability durability) throws RecordNotFoundException {
+
+        // validate arguments
+        if (null == durability) {
+            throw new NullPointerException("durability");
+        }
+
+        // compaction may have moved the record
+        final int current = resolve(recNo);
+
         // validate arguments
-        if ((recNo < 0) || (recNo >= dataRecords.size())) {
+        if ((current < 0) || (current >= recordTable.size())) {
             throw new RecordNotFoundException(
                 "invalid record number " + recNo);
         }
 
-        // get specified record
-        final DataRecord dataRecord = (DataRecord) dataRecords
-            .get(recNo);
-
         // make sure record was not deleted
-        if (dataRecord.isDeleted()) {
+        if (recordTable.isDeleted(current)) {
             throw new RecordNotFoundException(
                 "deleted record number " + recNo);
         }
 
-        // fetch the lock for this cookie
-        final Lock lock = dataRecord.findLock(lockCookie);
-        assert null != lock;
+        // make sure the record is locked with this cookie
+        lockManager.checkLock(current, lockCookie);
 
-        // flag the record as deleted
-        dataRecord.setDeleted(true);
+        /* Take the values before the file is written; a paged
+         * table may read them again from the file afterwards.
+         */
+        final String[] oldValues = recordTable.getValues(current);
 
-        // update the file
+        beginChange();
         try {
-            writeRecord(
-                recNo,
-                dataRecord);
-        } catch (final IOException e) {
+            // update the file
+            try {
+                writeDeleted(current, true, durability);
+            } catch (final IOException e) {
+                throw new IOExceptionOnDeleteException(
+                    "record number " + recNo,
+                    e);
+            } finally {
 
-            /* The in-memory object is marked as deleted, which
-             * should be fine even if we catch an exception here.
-             */
-            throw new IOExceptionOnDeleteException(
-                "record number " + recNo,
-                e);
+                /* Flag the in-memory record as deleted once the file
+                 * has been written, since a paged table may read the
+                 * record again from the file. The in-memory record is
+                 * marked as deleted, which should be fine even if we
+                 * catch an exception above.
+                 */
+                synchronized (recordTable) {
+                    recordTable.setDeleted(current, true);
+
+                    /* find() no longer needs to look at the record;
+                     * this must be done before the record number
+                     * is free, or it would remove the entries of a
+                     * record that create() puts there
+                     */
+                    removeFromFieldIndexes(current, oldValues);
+
+                    // create() may now re-use the record number and key
+                    if (null != freeRecords) {
+                        freeRecords.add(new Integer(current));
+                        keyIndex.remove(
+                            keyIndex.keyOf(oldValues),
+                            current);
+                    }
+                }
+            }
+        } finally {
+            endChange();
         }
     }
 
@@ -536,7 +1382,8 @@ public final class Data implements DB {
      * matches any field value.
      * A non-<code>null</code> value in <code>criteria[n]</code>
      * matches any field value that begins with
-     * <code>criteria[n]</code>.\
+     * <code>criteria[n]</code>; every character of
+     * <code>criteria[n]</code> is taken literally.
      * The searches ignore upper and lower case.
      * (For example, <i>"Fred"</i> matches <i>"Fred"</i> or
      * <i>"Freddy"</i> or <i>"fred"</i>.)
@@ -551,59 +1398,109 @@ public final class Data implements DB {
      */
     public int[] find(final String[] criteria) {
 
+        return find(criteria, new int[0]);
+    }
+
+    /**
+     * Returns an array of record numbers that match the
+     * specified criteria, and whose values are blank in the
+     * specified fields.
+     * The criteria are as for <code>find(String[])</code>.
+     * A value is blank if it is empty, or holds only spaces.
+     * (For example, records that are not booked have a blank
+     * owner.)
+     *
+     * @param criteria
+     * match criteria; <code>null</code> matches any value.
+     *
+     * @param blankFields
+     * the fields that must be blank, by field number.
+     *
+     * @return
+     * an array of record numbers that match the specified
+     * criteria.
+     */
+    public int[] find(final String[] criteria, final int[] blankFields) {
+
         // validate arguments
-        if (null == criteria) {
+        if ((null == criteria) || (null == blankFields)) {
             throw new NullPointerException();
         }
+        for (int i = 0; i < blankFields.length; i++) {
+            if ((blankFields[i] < 0)
+                || (blankFields[i] >= fieldDescriptors.length)) {
+                throw new IllegalArgumentException("blank field was "
+                    + blankFields[i]);
+            }
+        }
 
-        final List arrayList = new ArrayList();
-
-        /* build a set of match strings that will ignore case and
-         * match string prefixes.
+        /* there should never be more 'criteria' than data
+         * fields
          */
-        final String[] patterns = new String[criteria.length];
-        for (int i = 0; i < patterns.length; i++) {
+        assert fieldDescriptors.length >= criteria.length;
 
-            if (null == criteria[i]) {
-                patterns[i] = null;
-            } else {
-                patterns[i] = "(?i)" + criteria[i] + ".*";
+        /* build a set of matchers that will ignore case and
+         * match literal prefixes, or blank values.
+         */
+        int tests = blankFields.length;
+        for (int i = 0; i < criteria.length; i++) {
+            if (null != criteria[i]) {
+                tests++;
             }
         }
 
-        // examine all records
-        nextRecord: for (int recNo = 0; recNo < dataRecords
-            .size(); recNo++) {
-
-            // get values for current record
-            final DataRecord dataRecord = (DataRecord) dataRecords
-                .get(recNo);
-
-            // ignore if deleted
-            if (dataRecord.isDeleted()) {
-                continue;
+        final int[] fields = new int[tests];
+        final PrefixMatcher[] matchers = new PrefixMatcher[tests];
+        int test = 0;
+        for (int i = 0; i < criteria.length; i++) {
+            if (null != criteria[i]) {
+                fields[test] = i;
+                matchers[test++] = new PrefixMatcher(criteria[i]);
             }
+        }
+        for (int i = 0; i < blankFields.length; i++) {
+            fields[test] = blankFields[i];
+            matchers[test++] = new PrefixMatcher("", true);
+        }
 
-            final String[] values = dataRecord.getValues();
-
-            /* there should never be more 'patterns' than data
-             * 'values'
-             */
-            assert values.length >= patterns.length;
-
-            // test each value
-            for (int i = 0; i < patterns.length; i++) {
+        // let the indexes narrow down the records to examine
+        final int[] candidates = findCandidates(criteria, blankFields);
+        final int count = (null == candidates)
+            ? recordTable.size()
+            : candidates.length;
 
-                if ((null != patterns[i])
-                    && !values[i].matches(patterns[i])) {
+        /* Examine all records, or just the candidates; split a
+         * large search into ranges that are examined in parallel.
+         */
+        final int tasks = Math.min(
+            workerPool.getThreads() * 4,
+            count / MIN_RECORDS_PER_FIND_TASK);
 
-                    // match failed, so try next record
-                    continue nextRecord;
-                }
+        final List arrayList = new ArrayList();
+        if (tasks <= 1) {
+            findMatches(
+                candidates,
+                fields,
+                matchers,
+                0,
+                count,
+                arrayList);
+        } else {
+            final FindTask[] findTasks = new FindTask[tasks];
+            for (int i = 0; i < tasks; i++) {
+                findTasks[i] = new FindTask(
+                    candidates,
+                    fields,
+                    matchers,
+                    (int) ((long) count * i / tasks),
+                    (int) ((long) count * (i + 1) / tasks));
             }
+            workerPool.invokeAll(findTasks);
 
-            // this record matched
-            arrayList.add(new Integer(recNo));
+            // the ranges are in order, so the matches are too
+            for (int i = 0; i < tasks; i++) {
+                arrayList.addAll(findTasks[i].getMatches());
+            }
         }
 
         // copy values to an int[]
@@ -639,11 +1536,43 @@ public final class Data implements DB {
     public int create(final String[] data)
         throws DuplicateKeyException {
 
+        return create(data, defaultDurability);
+    }
+
+    /**
+     * Creates a new record in the database, and returns once the
+     * change has gone as far towards the storage device as asked.
+     * Otherwise the same as <code>create(String[])</code>.
+     *
+     * @param data
+     * an array where each element is a record value;
+     * the new value for field <code>n</code> appears in
+     * <code>data[n]</code>.
+     *
+     * @param durability
+     * how far the change must go before this returns.
+     *
+     * @return
+     * record number of the new record,
+     * or -1 if there is an IOException.
+     *
+     * @throws DuplicateKeyException
+     * if the fields in the given data would create a duplicate
+     * key condition.
+     */
+    public int create(final String[] data, final Durability durability)
+        throws DuplicateKeyException {
+
         // validate arguments
         if (null == data) {
             throw new NullPointerException("data");
         }
 
+        // validate arguments
+        if (null == durability) {
+            throw new NullPointerException("durability");
+        }
+
         // make sure the correct number of fields were supplied
         if (data.length != fieldDescriptors.length) {
             throw new IllegalArgumentException(
@@ -654,103 +1583,112 @@ public final class Data implements DB {
         }
 
         int recNo;
-        DataRecord dataRecord;
 
-        /* Synchronize this block, to prevent concurrent
-         * 'create' operations.
-         *
-         * This is necessary, to guarantee that the check for
-         * duplicate keys and the updating of an old record or
-         * the adding of a new record, is treated as a single,
-         * atomic operation.
-         */
-        synchronized (dataRecords) {
-
-            /* Ensure that the new record would not create a
-             * duplicate key condition.
+        beginChange();
+        try {
+            /* Synchronize this block, to prevent concurrent
+             * 'create' operations.
              *
-             * Note: We use an Iterator for this while loop, as
-             * we do not need to track the record number. This
-             * should be more efficient that using the get()
-             * method of the List interface.
+             * This is necessary, to guarantee that the check for
+             * duplicate keys and the updating of an old record or
+             * the adding of a new record, is treated as a single,
+             * atomic operation.
              */
-            final Iterator iterator = dataRecords.iterator();
-            while (iterator.hasNext()) {
+            synchronized (recordTable) {
 
-                dataRecord = (DataRecord) iterator.next();
+                buildIndexes();
 
-                // ignore if deleted
-                if (dataRecord.isDeleted()) {
-                    continue;
-                }
-
-                final String[] values = dataRecord.getValues();
-
-                /* For this implementation, the first two fields
-                 * in the record must be unique.
+                /* Ensure that the new record would not create a
+                 * duplicate key condition.
                  */
-                if ((data[0] == values[0])
-                    && (data[1] == values[1])) {
-
+                final Object key = keyIndex.keyOf(data);
+                if (-1 != keyIndex.get(key)) {
                     throw new DuplicateKeyException();
                 }
-            }
-
-            // the new record has a unique key, so add it
-            for (recNo = 0; recNo < dataRecords.size(); recNo++) {
 
-                dataRecord = (DataRecord) dataRecords.get(recNo);
+                // the new record has a unique key, so add it
 
                 // re-use a deleted slot if possible
-                if (dataRecord.isDeleted()) {
+                if (!freeRecords.isEmpty()) {
+
+                    final Integer freeRecord = (Integer) freeRecords
+                        .first();
+                    freeRecords.remove(freeRecord);
+                    recNo = freeRecord.intValue();
 
                     // update the copy on disk
                     try {
                         writeRecord(
                             recNo,
-                            new DataRecord(false, data));
+                            false,
+                            data,
+                            Durability.MEMORY);
                     } catch (final IOException e) {
+
+                        // the slot is still free
+                        freeRecords.add(freeRecord);
                         throw new CreateFailedException(
                             "unable to re-use deleted record number "
                                 + recNo,
                             e);
                     }
 
+                    // the old record number of a moved record is re-used
+                    reuse(recNo);
+
                     /* Now that the data has been written to the
-                     * file, update the in-memory object. Use a
-                     * new copy of the updated data, as the
-                     * caller may later change the object passed
-                     * to us.
+                     * file, update the in-memory record.
                      */
-                    dataRecord
-                        .setValues((String[]) data.clone());
+                    recordTable.setValues(recNo, data);
 
                     // the new record is not deleted
-                    dataRecord.setDeleted(false);
+                    recordTable.setDeleted(recNo, false);
+                    keyIndex.put(key, recNo);
+                    addToFieldIndexes(recNo, data);
+                } else {
+
+                    // append a new data record to the file
+                    recNo = recordTable.size();
+                    try {
+                        writeRecord(
+                            recNo,
+                            false,
+                            data,
+                            Durability.MEMORY);
+                    } catch (final IOException e) {
+                        throw new CreateFailedException(
+                            "unable to create new record number "
+                                + recNo,
+                            e);
+                    }
 
-                    return recNo;
+                    // the old record number of a moved record is re-used
+                    reuse(recNo);
+
+                    // append to the records in memory
+                    recordTable.add(data);
+                    keyIndex.put(key, recNo);
+                    addToFieldIndexes(recNo, data);
                 }
             }
 
-            // append a new data record to the file
-            dataRecord = new DataRecord(false, (String[]) data
-                .clone());
-
+            /* Wait for the record to go as far as asked outside
+             * the monitor, so that concurrent creates share one
+             * force (with a journal, one group commit), as updates
+             * do.
+             */
             try {
-                writeRecord(
-                    recNo,
-                    dataRecord);
+                sync(durability);
             } catch (final IOException e) {
                 throw new CreateFailedException(
-                    "unable to create new record number "
+                    "unable to force new record number "
                         + recNo,
                     e);
             }
 
-            // append to the list in memory
-            dataRecords.add(dataRecord);
-
             return recNo;
+        } finally {
+            endChange();
         }
     }
 
@@ -762,6 +1700,8 @@ public final class Data implements DB {
      * record is already locked by a different client, the
      * current thread gives up the CPU and consumes no CPU cycles
      * until the record is unlocked.
+     * Threads waiting for the same record get the lock in the
+     * order they asked for it.
      *
      * @param recNo
      * the record number; 0-based.
@@ -777,62 +1717,158 @@ public final class Data implements DB {
     public long lock(final int recNo)
         throws RecordNotFoundException {
 
+        // compaction may have moved the record, or cut it off
+        int current = follow(recNo, resolve(recNo));
+
         // validate arguments
-        if ((recNo < 0) || (recNo >= dataRecords.size())) {
+        if ((current < 0) || (current >= recordTable.size())) {
             throw new RecordNotFoundException(
                 "invalid record number " + recNo);
         }
 
-        // get specified record
-        final DataRecord dataRecord = (DataRecord) dataRecords
-            .get(recNo);
-
         // make sure record was not deleted
-        if (dataRecord.isDeleted()) {
+        if (recordTable.isDeleted(current)) {
             throw new RecordNotFoundException(
                 "deleted record number " + recNo);
         }
 
-        // create a new 'Lock' object for this record
-        final Lock newLock = new Lock(random.nextLong());
+        // wait in line for the lock
+        long cookie = lockManager.lock(current);
+
+        // follow the record, if compaction moved it meanwhile
+        for (int moved = resolve(recNo);
+            moved != current;
+            moved = resolve(recNo)) {
+            lockManager.unlock(current, cookie);
+            current = moved;
+            cookie = lockManager.lock(current);
+        }
+
+        return cookie;
+    }
+
+    /**
+     * Locks a record, if no other client has it locked.
+     * Returned value is a cookie that must be used when the
+     * record is unlocked, updated, or deleted.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * a cookie that must be used when the record is unlocked,
+     * updated, or deleted
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     *
+     * @throws RecordLockedException
+     * if another client has the record locked.
+     */
+    public long tryLock(final int recNo)
+        throws RecordNotFoundException,
+        RecordLockedException {
 
-        // synchronize access to this data record
-        synchronized (dataRecord) {
+        // compaction may have moved the record, or cut it off
+        int current = follow(recNo, resolve(recNo));
 
-            // add new lock for this data record
-            dataRecord.addLock(newLock);
+        // validate arguments
+        if ((current < 0) || (current >= recordTable.size())) {
+            throw new RecordNotFoundException(
+                "invalid record number " + recNo);
+        }
 
-            // keep trying until we get the lock
-            tryAgain: while (true) {
+        // make sure record was not deleted
+        if (recordTable.isDeleted(current)) {
+            throw new RecordNotFoundException(
+                "deleted record number " + recNo);
+        }
 
-                // see if another thread has the lock
-                final Iterator iterator = dataRecord
-                    .getLockIterator();
-                while (iterator.hasNext()) {
+        // take the lock only if nobody has it
+        long cookie = lockManager.tryLock(current);
 
-                    final Lock lock = (Lock) iterator.next();
-                    if (null != lock.getOwner()) {
+        // follow the record, if compaction moved it meanwhile
+        for (int moved = resolve(recNo);
+            moved != current;
+            moved = resolve(recNo)) {
+            lockManager.unlock(current, cookie);
+            current = moved;
+            cookie = lockManager.tryLock(current);
+        }
 
-                        // another thread owns the lock
-                        try {
-                            // wait until notified
-                            dataRecord.wait();
-                        } catch (InterruptedException e) {
-                            // nothing to do here
-                            e.printStackTrace();
-                        }
+        return cookie;
+    }
 
-                        continue tryAgain;
-                    }
-                }
+    /**
+     * Locks a record, waiting at most the specified time for
+     * other clients to unlock it.
+     * Threads waiting for the same record get the lock in the
+     * order they asked for it.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param timeout
+     * the longest time to wait, in milliseconds; <code>0</code>
+     * does not wait.
+     *
+     * @return
+     * a cookie that must be used when the record is unlocked,
+     * updated, or deleted
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     *
+     * @throws RecordLockedException
+     * if the record is still locked by another client when the
+     * time is up.
+     *
+     * @throws InterruptedException
+     * if the current thread is interrupted while it waits; it
+     * then no longer waits for the lock.
+     */
+    public long lock(final int recNo, final long timeout)
+        throws RecordNotFoundException,
+        RecordLockedException,
+        InterruptedException {
 
-                // now we own the lock
-                newLock.setOwner(Thread.currentThread());
+        // compaction may have moved the record, or cut it off
+        int current = follow(recNo, resolve(recNo));
 
-                // return the cookie
-                return newLock.getCookie();
-            }
+        // validate arguments
+        if ((current < 0) || (current >= recordTable.size())) {
+            throw new RecordNotFoundException(
+                "invalid record number " + recNo);
+        }
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout was "
+                + timeout);
+        }
+
+        // make sure record was not deleted
+        if (recordTable.isDeleted(current)) {
+            throw new RecordNotFoundException(
+                "deleted record number " + recNo);
+        }
+
+        // wait in line for the lock, for a while
+        final long deadline = System.currentTimeMillis() + timeout;
+        long cookie = lockManager.lock(current, timeout);
+
+        // follow the record, if compaction moved it meanwhile
+        for (int moved = resolve(recNo);
+            moved != current;
+            moved = resolve(recNo)) {
+            lockManager.unlock(current, cookie);
+            current = moved;
+            cookie = lockManager.lock(current, Math.max(
+                0,
+                deadline - System.currentTimeMillis()));
         }
+
+        return cookie;
     }
 
     /**
@@ -853,390 +1889,1735 @@ public final class Data implements DB {
     public void unlock(final int recNo, final long lockCookie)
         throws RecordNotFoundException {
 
+        // compaction may have moved the record
+        final int current = resolve(recNo);
+
         // validate arguments
-        if ((recNo < 0) || (recNo >= dataRecords.size())) {
+        if ((current < 0) || (current >= recordTable.size())) {
             throw new RecordNotFoundException(
                 "invalid record number " + recNo);
         }
 
-        final DataRecord dataRecord = (DataRecord) dataRecords
-            .get(recNo);
-
-        synchronized (dataRecord) {
-
-            // find the lock for this cookie
-            final Lock lock = dataRecord.findLock(lockCookie);
+        // hand the lock to the next thread in line, if any
+        lockManager.unlock(current, lockCookie);
+    }
 
-            /* remove this lock from the list of locks for this
-             * data record; we ignore the returned value
-             */
-            final boolean removed = dataRecord.removeLock(lock);
-            assert removed;
+    /**
+     * Renews the lease of the lock on a record, so that the lock
+     * does not expire. Updating or deleting the record renews
+     * the lease, too.
+     * Throws <code>SecurityException</code> if the record is not
+     * locked with <code>lockCookie</code>; for example, because
+     * the lock has expired.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param lockCookie
+     * the cookie that uniquely identifies a lock.
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist.
+     */
+    public void renewLock(final int recNo, final long lockCookie)
+        throws RecordNotFoundException {
+
+        // compaction may have moved the record
+        final int current = resolve(recNo);
+
+        // validate arguments
+        if ((current < 0) || (current >= recordTable.size())) {
+            throw new RecordNotFoundException(
+                "invalid record number " + recNo);
+        }
+
+        // start a new lease, if the lock has not expired
+        lockManager.checkLock(current, lockCookie);
+    }
+
+    /**
+     * Returns the number of locks that have expired since the
+     * database was opened, because their clients neither used
+     * nor renewed them within the lock lease.
+     *
+     * @return
+     * the number of expired locks.
+     */
+    public long getExpiredLocks() {
+
+        return lockManager.getExpiredLocks();
+    }
+
+    /**
+     * Compacts deleted records: live records at the end of the
+     * database file are moved into the slots of deleted records
+     * nearer its start, and the file is cut short after the last
+     * live record. So the file, and every scan of the records,
+     * grows with the live records rather than with all records
+     * ever deleted.
+     * <p>
+     * A moved record gets a new record number, but its old one
+     * keeps working until <code>create()</code> re-uses it, as
+     * with a deleted record. Each record is moved under its
+     * lock, while reads, finds, and changes of other records go
+     * on. A record that is locked is not moved, and the file is
+     * not cut short before it; a later compaction may move it.
+     * </p>
+     *
+     * @return
+     * the number of records cut from the end of the file.
+     *
+     * @throws IOException
+     * if the database file can not be changed.
+     */
+    public int compact() throws IOException {
+
+        synchronized (recordTable) {
+            buildIndexes();
+        }
+
+        /* Move one record at a time, so that create() need not
+         * wait for the whole compaction.
+         */
+        final List vacated = new ArrayList();
+        boolean moved;
+        do {
+            beginChange();
+            try {
+                synchronized (recordTable) {
+                    moved = moveLastRecord(vacated);
+                }
+            } finally {
+                endChange();
+            }
+        } while (moved);
+
+        beginChange();
+        try {
+            synchronized (recordTable) {
+                return truncate(vacated);
+            }
+        } finally {
+            endChange();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the records and indexes, so that the
+     * database can next be opened without decoding and indexing
+     * every record; for example, just before the server shuts
+     * down. Changes wait while the snapshot is written; reads,
+     * finds, and locks do not. The snapshot is deleted before the
+     * next change.
+     *
+     * @throws IOException
+     * if the snapshot can not be written.
+     *
+     * @throws IllegalStateException
+     * if the database was not opened with snapshots.
+     */
+    public void checkpoint() throws IOException {
+
+        if (null == snapshotFile) {
+            throw new IllegalStateException("snapshots are off");
+        }
+
+        // let the changes being made finish, and hold off others
+        boolean interrupted = false;
+        final long stamp;
+        synchronized (changeGate) {
+            while (checkpointing) {
+                interrupted |= awaitChangeGate();
+            }
+            checkpointing = true;
+            while (0 != changes) {
+                interrupted |= awaitChangeGate();
+            }
+            stamp = generation;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        boolean written = false;
+        try {
+
+            /* The snapshot must match the database file itself, so
+             * journaled writes are applied to it first.
+             */
+            recordFile.force();
+            if (null != journal) {
+                journal.drain();
+            }
+            writeGeneration(stamp);
+            writeSnapshot(stamp);
+            written = true;
+        } finally {
+            synchronized (changeGate) {
+                checkpointing = false;
+                snapshotCurrent = written;
+
+                // the next change starts a new generation
+                generationBumped = false;
+                changeGate.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the FieldDescriptors for the database.
+     * This method is provided for applications that need to
+     * retrieve the field names.
+     *
+     * @return
+     * an array of FieldDescriptors.
+     */
+    public FieldDescriptor[] getFieldDescriptors() {
+
+        // return a copy of the array object
+        return (FieldDescriptor[]) fieldDescriptors.clone();
+    }
+
+    /**
+     * Forces all changes to the database file (or to its
+     * journal) to the storage device.
+     * This is only needed for <code>StorageMode.MAPPED</code>, a
+     * journal or write-behind, with <code>ForcePolicy.PERIODIC</code> or
+     * <code>ForcePolicy.REQUEST</code>; otherwise changes are
+     * already forced as they are written.
+     *
+     * @throws IOException
+     * if the force fails.
+     */
+    public void force() throws IOException {
+
+        recordFile.force();
+    }
+
+    /**
+     * Closes the database: stops the background tasks, writes
+     * queued writes, applies the journal, forces the database
+     * file to disk, closes the files, and stops the worker
+     * threads. Changes made with <code>Durability.MEMORY</code>
+     * are on disk once <code>close()</code> returns.
+     * <p>
+     * Changes must have stopped before the database is closed;
+     * the database can not be used after it is closed.
+     * </p>
+     *
+     * @throws IOException
+     * if the database file can not be written or closed.
+     */
+    public void close() throws IOException {
+
+        if (null != backgroundTimer) {
+            backgroundTimer.cancel();
+        }
+        if (null != lockTimer) {
+            lockTimer.cancel();
+        }
+
+        /* The force writes the write-behind queue and commits the
+         * journal; closing then applies the journal, and each file
+         * of the stack closes the file below it.
+         */
+        try {
+            try {
+                recordFile.force();
+            } finally {
+                recordFile.close();
+            }
+        } finally {
+            if (null != workerPool) {
+                workerPool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Returns the position of a record in the database file.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the byte offset of the record's 'deleted' byte.
+     */
+    private long recordPosition(final int recNo) {
+
+        /* the 'deleted' byte is not included in the
+         * 'bytesPerRecord' value
+         */
+        return startOfData + ((long) recNo * (1 + bytesPerRecord));
+    }
+
+    /**
+     * Checks that field numbers, from the options, are fields of
+     * the database.
+     *
+     * @param fields
+     * the field numbers.
+     *
+     * @param what
+     * what the fields are for, for the exception message.
+     *
+     * @param fieldsPerRecord
+     * the number of fields per record.
+     *
+     * @throws IllegalArgumentException
+     * if a field number is not a field of the database.
+     */
+    private static void checkFields(
+        final int[] fields,
+        final String what,
+        final int fieldsPerRecord) {
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] >= fieldsPerRecord) {
+                throw new IllegalArgumentException(what
+                    + " was "
+                    + fields[i]
+                    + ", expected less than "
+                    + fieldsPerRecord);
+            }
+        }
+    }
+
+    /**
+     * Closes the files and stops the threads of a database that
+     * could not be opened.
+     *
+     * @param dataFile
+     * the database file as opened so far, or <code>null</code>.
+     *
+     * @param pool
+     * the worker threads, or <code>null</code>.
+     */
+    private static void abandon(
+        final RecordFile dataFile,
+        final WorkerPool pool) {
+
+        if (null != pool) {
+            pool.shutdown();
+        }
+        if (null != dataFile) {
+            try {
+                dataFile.close();
+            } catch (final IOException e) {
+                LOGGER.warning("unable to close the database file -- "
+                    + e);
+            }
+        }
+    }
+
+    /**
+     * Adds a record's values to the field and bitmap indexes.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param values
+     * the record's values.
+     */
+    private void addToFieldIndexes(
+        final int recNo,
+        final String[] values) {
+
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            if (null != fieldIndexes[i]) {
+                fieldIndexes[i].add(values[i], recNo);
+            }
+            if (null != bitmapIndexes[i]) {
+                bitmapIndexes[i].add(values[i], recNo);
+            }
+        }
+    }
+
+    /**
+     * Removes a record's values from the field and bitmap
+     * indexes.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param values
+     * the record's values.
+     */
+    private void removeFromFieldIndexes(
+        final int recNo,
+        final String[] values) {
+
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            if (null != fieldIndexes[i]) {
+                fieldIndexes[i].remove(values[i], recNo);
+            }
+            if (null != bitmapIndexes[i]) {
+                bitmapIndexes[i].remove(values[i], recNo);
+            }
+        }
+    }
+
+    /**
+     * Uses the indexes to find the records that may match the
+     * criteria. The bitmaps of every criterion with a bitmap
+     * index are combined; of the criteria with a prefix index,
+     * the one that matches the fewest records is used, if it
+     * matches fewer records than the bitmaps.
+     *
+     * @param criteria
+     * match criteria; <code>null</code> matches any value.
+     *
+     * @param blankFields
+     * the fields that must be blank, by field number.
+     *
+     * @return
+     * the record numbers that may match, in ascending order;
+     * or <code>null</code> if no index can help, so every
+     * record must be examined.
+     */
+    private int[] findCandidates(
+        final String[] criteria,
+        final int[] blankFields) {
+
+        // AND the bitmaps together
+        BitSet bitmap = null;
+        for (int i = 0; (i < criteria.length)
+            && (i < bitmapIndexes.length); i++) {
+
+            // an empty criterion matches every record
+            if ((null == bitmapIndexes[i])
+                || (null == criteria[i])
+                || (0 == criteria[i].length())) {
+                continue;
+            }
+
+            final BitSet recNos = bitmapIndexes[i].find(criteria[i]);
+            if (null == bitmap) {
+                bitmap = recNos;
+            } else {
+                bitmap.and(recNos);
+            }
+        }
+        for (int i = 0; i < blankFields.length; i++) {
+            if (null != bitmapIndexes[blankFields[i]]) {
+                final BitSet recNos = bitmapIndexes[blankFields[i]]
+                    .findBlank();
+                if (null == bitmap) {
+                    bitmap = recNos;
+                } else {
+                    bitmap.and(recNos);
+                }
+            }
+        }
+
+        FieldIndex best = null;
+        String bestPrefix = null;
+        int bestCount = Integer.MAX_VALUE;
+
+        for (int i = 0; (i < criteria.length)
+            && (i < fieldIndexes.length); i++) {
+
+            // an empty criterion matches every record
+            if ((null == fieldIndexes[i])
+                || (null == criteria[i])
+                || (0 == criteria[i].length())) {
+                continue;
+            }
+
+            final int count = fieldIndexes[i].count(criteria[i]);
+            if (count < bestCount) {
+                best = fieldIndexes[i];
+                bestPrefix = criteria[i];
+                bestCount = count;
+            }
+        }
+
+        if (null == bitmap) {
+            return (null == best)
+                ? null
+                : best.find(bestPrefix);
+        }
+
+        // examine the records in both the bitmap and the prefix index
+        if ((null != best) && (bestCount < bitmap.cardinality())) {
+            final int[] recNos = best.find(bestPrefix);
+            int count = 0;
+            for (int i = 0; i < recNos.length; i++) {
+                if (bitmap.get(recNos[i])) {
+                    recNos[count++] = recNos[i];
+                }
+            }
+
+            final int[] candidates = new int[count];
+            System.arraycopy(recNos, 0, candidates, 0, count);
+
+            return candidates;
+        }
+
+        final int[] candidates = new int[bitmap.cardinality()];
+        for (int i = 0, recNo = bitmap.nextSetBit(0); recNo >= 0;
+            recNo = bitmap.nextSetBit(recNo + 1)) {
+            candidates[i++] = recNo;
+        }
+
+        return candidates;
+    }
+
+    /**
+     * Examines a range of records, or of candidate records, for
+     * matches.
+     *
+     * @param candidates
+     * the record numbers to examine; or <code>null</code> to
+     * examine record numbers directly.
+     *
+     * @param fields
+     * the field each matcher tests, by field number.
+     *
+     * @param matchers
+     * the matchers; a record matches if every matcher does.
+     *
+     * @param first
+     * the index of the first record (or candidate) to examine.
+     *
+     * @param last
+     * the index after the last record (or candidate) to examine.
+     *
+     * @param matches
+     * the list to add the matching record numbers to, in
+     * ascending order.
+     */
+    private void findMatches(
+        final int[] candidates,
+        final int[] fields,
+        final PrefixMatcher[] matchers,
+        final int first,
+        final int last,
+        final List matches) {
+
+        for (int n = first; n < last; n++) {
+
+            final int recNo = (null == candidates)
+                ? n
+                : candidates[n];
+
+            // test each value of one version of the record
+            if (recordTable.matches(recNo, fields, matchers)) {
+                matches.add(new Integer(recNo));
+            }
+        }
+    }
+
+    /**
+     * Builds the list of deleted records and the key index, by
+     * examining every record once, unless they are already
+     * built. They are built when first needed, rather than when
+     * the database is opened, so a paged table is not read
+     * before it must be.
+     * The caller must hold the <code>recordTable</code> monitor.
+     */
+    private void buildIndexes() {
+
+        if (null != freeRecords) {
+            return;
+        }
+
+        freeRecords = new TreeSet();
+        for (int recNo = 0; recNo < recordTable.size(); recNo++) {
+            if (recordTable.isDeleted(recNo)) {
+                freeRecords.add(new Integer(recNo));
+            } else {
+                keyIndex.put(keyIndex.keyOf(recordTable, recNo), recNo);
+            }
+        }
+    }
+
+    /**
+     * Returns the current record number of a record, which
+     * compaction may have moved.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the current record number.
+     */
+    private int resolve(final int recNo) {
+
+        // nothing to look up until a record has been moved
+        if (!recordsMoved) {
+            return recNo;
+        }
+
+        synchronized (forwards) {
+            final Integer moved = (Integer) forwards.get(new Integer(
+                recNo));
+
+            return (null == moved)
+                ? recNo
+                : moved.intValue();
+        }
+    }
+
+    /**
+     * Follows a record that compaction moved after its record
+     * number was resolved. Compaction forwards the old record
+     * number before it deletes the old slot, or cuts it off the
+     * end of the table, so a record found deleted or past the end
+     * is resolved again; it is only gone if it is still gone
+     * where its record number leads.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param current
+     * the record number <code>recNo</code> was resolved to.
+     *
+     * @return
+     * the current record number.
+     */
+    private int follow(final int recNo, final int current) {
+
+        int followed = current;
+        while ((followed >= 0)
+            && ((followed >= recordTable.size())
+                || recordTable.isDeleted(followed))) {
+            final int moved = resolve(recNo);
+            if (moved == followed) {
+                break;
+            }
+            followed = moved;
+        }
+
+        return followed;
+    }
+
+    /**
+     * Records that a record has moved, so that its old record
+     * number, and any it had before, mean its new one. The new
+     * record number is re-used.
+     *
+     * @param from
+     * the old record number; 0-based.
+     *
+     * @param to
+     * the new record number; 0-based.
+     */
+    private void forward(final int from, final int to) {
+
+        final Integer oldRecNo = new Integer(from);
+        final Integer newRecNo = new Integer(to);
+
+        synchronized (forwards) {
+            forget(newRecNo);
+
+            // earlier record numbers of the record move with it
+            List oldRecNos = (List) arrivals.remove(oldRecNo);
+            if (null == oldRecNos) {
+                oldRecNos = new ArrayList();
+            }
+            for (int i = 0; i < oldRecNos.size(); i++) {
+                forwards.put(oldRecNos.get(i), newRecNo);
+            }
+
+            oldRecNos.add(oldRecNo);
+            forwards.put(oldRecNo, newRecNo);
+            arrivals.put(newRecNo, oldRecNos);
+
+            recordsMoved = true;
+        }
+    }
+
+    /**
+     * Forgets what a record number meant, since it is re-used
+     * for another record: it no longer means the record moved
+     * from it, and old record numbers no longer mean the record
+     * that was last there.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    private void reuse(final int recNo) {
+
+        if (!recordsMoved) {
+            return;
+        }
+
+        synchronized (forwards) {
+            forget(new Integer(recNo));
+        }
+    }
+
+    /**
+     * Forgets what a record number meant. The caller must hold
+     * the <code>forwards</code> monitor.
+     *
+     * @param recNo
+     * the record number.
+     */
+    private void forget(final Integer recNo) {
+
+        // the record number no longer means the record moved away
+        final Integer moved = (Integer) forwards.remove(recNo);
+        if (null != moved) {
+            final List oldRecNos = (List) arrivals.get(moved);
+            oldRecNos.remove(recNo);
+            if (oldRecNos.isEmpty()) {
+                arrivals.remove(moved);
+            }
+        }
+
+        // old record numbers no longer mean the record number
+        final List oldRecNos = (List) arrivals.remove(recNo);
+        if (null != oldRecNos) {
+            for (int i = 0; i < oldRecNos.size(); i++) {
+                forwards.remove(oldRecNos.get(i));
+            }
+        }
+    }
+
+    /**
+     * Moves the last live record into the lowest free slot, if
+     * that slot comes before it and neither is locked.
+     * The record is written to its new slot before it is deleted
+     * from its old one, so a failure in between leaves it in
+     * both slots rather than in neither.
+     * The caller must hold the <code>recordTable</code> monitor.
+     *
+     * @param vacated
+     * the list to add the old record number to, as an
+     * <code>Integer</code>.
+     *
+     * @return
+     * 'true' if a record was moved, else 'false'.
+     *
+     * @throws IOException
+     * if the database file can not be written.
+     */
+    private boolean moveLastRecord(final List vacated)
+        throws IOException {
+
+        if (freeRecords.isEmpty()) {
+            return false;
+        }
+
+        int from = recordTable.size() - 1;
+        while ((from >= 0) && recordTable.isDeleted(from)) {
+            from--;
+        }
+
+        final Integer lowest = (Integer) freeRecords.first();
+        final int to = lowest.intValue();
+        if (to > from) {
+            return false;
+        }
+
+        // nobody may change either slot while the record moves
+        final long fromCookie;
+        final long toCookie;
+        try {
+            fromCookie = lockManager.tryLock(from);
+        } catch (final RecordLockedException e) {
+            return false;
+        }
+        try {
+            toCookie = lockManager.tryLock(to);
+        } catch (final RecordLockedException e) {
+            lockManager.unlock(from, fromCookie);
+            return false;
+        }
+
+        try {
+            final String[] values = recordTable.getValues(from);
+
+            writeRecord(
+                to,
+                false,
+                values,
+                defaultDurability);
+            freeRecords.remove(lowest);
+
+            // the record is now in both slots
+            recordTable.setValues(to, values);
+            recordTable.setDeleted(to, false);
+            addToFieldIndexes(to, values);
+            final Object key = keyIndex.keyOf(values);
+            keyIndex.remove(key, from);
+            keyIndex.put(key, to);
+
+            /* The old record number now means the new slot; this
+             * is published before the old slot is deleted, so a
+             * reader that finds the old slot deleted can follow
+             * the record.
+             */
+            forward(from, to);
+
+            try {
+                writeDeleted(from, true, defaultDurability);
+            } finally {
+                recordTable.setDeleted(from, true);
+                removeFromFieldIndexes(from, values);
+                vacated.add(new Integer(from));
+            }
+
+            return true;
+        } finally {
+            lockManager.unlock(to, toCookie);
+            lockManager.unlock(from, fromCookie);
+        }
+    }
+
+    /**
+     * Cuts the database file short after the last live record,
+     * or after the last deleted record that is still locked.
+     * The caller must hold the <code>recordTable</code> monitor.
+     *
+     * @param vacated
+     * the record numbers of moved records' old slots, which
+     * <code>create()</code> may re-use unless they are cut off.
+     *
+     * @return
+     * the number of records cut from the end of the file.
+     *
+     * @throws IOException
+     * if the database file can not be changed.
+     */
+    private int truncate(final List vacated) throws IOException {
+
+        final int size = recordTable.size();
+        int newSize = size;
+        int kept = size;
+
+        // a deleted record that is locked is not cut off
+        final List cookies = new ArrayList();
+        try {
+            while ((newSize > 0) && recordTable.isDeleted(newSize - 1)) {
+                try {
+                    cookies.add(new Long(lockManager.tryLock(
+                        newSize - 1)));
+                } catch (final RecordLockedException e) {
+                    break;
+                }
+                newSize--;
+            }
+
+            if (newSize < size) {
+                recordFile.setLength(recordPosition(newSize));
+                recordTable.setSize(newSize);
+                kept = newSize;
+            }
+        } finally {
+            for (int i = 0; i < cookies.size(); i++) {
+                lockManager.unlock(
+                    size - 1 - i,
+                    ((Long) cookies.get(i)).longValue());
+            }
+
+            // the free slots that are left
+            freeRecords.addAll(vacated);
+            freeRecords.tailSet(new Integer(kept)).clear();
+        }
+
+        return size - kept;
+    }
+
+    /**
+     * Write a data record to disk.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param deleted
+     * 'true' if the record is deleted, else 'false'.
+     *
+     * @param values
+     * the array of data values for the record.
+     *
+     * @param durability
+     * how far the record must go before this returns.
+     *
+     * @throws IOException
+     * if a RecordFile operation fails.
+     */
+    private void writeRecord(
+        final int recNo,
+        final boolean deleted,
+        final String[] values,
+        final Durability durability) throws IOException {
+
+        /* Build the whole record first and write it at once; a
+         * journal then holds the record as a single entry, so it
+         * is replayed all or nothing.
+         */
+        final byte[] recordBytes = encoder.buffer();
+
+        // the 'deleted' byte
+        recordBytes[0] = deleted
+            ? DELETED_RECORD
+            : VALID_RECORD;
+
+        // the data values
+        encoder.encode(values, recordBytes, 1);
+
+        // write the record to the file
+        recordFile.write(
+            recordPosition(recNo),
+            recordBytes,
+            0,
+            recordBytes.length);
+
+        sync(durability);
+    }
+
+    /**
+     * Writes the fields of a data record that have changed. Only
+     * the bytes from the first changed byte to the last one are
+     * written, in a single write, so a journal replays them all
+     * or nothing; if no byte changed, nothing is written.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param oldValues
+     * the array of data values in the file.
+     *
+     * @param values
+     * the new array of data values for the record.
+     *
+     * @param durability
+     * how far the record must go before this returns.
+     *
+     * @throws IOException
+     * if a RecordFile operation fails.
+     */
+    private void writeFields(
+        final int recNo,
+        final String[] oldValues,
+        final String[] values,
+        final Durability durability) throws IOException {
+
+        // the 'deleted' byte comes before the data values
+        final byte[] oldBytes = encoder.otherBuffer();
+        encoder.encode(oldValues, oldBytes, 1);
+        final byte[] newBytes = encoder.buffer();
+        encoder.encode(values, newBytes, 1);
+
+        // find the changed bytes
+        final int end = 1 + bytesPerRecord;
+        int first = 1;
+        while ((first < end) && (oldBytes[first] == newBytes[first])) {
+            first++;
+        }
+        if (first == end) {
+            return;
+        }
+        int last = end - 1;
+        while (oldBytes[last] == newBytes[last]) {
+            last--;
+        }
+
+        recordFile.write(
+            recordPosition(recNo) + first,
+            newBytes,
+            first,
+            last + 1 - first);
+
+        sync(durability);
+    }
+
+    /**
+     * Writes the 'deleted' byte of a data record, and nothing
+     * else.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param deleted
+     * 'true' if the record is deleted, else 'false'.
+     *
+     * @param durability
+     * how far the record must go before this returns.
+     *
+     * @throws IOException
+     * if a RecordFile operation fails.
+     */
+    private void writeDeleted(
+        final int recNo,
+        final boolean deleted,
+        final Durability durability) throws IOException {
+
+        final byte[] recordBytes = encoder.buffer();
+        recordBytes[0] = deleted
+            ? DELETED_RECORD
+            : VALID_RECORD;
+
+        recordFile.write(
+            recordPosition(recNo),
+            recordBytes,
+            0,
+            1);
+
+        sync(durability);
+    }
+
+    /**
+     * Waits until changes written so far have gone as far as
+     * asked towards the storage device. Without write-behind,
+     * a change is in the file as soon as it is written.
+     *
+     * @param durability
+     * how far the changes must go.
+     *
+     * @throws IOException
+     * if a RecordFile operation fails.
+     */
+    private void sync(final Durability durability) throws IOException {
+
+        if (Durability.FORCE == durability) {
+            recordFile.force();
+        } else if ((Durability.OS_BUFFER == durability)
+            && (null != writeBehind)) {
+            writeBehind.flush();
+        }
+    }
+
+    /**
+     * Waits to be notified on <code>changeGate</code>. The caller
+     * must hold the <code>changeGate</code> monitor.
+     *
+     * @return
+     * 'true' if the current thread was interrupted, else
+     * 'false'.
+     */
+    private boolean awaitChangeGate() {
+
+        try {
+            changeGate.wait();
+        } catch (final InterruptedException e) {
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Starts a change to the database, once no checkpoint is
+     * being written, moves the generation on, and deletes the
+     * snapshot, which no longer matches. Every change ends with
+     * <code>endChange()</code>.
+     */
+    private void beginChange() {
+
+        /* Without snapshots, changes need not be counted, but a
+         * snapshot written by another Data must no longer match.
+         */
+        if (null == snapshotFile) {
+            if (!generationBumped) {
+                synchronized (changeGate) {
+                    if (!generationBumped) {
+                        bumpGeneration();
+                    }
+                }
+            }
+            return;
+        }
 
-            // notify exactly one (or zero) blocked threads
-            dataRecord.notify();
+        boolean interrupted = false;
+        synchronized (changeGate) {
+            while (checkpointing) {
+                interrupted |= awaitChangeGate();
+            }
+            if (!generationBumped) {
+                bumpGeneration();
+            }
+            if (snapshotCurrent) {
+                if (!snapshotFile.delete()) {
+                    LOGGER.warning("unable to delete snapshot "
+                        + snapshotFile);
+                }
+                snapshotCurrent = false;
+            }
+            changes++;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
     /**
-     * Returns the FieldDescriptors for the database.
-     * This method is provided for applications that need to
-     * retrieve the field names.
-     *
-     * @return
-     * an array of FieldDescriptors.
+     * Ends a change started by <code>beginChange()</code>.
      */
-    public FieldDescriptor[] getFieldDescriptors() {
+    private void endChange() {
 
-        // return a copy of the array object
-        return (FieldDescriptor[]) fieldDescriptors.clone();
+        if (null == snapshotFile) {
+            return;
+        }
+
+        synchronized (changeGate) {
+            changes--;
+            if (0 == changes) {
+                changeGate.notifyAll();
+            }
+        }
     }
 
     /**
-     * Write a data record to disk.
-     *
-     * @param recNo
-     * the record number; 0-based.
+     * Moves the generation of the database file on, once for the
+     * changes since it was opened or last checkpointed, so that
+     * no snapshot written before them matches it. Without
+     * snapshots, the generation is only marked as unknown, if
+     * there is one. Without checksums, a checksum file written by
+     * another Data would no longer match the records, so it is
+     * deleted, and written again from the records when the
+     * database is next opened with checksums. The caller must
+     * hold <code>changeGate</code>.
+     */
+    private void bumpGeneration() {
+
+        if ((null != uncheckedFile)
+            && uncheckedFile.exists()
+            && !uncheckedFile.delete()) {
+            LOGGER.warning("unable to delete checksums "
+                + uncheckedFile);
+        }
+
+        try {
+            if (null != snapshotFile) {
+                generation++;
+                writeGeneration(generation);
+            } else if (generationFile.exists()) {
+                writeGeneration(NO_GENERATION);
+            }
+        } catch (final IOException e) {
+            LOGGER.warning("unable to write generation "
+                + generationFile + " -- " + e);
+
+            // without a generation, no snapshot matches
+            generationFile.delete();
+        }
+        generationBumped = true;
+    }
+
+    /**
+     * Writes the generation of the database file, and forces it
+     * to the disk before any change that it stamps.
      *
-     * @param dataRecord
-     * reference to a DataRecord object.
+     * @param value
+     * the generation.
      *
      * @throws IOException
-     * if a RandomAccessFile operation fails.
+     * if the generation can not be written.
      */
-    private void writeRecord(
-        final int recNo,
-        final DataRecord dataRecord) throws IOException {
+    private void writeGeneration(final long value) throws IOException {
 
-        /* calculate the record position; the 'deleted' byte is
-         * not included in the 'bytesPerRecord' value
-         */
-        final long position = startOfData
-            + (recNo * (1 + bytesPerRecord));
+        final FileOutputStream out = new FileOutputStream(
+            generationFile);
+        try {
+            final ByteArrayOutputStream bytes =
+                new ByteArrayOutputStream();
+            new DataOutputStream(bytes).writeLong(value);
+            bytes.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
 
-        // seek to the record position
-        randomAccessFile.seek(position);
+    /**
+     * Reads the generation of the database file.
+     *
+     * @return
+     * the generation; or <code>NO_GENERATION</code> if it is
+     * unknown.
+     */
+    private long readGeneration() {
 
-        // write the 'deleted' byte
-        randomAccessFile.writeByte(dataRecord.isDeleted()
-            ? DELETED_RECORD
-            : VALID_RECORD);
+        if (!generationFile.exists()) {
+            return NO_GENERATION;
+        }
 
-        // write the data values
+        try {
+            final DataInputStream in = new DataInputStream(
+                new FileInputStream(generationFile));
+            try {
+                return in.readLong();
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            LOGGER.warning("unable to read generation "
+                + generationFile + " -- " + e);
+            return NO_GENERATION;
+        }
+    }
 
-        final String[] values = dataRecord.getValues();
+    /**
+     * Writes the records and indexes to the snapshot file. A new
+     * snapshot is written to a file of its own and then renamed,
+     * so a failure leaves no partial snapshot behind. The caller
+     * must make sure that no change is made meanwhile.
+     *
+     * @param stamp
+     * the generation of the database file.
+     *
+     * @throws IOException
+     * if the snapshot can not be written.
+     */
+    private void writeSnapshot(final long stamp) throws IOException {
 
-        for (int i = 0; i < values.length; i++) {
+        /* The indexes, by field: whether the field has a prefix
+         * index, then the index; the same for a bitmap index.
+         */
+        final ByteArrayOutputStream indexBytes =
+            new ByteArrayOutputStream();
+        final DataOutputStream indexOut = new DataOutputStream(
+            indexBytes);
+        for (int i = 0; i < fieldIndexes.length; i++) {
+            indexOut.writeBoolean(null != fieldIndexes[i]);
+            if (null != fieldIndexes[i]) {
+                fieldIndexes[i].writeTo(indexOut);
+            }
+            indexOut.writeBoolean(null != bitmapIndexes[i]);
+            if (null != bitmapIndexes[i]) {
+                bitmapIndexes[i].writeTo(indexOut);
+            }
+        }
+        indexOut.close();
+
+        final File newFile = new File(snapshotFile.getPath() + ".new");
+        final CRC32 crc = new CRC32();
+        final DataOutputStream out = new DataOutputStream(
+            new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(newFile)),
+                crc));
+        try {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+
+            // the snapshot is only good for this generation
+            out.writeLong(recordFile.length());
+            out.writeLong(stamp);
+            out.writeLong(sampleChecksum());
+
+            final FieldDescriptor[] fields = fieldDescriptors;
+            out.writeInt(fields.length);
+            for (int i = 0; i < fields.length; i++) {
+                out.writeInt(fields[i].getDataLength());
+            }
 
-            // fill data byte array with spaces
-            Arrays.fill(
-                dataBytes,
-                (byte) ' ');
+            ((ColumnarRecordTable) recordTable).writeTo(out);
+            out.writeInt(indexBytes.size());
+            indexBytes.writeTo(out);
 
-            // copy String value to data byte array
-            System.arraycopy(
-                values[i].getBytes(),
-                0,
-                dataBytes,
-                0,
-                values[i].length());
+            // the checksum covers everything before it
+            out.writeLong(crc.getValue());
+        } finally {
+            out.close();
+        }
 
-            // write data byte array to file
-            randomAccessFile.write(
-                dataBytes,
-                0,
-                fieldDescriptors[i].getDataLength());
+        snapshotFile.delete();
+        if (!newFile.renameTo(snapshotFile)) {
+            throw new IOException("unable to rename " + newFile
+                + " to " + snapshotFile);
         }
     }
 
     /**
-     * The <code>FieldDescriptor</code> class encapsulates the
-     * descriptions of individual database fields.
+     * Returns a CRC-32 of the database file header and of its
+     * last bytes, where appends, compaction and the last records
+     * change it; a cheap check that a snapshot still matches the
+     * contents of the file.
+     *
+     * @return
+     * the checksum.
+     *
+     * @throws IOException
+     * if the database file can not be read.
      */
-    public final class FieldDescriptor {
+    private long sampleChecksum() throws IOException {
+
+        final long length = recordFile.length();
+        final long tail = Math.max(
+            startOfData,
+            length - SNAPSHOT_SAMPLE_LENGTH);
+        final byte[] bytes = new byte[(int) Math.min(length, startOfData)
+            + (int) (length - tail)];
+        final int header = (int) Math.min(length, startOfData);
+        if ((recordFile.read(0, bytes, 0, header) < header)
+            || (recordFile.read(
+                tail,
+                bytes,
+                header,
+                bytes.length - header) < bytes.length - header)) {
+            throw new IOException("database file ended early");
+        }
 
-        /** The field name. */
-        private final String fieldName;
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
 
-        /** The field length, in bytes. */
-        private final short dataLength;
+        return crc.getValue();
+    }
 
-        /**
-         * Constructs an immutable <code>FieldDescriptor</code>.
-         *
-         * @param newName
-         * field name.
-         *
-         * @param newLength
-         * field length, in bytes.
-         */
-        FieldDescriptor(
-            final String newName,
-            final short newLength) {
+    /**
+     * Reads the records and indexes from the snapshot file, if
+     * it matches the database file and is intact. The indexes
+     * replace the empty ones.
+     *
+     * @param fieldLengths
+     * the length of each field, in bytes.
+     *
+     * @return
+     * the records; or <code>null</code> if the snapshot can not
+     * be used, so that the database file must be read.
+     */
+    private RecordTable readSnapshot(final int[] fieldLengths) {
 
-            fieldName = newName;
-            dataLength = newLength;
+        if (!snapshotFile.exists()) {
+            return null;
         }
 
-        /**
-         * Returns the field name.
-         *
-         * @return
-         * field name.
-         */
-        public String getFieldName() {
+        final CRC32 crc = new CRC32();
+        try {
+            final DataInputStream in = new DataInputStream(
+                new CheckedInputStream(
+                    new BufferedInputStream(new FileInputStream(
+                        snapshotFile)),
+                    crc));
+            try {
+                if ((SNAPSHOT_MAGIC != in.readInt())
+                    || (SNAPSHOT_VERSION != in.readInt())) {
+                    return ignoreSnapshot("unknown format");
+                }
 
-            return fieldName;
-        }
+                /* The database file must not have changed since;
+                 * an unknown generation matches no snapshot. A
+                 * generation file left behind by a program that
+                 * does not keep it is caught by the sample of the
+                 * contents.
+                 */
+                final long length = in.readLong();
+                final long stamp = in.readLong();
+                final long sample = in.readLong();
+                if ((recordFile.length() != length)
+                    || (NO_GENERATION == stamp)
+                    || (readGeneration() != stamp)
+                    || (sampleChecksum() != sample)) {
+                    return ignoreSnapshot("database file changed");
+                }
+                if (fieldLengths.length != in.readInt()) {
+                    return ignoreSnapshot("fields changed");
+                }
+                for (int i = 0; i < fieldLengths.length; i++) {
+                    if (fieldLengths[i] != in.readInt()) {
+                        return ignoreSnapshot("fields changed");
+                    }
+                }
 
-        /**
-         * Returns the field length, in bytes.
-         *
-         * @return
-         * field length, in bytes.
-         */
-        public short getDataLength() {
+                /* Nothing read is believed until the checksum is
+                 * checked, so nothing larger than the snapshot
+                 * itself is allocated.
+                 */
+                final ColumnarRecordTable table = ColumnarRecordTable
+                    .readFrom(in, fieldLengths, snapshotFile.length());
+                final int indexLength = in.readInt();
+                if ((indexLength < 0)
+                    || (indexLength > snapshotFile.length())) {
+                    return ignoreSnapshot("index length was "
+                        + indexLength);
+                }
+                final byte[] indexBytes = new byte[indexLength];
+                in.readFully(indexBytes);
 
-            return dataLength;
+                final long checksum = crc.getValue();
+                if (checksum != in.readLong()) {
+                    return ignoreSnapshot("checksum mismatch");
+                }
+
+                // the same fields must be indexed
+                final DataInputStream indexIn = new DataInputStream(
+                    new ByteArrayInputStream(indexBytes));
+                final FieldIndex[] newFieldIndexes =
+                    new FieldIndex[fieldLengths.length];
+                final BitmapIndex[] newBitmapIndexes =
+                    new BitmapIndex[fieldLengths.length];
+                for (int i = 0; i < fieldLengths.length; i++) {
+                    if ((null != fieldIndexes[i])
+                        != indexIn.readBoolean()) {
+                        return ignoreSnapshot("indexes changed");
+                    }
+                    if (null != fieldIndexes[i]) {
+                        newFieldIndexes[i] = FieldIndex.readFrom(
+                            indexIn,
+                            fieldLengths[i]);
+                    }
+                    if ((null != bitmapIndexes[i])
+                        != indexIn.readBoolean()) {
+                        return ignoreSnapshot("indexes changed");
+                    }
+                    if (null != bitmapIndexes[i]) {
+                        newBitmapIndexes[i] = BitmapIndex.readFrom(
+                            indexIn,
+                            fieldLengths[i]);
+                    }
+                }
+                System.arraycopy(
+                    newFieldIndexes,
+                    0,
+                    fieldIndexes,
+                    0,
+                    fieldIndexes.length);
+                System.arraycopy(
+                    newBitmapIndexes,
+                    0,
+                    bitmapIndexes,
+                    0,
+                    bitmapIndexes.length);
+
+                return table;
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            return ignoreSnapshot(e.toString());
         }
     }
 
     /**
-     * The <code>DataRecord</code> class encapsulates the
-     * state of data records.
+     * Deletes a snapshot that can not be used.
+     *
+     * @param reason
+     * why the snapshot can not be used.
+     *
+     * @return
+     * <code>null</code>, as no records were read.
      */
-    private final class DataRecord {
+    private RecordTable ignoreSnapshot(final String reason) {
 
-        /** The 'deleted' status for a record. */
-        private boolean deleted;
+        LOGGER.info("snapshot not used -- " + reason);
+        snapshotFile.delete();
 
-        /** The array of data values for a record. */
-        private String[] values;
+        return null;
+    }
 
-        /** List of locks for this record. */
-        private List locks = new ArrayList();
+    /**
+     * The <code>LoadTask</code> class reads a range of records
+     * into the record table.
+     */
+    private final class LoadTask implements Runnable {
 
-        /**
-         * Constructs a <code>DataRecord</code>.
-         *
-         * @param newDeleted
-         * 'true' if the data record was deleted, else 'false'.
-         *
-         * @param newValues
-         * the array of data values for a record.
-         */
-        DataRecord(
-            final boolean newDeleted,
-            final String[] newValues) {
+        /** The first record number in the range. */
+        private final int first;
 
-            deleted = newDeleted;
-            values = newValues;
-        }
+        /** The record number after the range. */
+        private final int last;
+
+        /** <code>true</code> to store the records. */
+        private final boolean store;
 
         /**
-         * Sets the 'deleted' status for a record.
-         *
-         * @param newDeleted
-         * 'true' if the record was deleted, else 'false'.
+         * Collects the record numbers of damaged records; or
+         * <code>null</code> to fail on a damaged record.
          */
-        void setDeleted(final boolean newDeleted) {
-
-            deleted = newDeleted;
-        }
+        private final List damaged;
 
         /**
-         * Returns the 'deleted' status for a record.
+         * Constructs a <code>LoadTask</code>.
          *
-         * @return
-         * 'true' if the record was deleted, else 'false'.
+         * @param newFirst
+         * the first record number in the range.
+         *
+         * @param newLast
+         * the record number after the range.
+         *
+         * @param newStore
+         * <code>true</code> to store the records in the record
+         * table.
+         *
+         * @param newDamaged
+         * collects the record numbers of records that do not match
+         * their checksums, which are then stored as deleted; or
+         * <code>null</code> to fail on such a record.
          */
-        boolean isDeleted() {
-
-            return deleted;
+        LoadTask(
+            final int newFirst,
+            final int newLast,
+            final boolean newStore,
+            final List newDamaged) {
+
+            first = newFirst;
+            last = newLast;
+            store = newStore;
+            damaged = newDamaged;
         }
 
         /**
-         * Sets the array of data values for a record.
+         * Reads the records, several at a time.
          *
-         * @param newValues
-         * the array of data values for a record.
+         * @throws IOExceptionOnReadException
+         * if the database file can not be read, or a record does
+         * not match its checksum.
          */
-        void setValues(final String[] newValues) {
+        public void run() {
+
+            final int recordLength = 1 + bytesPerRecord;
+            final byte[] recordBytes = new byte[Math.min(
+                RECORDS_PER_READ,
+                last - first)
+                * recordLength];
+
+            int recNo = first;
+            while (recNo < last) {
+
+                final int records = Math.min(
+                    RECORDS_PER_READ,
+                    last - recNo);
+                final int length = records * recordLength;
+                try {
+                    final int count = recordFile.read(
+                        recordPosition(recNo),
+                        recordBytes,
+                        0,
+                        length);
+                    if (count < length) {
+                        throw new EOFException("read "
+                            + count
+                            + " bytes, expected "
+                            + length);
+                    }
+                } catch (final IOException e) {
+                    throw new IOExceptionOnReadException(
+                        "record number " + recNo,
+                        e);
+                }
 
-            values = newValues;
+                // check and store each record
+                for (int i = 0; i < records; i++) {
+                    final int offset = i * recordLength;
+                    boolean deleted = VALID_RECORD != recordBytes[offset];
+                    if ((null != checksums)
+                        && !checksums.verify(
+                            recNo + i,
+                            recordBytes,
+                            offset)) {
+                        if (null != damaged) {
+                            damaged.add(new Integer(recNo + i));
+                            deleted = true;
+                        } else {
+                            throw new IOExceptionOnReadException(
+                                "record number " + (recNo + i),
+                                new IOException("record number "
+                                    + (recNo + i)
+                                    + " does not match its checksum;"
+                                    + " it may have been partly"
+                                    + " written"));
+                        }
+                    }
+                    if (store) {
+                        recordTable.set(
+                            recNo + i,
+                            deleted,
+                            recordBytes,
+                            offset + 1);
+                    }
+                }
+                recNo += records;
+            }
         }
+    }
 
-        /**
-         * Returns the array of data values for a record.
-         *
-         * @return values
-         * the array of data values for a record.
-         */
-        String[] getValues() {
+    /**
+     * The <code>FindTask</code> class examines a range of records
+     * for <code>find()</code>.
+     */
+    private final class FindTask implements Runnable {
 
-            return values;
-        }
+        /** The record numbers to examine, or <code>null</code>. */
+        private final int[] candidates;
 
-        /**
-         * Adds a <code>Lock</code> to the list of locks for this
-         * data record.
-         *
-         * @param lock
-         * the <code>Lock</code> to add.
-         */
-        void addLock(final Lock lock) {
+        /** The field each matcher tests. */
+        private final int[] fields;
 
-            locks.add(lock);
-        }
+        /** The matchers. */
+        private final PrefixMatcher[] matchers;
+
+        /** The index of the first record to examine. */
+        private final int first;
+
+        /** The index after the last record to examine. */
+        private final int last;
+
+        /** The matching record numbers. */
+        private final List matches = new ArrayList();
 
         /**
-         * Removes a <code>Lock</code> from the list of locks for
-         * this record.
+         * Constructs a <code>FindTask</code>.
          *
-         * @param lock
-         * the <code>Lock</code> to remove.
+         * @param newCandidates
+         * the record numbers to examine; or <code>null</code> to
+         * examine record numbers directly.
          *
-         * @return
-         * <code>true</code> if the collection contained the
-         * specified element,
-         * else <code>false</code>.
+         * @param newFields
+         * the field each matcher tests, by field number.
+         *
+         * @param newMatchers
+         * the matchers; a record matches if every matcher does.
+         *
+         * @param newFirst
+         * the index of the first record to examine.
+         *
+         * @param newLast
+         * the index after the last record to examine.
          */
-        boolean removeLock(final Lock lock) {
-
-            return locks.remove(lock);
+        FindTask(
+            final int[] newCandidates,
+            final int[] newFields,
+            final PrefixMatcher[] newMatchers,
+            final int newFirst,
+            final int newLast) {
+
+            candidates = newCandidates;
+            fields = newFields;
+            matchers = newMatchers;
+            first = newFirst;
+            last = newLast;
         }
 
         /**
-         * Return an <code>Iterator</code> for
-         * <code>lockers</code>.
-         *
-         * @return
-         * an <code>Iterator</code> for <code>lockers</code>.
+         * Examines the records.
          */
-        Iterator getLockIterator() {
-
-            return locks.iterator();
+        public void run() {
+
+            findMatches(
+                candidates,
+                fields,
+                matchers,
+                first,
+                last,
+                matches);
         }
 
         /**
-         * Return the <code>Lock</code> associated with the
-         * specified lock cookie.
-         *
-         * @param lockCookie
-         * the lock cookie.
+         * Returns the matching record numbers.
          *
          * @return
-         * the <code>Lock</code> associated with the specified
-         * lock cookie.
+         * the matching record numbers, in ascending order.
          */
-        synchronized Lock findLock(final long lockCookie) {
-
-            // find the lock for this cookie
-            final Iterator iterator = locks.iterator();
-            while (iterator.hasNext()) {
+        List getMatches() {
 
-                final Lock lock = (Lock) iterator.next();
+            return matches;
+        }
+    }
 
-                // check the cookie
-                if (lockCookie == lock.getCookie()) {
+    /**
+     * The <code>ForceTask</code> class forces the database file
+     * to disk, for <code>ForcePolicy.PERIODIC</code>.
+     */
+    private final class ForceTask extends TimerTask {
 
-                    /* validate the thread; this is a sanity
-                     * check that could be removed to improve
-                     * performance
-                     */
-                    if (Thread.currentThread() != lock
-                        .getOwner()) {
-                        throw new SecurityException(
-                            "expected thread "
-                                + Thread
-                                    .currentThread()
-                                    .getName()
-                                + ", found "
-                                + lock.getOwner().getName());
-                    }
+        /**
+         * Forces the database file to disk.
+         */
+        public void run() {
 
-                    // matched and validated; return the 'Lock'
-                    return lock;
-                }
+            try {
+                recordFile.force();
+            } catch (final IOException e) {
+                LOGGER.warning("force failed -- " + e.toString());
             }
-            throw new SecurityException("lock cookie not found");
         }
     }
 
     /**
-     * The <code>Lock</code> class encapsulates the record
-     * locking object.
+     * The <code>ExpireLocksTask</code> class takes expired locks
+     * from their clients, when locks have a lease.
      */
-    private final class Lock {
+    private final class ExpireLocksTask extends TimerTask {
 
         /**
-         * The <code>Thread</code> that owns the lock.
-         *
-         * This will be <code>null</code> until a thread acquires
-         * the lock.
+         * Expires the locks whose lease has run out.
          */
-        private Thread owner;
+        public void run() {
 
-        /** The lock cookie. */
-        private final long cookie;
+            final int expired = lockManager.expireLocks();
+            if (0 != expired) {
+                LOGGER.warning(expired
+                    + " lock(s) expired; total "
+                    + lockManager.getExpiredLocks());
+            }
+        }
+    }
+
+    /**
+     * The <code>CompactTask</code> class compacts deleted records
+     * in the background, when asked to.
+     */
+    private final class CompactTask extends TimerTask {
 
         /**
-         * Hide the no-argument contructor.
-         * The no argument contructor should never be used.
+         * Compacts deleted records.
          */
-        private Lock() {
+        public void run() {
 
-            /* Keep the compiler happy by initializing all final
-             * instance variables -- even though this constructor
-             * is never used.
-             */
-            cookie = -1;
+            try {
+                final int compacted = compact();
+                if (0 != compacted) {
+                    LOGGER.info(compacted + " deleted record(s) compacted");
+                }
+            } catch (final IOException e) {
+                LOGGER.warning("compact failed -- " + e.toString());
+            }
         }
+    }
 
-        /**
-         * Constructs a <code>Lock</code>.
-         *
-         * @param newCookie
-         * the lock cookie.
-         */
-        Lock(final long newCookie) {
+    /**
+     * The <code>FieldDescriptor</code> class encapsulates the
+     * descriptions of individual database fields.
+     */
+    public final class FieldDescriptor {
 
-            cookie = newCookie;
-        }
+        /** The field name. */
+        private final String fieldName;
+
+        /** The field length, in bytes. */
+        private final short dataLength;
 
         /**
-         * Returns the lock cookie value.
-         * The cookie value is immutable.
+         * Constructs an immutable <code>FieldDescriptor</code>.
          *
-         * @return
-         * the lock cookie value.
+         * @param newName
+         * field name.
+         *
+         * @param newLength
+         * field length, in bytes.
          */
-        long getCookie() {
+        FieldDescriptor(
+            final String newName,
+            final short newLength) {
 
-            return cookie;
+            fieldName = newName;
+            dataLength = newLength;
         }
 
         /**
-         * Returns the <code>Thread</code> that owns the lock.
+         * Returns the field name.
          *
          * @return
-         * the <code>Thread</code> that owns the lock.
+         * field name.
          */
-        Thread getOwner() {
+        public String getFieldName() {
 
-            return owner;
+            return fieldName;
         }
 
         /**
-         * Sets the <code>Thread</code> that owns the lock.
+         * Returns the field length, in bytes.
          *
-         * @param newOwner
-         * the <code>Thread</code> that owns the lock.
+         * @return
+         * field length, in bytes.
          */
-        void setOwner(final Thread newOwner) {
+        public short getDataLength() {
 
-            owner = newOwner;
+            return dataLength;
         }
     }
 }
-
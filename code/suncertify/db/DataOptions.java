@@ -0,0 +1,858 @@
+/*
+ * @(#)DataOptions.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.util.Properties;
+import java.util.StringTokenizer;
+
+/**
+ * The <code>DataOptions</code> class collects the settings used
+ * when a <code>Data</code> object opens its database file.
+ * A newly constructed <code>DataOptions</code> describes the
+ * default behavior; the settings are read only by the
+ * <code>Data</code> constructor, so changing them later has no
+ * effect on an open database.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public final class DataOptions {
+
+    /** Property name for the storage mode. */
+    public static final String PROP_STORAGE = "suncertify.db.storage";
+
+    /** Property name for the force policy. */
+    public static final String PROP_FORCE = "suncertify.db.force";
+
+    /** Property name for the force interval, in milliseconds. */
+    public static final String PROP_FORCE_INTERVAL = "suncertify.db.force.interval";
+
+    /** Property name for the record layout. */
+    public static final String PROP_LAYOUT = "suncertify.db.layout";
+
+    /** Property name for journaling; "true" or "false". */
+    public static final String PROP_JOURNAL = "suncertify.db.journal";
+
+    /** Property name for the number of cached pages. */
+    public static final String PROP_CACHE_PAGES = "suncertify.db.cache.pages";
+
+    /** Property name for the number of threads for parallel work. */
+    public static final String PROP_THREADS = "suncertify.db.threads";
+
+    /**
+     * Property name for the key fields; field numbers separated
+     * by commas, such as "0,1".
+     */
+    public static final String PROP_KEY_FIELDS = "suncertify.db.key.fields";
+
+    /**
+     * Property name for the indexed fields; field numbers
+     * separated by commas, such as "0,1".
+     */
+    public static final String PROP_INDEX_FIELDS = "suncertify.db.index.fields";
+
+    /**
+     * Property name for the fields with a bitmap index; field
+     * numbers separated by commas, such as "1,5".
+     */
+    public static final String PROP_BITMAP_FIELDS = "suncertify.db.bitmap.fields";
+
+    /** Property name for the lock lease, in milliseconds. */
+    public static final String PROP_LOCK_LEASE = "suncertify.db.lock.lease";
+
+    /** Property name for the compaction interval, in milliseconds. */
+    public static final String PROP_COMPACT_INTERVAL = "suncertify.db.compact.interval";
+
+    /** Property name for snapshots; "true" or "false". */
+    public static final String PROP_SNAPSHOT = "suncertify.db.snapshot";
+
+    /** Property name for record checksums; "true" or "false". */
+    public static final String PROP_CHECKSUMS = "suncertify.db.checksums";
+
+    /** Property name for repairing damaged records; "true" or "false". */
+    public static final String PROP_REPAIR = "suncertify.db.repair";
+
+    /** Property name for the write-behind queue length, in writes. */
+    public static final String PROP_WRITE_BEHIND = "suncertify.db.write.behind";
+
+    /** Default force interval, in milliseconds. */
+    private static final long DEFAULT_FORCE_INTERVAL = 1000;
+
+    /** Default number of cached pages. */
+    private static final int DEFAULT_CACHE_PAGES = 256;
+
+    /** How the database file is accessed. */
+    private StorageMode storageMode = StorageMode.RANDOM_ACCESS;
+
+    /** When a mapped database file is forced to disk. */
+    private ForcePolicy forcePolicy = ForcePolicy.WRITE;
+
+    /** Interval for <code>ForcePolicy.PERIODIC</code>. */
+    private long forceInterval = DEFAULT_FORCE_INTERVAL;
+
+    /** How records are held in memory. */
+    private RecordLayout recordLayout = RecordLayout.OBJECTS;
+
+    /** <code>true</code> to write changes through a journal. */
+    private boolean journal;
+
+    /** Pages cached for <code>RecordLayout.PAGED</code>. */
+    private int cachePages = DEFAULT_CACHE_PAGES;
+
+    /** Threads used for work that is done in parallel. */
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    /** The fields that make up the primary key. */
+    private int[] keyFields = new int[] {
+        0,
+        1
+    };
+
+    /** The fields that have a prefix index. */
+    private int[] indexFields = new int[0];
+
+    /** The fields that have a bitmap index. */
+    private int[] bitmapFields = new int[0];
+
+    /** How long a lock lasts without use; <code>0</code> forever. */
+    private long lockLease;
+
+    /** How often deleted records are compacted; <code>0</code> never. */
+    private long compactInterval;
+
+    /** <code>true</code> to restart from snapshots. */
+    private boolean snapshot;
+
+    /** <code>true</code> to keep a checksum for each record. */
+    private boolean checksums;
+
+    /** <code>true</code> to delete records that fail their checksum. */
+    private boolean repair;
+
+    /** Writes the write-behind queue holds; <code>0</code> for none. */
+    private int writeBehind;
+
+    /**
+     * Constructs a <code>DataOptions</code> with the default
+     * settings.
+     */
+    public DataOptions() {
+
+        super();
+    }
+
+    /**
+     * Constructs a <code>DataOptions</code> from a set of
+     * properties. Properties that are not present keep their
+     * default settings.
+     *
+     * @param properties
+     * the properties; for example,
+     * <code>System.getProperties()</code>.
+     *
+     * @return
+     * the new <code>DataOptions</code>.
+     *
+     * @throws IllegalArgumentException
+     * if a property value is invalid.
+     */
+    public static DataOptions fromProperties(
+        final Properties properties) {
+
+        // validate arguments
+        if (null == properties) {
+            throw new NullPointerException("properties");
+        }
+
+        final DataOptions options = new DataOptions();
+
+        String s = properties.getProperty(PROP_STORAGE);
+        if (null != s) {
+            options.setStorageMode(StorageMode.parse(s));
+        }
+
+        s = properties.getProperty(PROP_FORCE);
+        if (null != s) {
+            options.setForcePolicy(ForcePolicy.parse(s));
+        }
+
+        s = properties.getProperty(PROP_FORCE_INTERVAL);
+        if (null != s) {
+            options.setForceInterval(Long.parseLong(s.trim()));
+        }
+
+        s = properties.getProperty(PROP_LAYOUT);
+        if (null != s) {
+            options.setRecordLayout(RecordLayout.parse(s));
+        }
+
+        s = properties.getProperty(PROP_JOURNAL);
+        if (null != s) {
+            options.setJournal(Boolean.valueOf(s.trim())
+                .booleanValue());
+        }
+
+        s = properties.getProperty(PROP_CACHE_PAGES);
+        if (null != s) {
+            options.setCachePages(Integer.parseInt(s.trim()));
+        }
+
+        s = properties.getProperty(PROP_THREADS);
+        if (null != s) {
+            options.setThreads(Integer.parseInt(s.trim()));
+        }
+
+        s = properties.getProperty(PROP_KEY_FIELDS);
+        if (null != s) {
+            options.setKeyFields(parseFields(s));
+        }
+
+        s = properties.getProperty(PROP_INDEX_FIELDS);
+        if (null != s) {
+            options.setIndexFields(parseFields(s));
+        }
+
+        s = properties.getProperty(PROP_BITMAP_FIELDS);
+        if (null != s) {
+            options.setBitmapFields(parseFields(s));
+        }
+
+        s = properties.getProperty(PROP_LOCK_LEASE);
+        if (null != s) {
+            options.setLockLease(Long.parseLong(s.trim()));
+        }
+
+        s = properties.getProperty(PROP_COMPACT_INTERVAL);
+        if (null != s) {
+            options.setCompactInterval(Long.parseLong(s.trim()));
+        }
+
+        s = properties.getProperty(PROP_SNAPSHOT);
+        if (null != s) {
+            options.setSnapshot(Boolean.valueOf(s.trim())
+                .booleanValue());
+        }
+
+        s = properties.getProperty(PROP_CHECKSUMS);
+        if (null != s) {
+            options.setChecksums(Boolean.valueOf(s.trim())
+                .booleanValue());
+        }
+
+        s = properties.getProperty(PROP_REPAIR);
+        if (null != s) {
+            options.setRepair(Boolean.valueOf(s.trim())
+                .booleanValue());
+        }
+
+        s = properties.getProperty(PROP_WRITE_BEHIND);
+        if (null != s) {
+            options.setWriteBehind(Integer.parseInt(s.trim()));
+        }
+
+        return options;
+    }
+
+    /**
+     * Returns the storage mode.
+     *
+     * @return
+     * the storage mode.
+     */
+    public StorageMode getStorageMode() {
+
+        return storageMode;
+    }
+
+    /**
+     * Sets the storage mode.
+     *
+     * @param newStorageMode
+     * the storage mode.
+     */
+    public void setStorageMode(final StorageMode newStorageMode) {
+
+        // validate arguments
+        if (null == newStorageMode) {
+            throw new NullPointerException("storageMode");
+        }
+
+        storageMode = newStorageMode;
+    }
+
+    /**
+     * Returns the force policy.
+     * The force policy applies to <code>StorageMode.MAPPED</code>,
+     * to the journal and to write-behind; otherwise
+     * <code>StorageMode.RANDOM_ACCESS</code> always writes
+     * synchronously.
+     *
+     * @return
+     * the force policy.
+     */
+    public ForcePolicy getForcePolicy() {
+
+        return forcePolicy;
+    }
+
+    /**
+     * Sets the force policy.
+     *
+     * @param newForcePolicy
+     * the force policy.
+     */
+    public void setForcePolicy(final ForcePolicy newForcePolicy) {
+
+        // validate arguments
+        if (null == newForcePolicy) {
+            throw new NullPointerException("forcePolicy");
+        }
+
+        forcePolicy = newForcePolicy;
+    }
+
+    /**
+     * Returns the interval between forces, for
+     * <code>ForcePolicy.PERIODIC</code>.
+     *
+     * @return
+     * the force interval, in milliseconds.
+     */
+    public long getForceInterval() {
+
+        return forceInterval;
+    }
+
+    /**
+     * Sets the interval between forces, for
+     * <code>ForcePolicy.PERIODIC</code>.
+     *
+     * @param newForceInterval
+     * the force interval, in milliseconds.
+     */
+    public void setForceInterval(final long newForceInterval) {
+
+        // validate arguments
+        if (newForceInterval <= 0) {
+            throw new IllegalArgumentException(
+                "force interval was " + newForceInterval);
+        }
+
+        forceInterval = newForceInterval;
+    }
+
+    /**
+     * Returns the record layout.
+     *
+     * @return
+     * the record layout.
+     */
+    public RecordLayout getRecordLayout() {
+
+        return recordLayout;
+    }
+
+    /**
+     * Sets the record layout.
+     *
+     * @param newRecordLayout
+     * the record layout.
+     */
+    public void setRecordLayout(final RecordLayout newRecordLayout) {
+
+        // validate arguments
+        if (null == newRecordLayout) {
+            throw new NullPointerException("recordLayout");
+        }
+
+        recordLayout = newRecordLayout;
+    }
+
+    /**
+     * Returns whether changes are written through a journal.
+     *
+     * @return
+     * <code>true</code> if changes are journaled.
+     */
+    public boolean isJournal() {
+
+        return journal;
+    }
+
+    /**
+     * Sets whether changes are written through a journal.
+     * <p>
+     * When journaling, each change is appended to a journal
+     * file (the database file name plus
+     * <code>".journal"</code>). Concurrent changes share one
+     * force of the journal (group commit), the database file is
+     * updated in the background, and the journal is replayed
+     * when the database is next opened. The force policy then
+     * decides when the journal is forced.
+     * </p>
+     *
+     * @param newJournal
+     * <code>true</code> to journal changes.
+     */
+    public void setJournal(final boolean newJournal) {
+
+        journal = newJournal;
+    }
+
+    /**
+     * Returns the number of pages cached, for
+     * <code>RecordLayout.PAGED</code>.
+     *
+     * @return
+     * the number of cached pages.
+     */
+    public int getCachePages() {
+
+        return cachePages;
+    }
+
+    /**
+     * Sets the number of pages cached, for
+     * <code>RecordLayout.PAGED</code>. This bounds the memory
+     * used for records, whatever the size of the database file;
+     * the least recently used page is evicted when the cache is
+     * full.
+     *
+     * @param newCachePages
+     * the number of cached pages.
+     */
+    public void setCachePages(final int newCachePages) {
+
+        // validate arguments
+        if (newCachePages <= 0) {
+            throw new IllegalArgumentException(
+                "cache pages was " + newCachePages);
+        }
+
+        cachePages = newCachePages;
+    }
+
+    /**
+     * Returns the number of threads used for work that is done
+     * in parallel, such as loading the records.
+     *
+     * @return
+     * the number of threads.
+     */
+    public int getThreads() {
+
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads used for work that is done in
+     * parallel, such as loading the records. The default is the
+     * number of processors; <code>1</code> does all the work in
+     * the calling thread.
+     *
+     * @param newThreads
+     * the number of threads.
+     */
+    public void setThreads(final int newThreads) {
+
+        // validate arguments
+        if (newThreads <= 0) {
+            throw new IllegalArgumentException(
+                "threads was " + newThreads);
+        }
+
+        threads = newThreads;
+    }
+
+    /**
+     * Returns the fields that make up the primary key.
+     *
+     * @return
+     * a copy of the key fields, by field number.
+     */
+    public int[] getKeyFields() {
+
+        return (int[]) keyFields.clone();
+    }
+
+    /**
+     * Sets the fields that make up the primary key. No two
+     * records may have the same values in all of the key fields.
+     * The default is fields <code>0</code> and <code>1</code>.
+     *
+     * @param newKeyFields
+     * the key fields, by field number.
+     */
+    public void setKeyFields(final int[] newKeyFields) {
+
+        // validate arguments
+        if (null == newKeyFields) {
+            throw new NullPointerException("keyFields");
+        }
+        if (0 == newKeyFields.length) {
+            throw new IllegalArgumentException("no key fields");
+        }
+        checkFields(newKeyFields, "key field");
+
+        keyFields = (int[]) newKeyFields.clone();
+    }
+
+    /**
+     * Returns the fields that have a prefix index.
+     *
+     * @return
+     * a copy of the indexed fields, by field number.
+     */
+    public int[] getIndexFields() {
+
+        return (int[]) indexFields.clone();
+    }
+
+    /**
+     * Sets the fields that have a prefix index.
+     * <p>
+     * <code>find()</code> uses an index to look up the records
+     * that begin with a criterion, rather than examining every
+     * record. Indexes are built when the database is opened, so
+     * with <code>RecordLayout.PAGED</code> every record is then
+     * read once. There are no indexes by default.
+     * </p>
+     *
+     * @param newIndexFields
+     * the indexed fields, by field number.
+     */
+    public void setIndexFields(final int[] newIndexFields) {
+
+        // validate arguments
+        if (null == newIndexFields) {
+            throw new NullPointerException("indexFields");
+        }
+        checkFields(newIndexFields, "index field");
+
+        indexFields = (int[]) newIndexFields.clone();
+    }
+
+    /**
+     * Returns the fields that have a bitmap index.
+     *
+     * @return
+     * a copy of the bitmap indexed fields, by field number.
+     */
+    public int[] getBitmapFields() {
+
+        return (int[]) bitmapFields.clone();
+    }
+
+    /**
+     * Sets the fields that have a bitmap index.
+     * <p>
+     * A bitmap index suits a field with few distinct values,
+     * such as a location or an owner. <code>find()</code>
+     * combines the bitmaps of several criteria before it
+     * examines any record, and can find records whose value is
+     * blank. Like prefix indexes, bitmap indexes are built when
+     * the database is opened. There are no bitmap indexes by
+     * default.
+     * </p>
+     *
+     * @param newBitmapFields
+     * the bitmap indexed fields, by field number.
+     */
+    public void setBitmapFields(final int[] newBitmapFields) {
+
+        // validate arguments
+        if (null == newBitmapFields) {
+            throw new NullPointerException("bitmapFields");
+        }
+        checkFields(newBitmapFields, "bitmap field");
+
+        bitmapFields = (int[]) newBitmapFields.clone();
+    }
+
+    /**
+     * Returns the lock lease.
+     *
+     * @return
+     * the lock lease, in milliseconds; <code>0</code> if locks
+     * never expire.
+     */
+    public long getLockLease() {
+
+        return lockLease;
+    }
+
+    /**
+     * Sets the lock lease.
+     * <p>
+     * A lock that is not used for longer than its lease expires:
+     * it is taken from its client, and handed to the next client
+     * waiting for it. Updating or deleting the record, or
+     * renewing the lock, starts a new lease. So a client that
+     * dies while it holds a lock holds it for one lease at most.
+     * By default locks never expire.
+     * </p>
+     *
+     * @param newLockLease
+     * the lock lease, in milliseconds; <code>0</code> if locks
+     * never expire.
+     */
+    public void setLockLease(final long newLockLease) {
+
+        // validate arguments
+        if (newLockLease < 0) {
+            throw new IllegalArgumentException(
+                "lock lease was " + newLockLease);
+        }
+
+        lockLease = newLockLease;
+    }
+
+    /**
+     * Returns the compaction interval.
+     *
+     * @return
+     * the compaction interval, in milliseconds; <code>0</code> if
+     * the database file is never compacted in the background.
+     */
+    public long getCompactInterval() {
+
+        return compactInterval;
+    }
+
+    /**
+     * Sets the compaction interval.
+     * <p>
+     * Deleted records are compacted this often, in the
+     * background: live records are moved into the slots of
+     * deleted ones, and the file is cut short. By default the
+     * file is never compacted in the background.
+     * </p>
+     *
+     * @param newCompactInterval
+     * the compaction interval, in milliseconds; <code>0</code> if
+     * the database file is never compacted in the background.
+     */
+    public void setCompactInterval(final long newCompactInterval) {
+
+        // validate arguments
+        if (newCompactInterval < 0) {
+            throw new IllegalArgumentException(
+                "compact interval was " + newCompactInterval);
+        }
+
+        compactInterval = newCompactInterval;
+    }
+
+    /**
+     * Returns whether the database is restarted from snapshots.
+     *
+     * @return
+     * <code>true</code> if the database is restarted from
+     * snapshots.
+     */
+    public boolean isSnapshot() {
+
+        return snapshot;
+    }
+
+    /**
+     * Sets whether the database is restarted from snapshots.
+     * <p>
+     * A snapshot file (the database file name plus
+     * <code>".snapshot"</code>) holds the records and indexes as
+     * they are in memory, so opening the database reads them back
+     * rather than decoding and indexing every record. It is
+     * written by <code>Data.checkpoint()</code>, and deleted
+     * before the next change. A small generation file (the
+     * database file name plus <code>".generation"</code>) is
+     * moved on by the first change after each checkpoint, even
+     * by a <code>Data</code> opened without snapshots, so a
+     * snapshot is only used while its generation matches.
+     * Snapshots need <code>RecordLayout.COLUMNS</code>. By
+     * default there are no snapshots.
+     * </p>
+     *
+     * @param newSnapshot
+     * <code>true</code> to restart from snapshots.
+     */
+    public void setSnapshot(final boolean newSnapshot) {
+
+        snapshot = newSnapshot;
+    }
+
+    /**
+     * Returns whether a checksum is kept for each record.
+     *
+     * @return
+     * <code>true</code> if records are checksummed.
+     */
+    public boolean isChecksums() {
+
+        return checksums;
+    }
+
+    /**
+     * Sets whether a checksum is kept for each record.
+     * <p>
+     * A checksum file (the database file name plus
+     * <code>".crc"</code>) holds a CRC-32 of each record, kept
+     * up to date as records are written. When the database is
+     * opened every record is checked, in parallel, and a record
+     * that was only partly written when the server stopped is
+     * reported rather than loaded; see <code>setRepair()</code>.
+     * A record appended last whose checksum was not written is
+     * dropped. With a journal, such a record is first written
+     * again from the journal. Without a journal, checksums and
+     * records are written synchronously: an update writes the
+     * checksums of the record before and after it, then the
+     * record, and a record matching either is accepted; an
+     * append writes the record, then its checksum. So
+     * <code>StorageMode.MAPPED</code> and write-behind need a
+     * journal for checksums. A change made without checksums
+     * deletes the checksum file, which is written again from the
+     * records when it is next needed. By default there are no
+     * checksums.
+     * </p>
+     *
+     * @param newChecksums
+     * <code>true</code> to keep a checksum for each record.
+     */
+    public void setChecksums(final boolean newChecksums) {
+
+        checksums = newChecksums;
+    }
+
+    /**
+     * Returns whether records that fail their checksum are
+     * deleted.
+     *
+     * @return
+     * <code>true</code> if damaged records are deleted.
+     */
+    public boolean isRepair() {
+
+        return repair;
+    }
+
+    /**
+     * Sets whether records that fail their checksum are deleted.
+     * <p>
+     * With checksums, a record that does not match its checksum
+     * when the database is opened stops the open. With repair,
+     * the record is marked deleted instead, and the open goes on;
+     * its contents are lost, and its record number is logged as
+     * a warning. With a journal, a record partly written when the
+     * server stopped is written again from the journal first, so
+     * only a record damaged some other way is deleted. By default
+     * there is no repair.
+     * </p>
+     *
+     * @param newRepair
+     * <code>true</code> to delete records that fail their
+     * checksum.
+     */
+    public void setRepair(final boolean newRepair) {
+
+        repair = newRepair;
+    }
+
+    /**
+     * Returns the length of the write-behind queue.
+     *
+     * @return
+     * the number of writes the queue holds; <code>0</code> if
+     * changes are written by the thread that makes them.
+     */
+    public int getWriteBehind() {
+
+        return writeBehind;
+    }
+
+    /**
+     * Sets the length of the write-behind queue.
+     * <p>
+     * With write-behind, a change is queued and written to the
+     * file by a writer thread of its own. Each change is made
+     * with a <code>Durability</code>: the caller returns once it
+     * is queued, once it is written, or once it is forced to
+     * disk. When the queue is full, callers wait for the writer
+     * thread. By default there is no write-behind.
+     * </p>
+     *
+     * @param newWriteBehind
+     * the number of writes the queue holds; <code>0</code> if
+     * changes are written by the thread that makes them.
+     */
+    public void setWriteBehind(final int newWriteBehind) {
+
+        // validate arguments
+        if (newWriteBehind < 0) {
+            throw new IllegalArgumentException(
+                "write behind was " + newWriteBehind);
+        }
+
+        writeBehind = newWriteBehind;
+    }
+
+    /**
+     * Parses a list of field numbers, separated by commas.
+     *
+     * @param s
+     * the list.
+     *
+     * @return
+     * the field numbers.
+     *
+     * @throws NumberFormatException
+     * if a field number is not a number.
+     */
+    private static int[] parseFields(final String s) {
+
+        final StringTokenizer tokenizer = new StringTokenizer(s, ",");
+        final int[] fields = new int[tokenizer.countTokens()];
+        for (int i = 0; i < fields.length; i++) {
+            fields[i] = Integer.parseInt(tokenizer.nextToken().trim());
+        }
+
+        return fields;
+    }
+
+    /**
+     * Checks that field numbers are not negative, and not
+     * repeated.
+     *
+     * @param fields
+     * the field numbers.
+     *
+     * @param what
+     * what the fields are for, for the exception message.
+     *
+     * @throws IllegalArgumentException
+     * if a field number is invalid.
+     */
+    private static void checkFields(
+        final int[] fields,
+        final String what) {
+
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i] < 0) {
+                throw new IllegalArgumentException(what
+                    + " was "
+                    + fields[i]);
+            }
+            for (int j = 0; j < i; j++) {
+                if (fields[i] == fields[j]) {
+                    throw new IllegalArgumentException(what
+                        + " repeated: "
+                        + fields[i]);
+                }
+            }
+        }
+    }
+}
@@ -8,7 +8,14 @@
 
 package suncertify.db;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
 import junit.extensions.TestSetup;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -205,111 +212,178 @@ public class DataTest extends TestCase {
         assertNotNull(dbImpl);
     }
 
-    // ----------------------------------------------------------
-
     /**
      * Bogus javadoc comment.
      */
-    public void testReadRecordNotFoundException() {
+    public void testDataMapped() {
 
-        System.err
-            .println("Expect a suncertify.db.RecordNotFoundException");
+        final DataOptions options = new DataOptions();
+        options.setStorageMode(StorageMode.MAPPED);
+        options.setForcePolicy(ForcePolicy.REQUEST);
 
+        Data mapped = null;
         try {
-            o.read(-1);
+            mapped = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
             fail();
-        } catch (final RecordNotFoundException e) {
-            // this is what we expect
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // the mapped file must hold the same records
+        assertSameRecords(mapped);
+
+        try {
+            mapped.force();
+        } catch (final IOException e) {
             e.printStackTrace();
+            fail();
         }
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testRead() {
+    public void testMappedAppends() {
 
-        final int[] recNos = o.find(new String[] {
-            null,
-            null
-        });
+        final String filename = "C:/tmp/db-2x1.db-mappedAppends";
+        final File file = new File(filename);
+        final int appends = 5000;
 
-        for (int i = 0; i < recNos.length; i++) {
+        final DataOptions options = new DataOptions();
+        options.setStorageMode(StorageMode.MAPPED);
+        options.setForcePolicy(ForcePolicy.REQUEST);
 
-            String[] values = null;
-            try {
-                values = o.read(recNos[i]);
-            } catch (final RecordNotFoundException e) {
-                e.printStackTrace();
-                fail();
+        try {
+            copy(filename);
+            final Data d = new Data(filename, options);
+            final int[] recNos = d.find(new String[6]);
+            final String[] values = d.read(recNos[0]);
+            final long length = file.length();
+
+            final Data.FieldDescriptor[] fields = d.getFieldDescriptors();
+            int recordLength = 1;
+            for (int i = 0; i < fields.length; i++) {
+                recordLength += fields[i].getDataLength();
             }
 
-            String line = "Record " + recNos[i] + ": ";
-            for (int j = 0; j < values.length; j++) {
-                line += values[j].trim() + "|";
+            // fill the free slots, then append one record at a time
+            final int[] created = new int[appends];
+            for (int i = 0; i < appends; i++) {
+                values[0] = "Mapped Contractors " + i;
+                created[i] = d.create(values);
             }
-            System.err.println(line);
+            d.force();
+
+            // the file holds the records, and nothing past them
+            assertTrue(file.length() <= length
+                + (long) appends * recordLength);
+            assertEquals(
+                recNos.length + appends,
+                new Data(filename).find(new String[6]).length);
+
+            // records past the mapping are read from the file
+            final DataOptions paged = new DataOptions();
+            paged.setStorageMode(StorageMode.MAPPED);
+            paged.setRecordLayout(RecordLayout.PAGED);
+            final Data reader = new Data(filename, paged);
+            for (int i = 0; i < appends; i++) {
+                assertEquals(
+                    "Mapped Contractors " + i,
+                    reader.read(created[i])[0].trim());
+            }
+
+            // cut the file back under the mapping
+            for (int i = appends / 2; i < appends; i++) {
+                final long cookie = d.lock(created[i]);
+                d.delete(created[i], cookie);
+                d.unlock(created[i], cookie);
+            }
+            d.compact();
+            d.force();
+            assertTrue(file.length() <= length
+                + (long) (appends / 2) * recordLength);
+            assertEquals(
+                recNos.length + appends / 2,
+                new Data(filename).find(new String[6]).length);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
         }
     }
 
-    // ----------------------------------------------------------
-
     /**
      * Bogus javadoc comment.
      */
-    public void testLockRecordNotFound() {
+    public void testDataColumns() {
 
-        System.err
-            .println("Expect a suncertify.db.RecordNotFoundException");
+        final DataOptions options = new DataOptions();
+        options.setRecordLayout(RecordLayout.COLUMNS);
 
+        Data columns = null;
         try {
-            o.lock(-1);
+            columns = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
             fail();
-        } catch (final RecordNotFoundException e) {
-            // this is what we expect
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
             e.printStackTrace();
+            fail();
         }
-    }
 
-    // ----------------------------------------------------------
+        // the columns must hold the same records
+        assertSameRecords(columns);
+    }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testUnlockSecurityException() {
+    public void testDataJournal() {
 
-        // lock a record
-        int recNo = 0;
-        long cookie = 0;
-        try {
-            cookie = o.lock(recNo);
-        } catch (final RecordNotFoundException e) {
-            e.printStackTrace();
-            fail();
-        }
+        final DataOptions options = new DataOptions();
+        options.setJournal(true);
+        options.setForcePolicy(ForcePolicy.REQUEST);
 
-        // unlock the wrong record
-        System.err
-            .println("Expect a java.lang.SecurityException");
+        Data journaled = null;
         try {
-            o.unlock(
-                recNo + 1,
-                cookie);
+            journaled = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
             fail();
-        } catch (final SecurityException e) {
-            // this is what we expect
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
-        } catch (final RecordNotFoundException e) {
+            fail();
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
 
-        // unlock the correct record
+        // the journaled file must hold the same records
+        assertSameRecords(journaled);
+
         try {
-            o.unlock(
-                recNo,
-                cookie);
-        } catch (final RecordNotFoundException e) {
+            journaled.force();
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
@@ -318,62 +392,165 @@ public class DataTest extends TestCase {
     /**
      * Bogus javadoc comment.
      */
-    public void testUnlockLockCookieNotFound() {
+    public void testJournalBatchLimit() {
+
+        final String filename = "C:/tmp/db-2x1.db-journalBatch";
+        final File file = new File(filename);
+
+        final DataOptions options = new DataOptions();
+        options.setJournal(true);
+        options.setForcePolicy(ForcePolicy.REQUEST);
 
-        // lock a record
-        int recNo = 0;
-        long cookie = 0;
         try {
-            cookie = o.lock(recNo);
+            copy(filename);
+            new File(filename + ".journal").delete();
+            final Data d = new Data(filename, options);
+            final String[] values = d.read(d.find(new String[6])[0]);
+            final long length = file.length();
+
+            final Data.FieldDescriptor[] fields = d.getFieldDescriptors();
+            int recordLength = 1;
+            for (int i = 0; i < fields.length; i++) {
+                recordLength += fields[i].getDataLength();
+            }
+
+            // append more than a full batch, and never force
+            final int creates = (2 * 64 * 1024) / recordLength;
+            for (int i = 0; i < creates; i++) {
+                values[0] = "Journal Batch Contractors " + i;
+                d.create(values);
+            }
+
+            // a full batch was committed, and applied to the file
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ((file.length() == length)
+                && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertTrue(file.length() > length);
+
+            d.force();
         } catch (final RecordNotFoundException e) {
             e.printStackTrace();
             fail();
-        }
-
-        // unlock the wrong cookie
-        System.err
-            .println("Expect a java.lang.SecurityException");
-        try {
-            o.unlock(
-                recNo,
-                cookie + 1);
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
             fail();
-        } catch (final SecurityException e) {
-            // this is what we expect
+        } catch (final InvalidMagicCookieException e) {
             e.printStackTrace();
-        } catch (final RecordNotFoundException e) {
+            fail();
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
             fail();
-        }
-
-        // unlock the correct record
-        try {
-            o.unlock(
-                recNo,
-                cookie);
-        } catch (final RecordNotFoundException e) {
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InterruptedException e) {
             e.printStackTrace();
             fail();
         }
     }
 
-    // ----------------------------------------------------------
-
     /**
      * Bogus javadoc comment.
      */
-    public void testCreateNullPointerException() {
+    public void testJournalReadDuringApply() {
 
-        System.err
-            .println("Expect a java.lang.NullPointerException");
+        final File file = new File("C:/tmp/db-2x1.db-journalRead");
+        final File journalFile = new File(file.getPath() + ".journal");
+        file.delete();
+        journalFile.delete();
 
+        final JournaledRecordFile[] journaled = new JournaledRecordFile[1];
+        final boolean[] held = new boolean[] {
+            true
+        };
+        final boolean[] armed = new boolean[1];
         try {
-            o.create(null);
-            fail();
-        } catch (final NullPointerException e) {
-            // this is what we expect
-            e.printStackTrace();
-        } catch (DuplicateKeyException e) {
+            final RecordFile raw = new RandomAccessRecordFile(file, false);
+
+            /* The first entry is held as it is applied; the read
+             * releases it, and has a newer entry applied, just
+             * before it reads the file.
+             */
+            final RecordFile target = new RecordFile() {
+
+                public int read(
+                    final long position,
+                    final byte[] bytes,
+                    final int offset,
+                    final int length) throws IOException {
+
+                    if (armed[0]) {
+                        armed[0] = false;
+                        synchronized (held) {
+                            held[0] = false;
+                            held.notifyAll();
+                        }
+                        journaled[0].write(position, new byte[] {
+                            'B'
+                        }, 0, 1);
+                        journaled[0].drain();
+                    }
+                    return raw.read(position, bytes, offset, length);
+                }
+
+                public void write(
+                    final long position,
+                    final byte[] bytes,
+                    final int offset,
+                    final int length) throws IOException {
+
+                    synchronized (held) {
+                        while (held[0]) {
+                            try {
+                                held.wait();
+                            } catch (final InterruptedException e) {
+                                throw new IOException(e.toString());
+                            }
+                        }
+                    }
+                    raw.write(position, bytes, offset, length);
+                }
+
+                public long length() throws IOException {
+
+                    return raw.length();
+                }
+
+                public void setLength(final long newLength)
+                    throws IOException {
+
+                    raw.setLength(newLength);
+                }
+
+                public void force() throws IOException {
+
+                    raw.force();
+                }
+
+                public void close() throws IOException {
+
+                    raw.close();
+                }
+            };
+
+            journaled[0] = new JournaledRecordFile(target, journalFile);
+            journaled[0].write(0, new byte[] {
+                'A'
+            }, 0, 1);
+            journaled[0].force();
+
+            // the read must see the newer entry, not the older one
+            armed[0] = true;
+            final byte[] bytes = new byte[1];
+            assertEquals(1, journaled[0].read(0, bytes, 0, 1));
+            assertEquals('B', bytes[0]);
+
+            // closing applies every entry, and empties the journal
+            journaled[0].close();
+            assertEquals(4 + 8, journalFile.length());
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
@@ -382,293 +559,294 @@ public class DataTest extends TestCase {
     /**
      * Bogus javadoc comment.
      */
-    public void testCreateTooFewValues() {
+    public void testDataFailureReleasesJournal() {
 
-        System.err
-            .println("Expect a java.lang.IllegalArgumentException");
+        final String filename = "C:/tmp/db-2x1.db-failedOpen";
+        final String checksummed = "C:/tmp/db-2x1.db-failedLoad";
+
+        final DataOptions options = new DataOptions();
+        options.setJournal(true);
+
+        final DataOptions badFields = new DataOptions();
+        badFields.setJournal(true);
+        badFields.setIndexFields(new int[] {
+            99
+        });
 
         try {
-            o.create(new String[] {
-                "field1",
-                "field2",
-                "field3",
-                "field4",
-                "field5"
-            });
+            copy(filename);
+            new File(filename + ".journal").delete();
+            copy(checksummed);
+            new File(checksummed + ".journal").delete();
+            new File(checksummed + ".crc").delete();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
             fail();
-        } catch (final IllegalArgumentException e) {
-            // this is what we expect
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
-        } catch (DuplicateKeyException e) {
+            fail();
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
-    }
-
-    /**
-     * Bogus javadoc comment.
-     */
-    public void testCreateTooManyValues() {
-
-        System.err
-            .println("Expect a java.lang.IllegalArgumentException");
 
+        // a field that does not exist is found before the journal
         try {
-            o.create(new String[] {
-                "field1",
-                "field2",
-                "field3",
-                "field4",
-                "field5",
-                "field6",
-                "field7"
-            });
+            new Data(filename, badFields);
             fail();
         } catch (final IllegalArgumentException e) {
-            // this is what we expect
+            // expected
+        } catch (final InvalidMagicCookieException e) {
             e.printStackTrace();
-        } catch (DuplicateKeyException e) {
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
-    }
-
-    /**
-     * Bogus javadoc comment.
-     */
-    public void testCreateDuplicateKey() {
-
-        // create a record
-        int recNo = Integer.MIN_VALUE;
 
+        // write the checksums, then change the last record
+        final DataOptions checksums = new DataOptions();
+        checksums.setChecksums(true);
+        options.setChecksums(true);
         try {
-            recNo = o.create(new String[] {
-                "field1",
-                "field2",
-                "field3",
-                "field4",
-                "field5",
-                "field6"
-            });
-        } catch (DuplicateKeyException e) {
+            new Data(checksummed, checksums);
+            final RandomAccessFile file = new RandomAccessFile(
+                checksummed,
+                "rw");
+            try {
+                file.seek(file.length() - 1);
+                final int b = file.read();
+                file.seek(file.length() - 1);
+                file.write(b ^ 1);
+            } finally {
+                file.close();
+            }
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
-        assert (recNo >= 0);
-
-        // try to create a record with a duplicate key
-        System.err
-            .println("Expect a suncertify.db.DuplicateKeyException");
 
+        // a record that fails its checksum is found after it
         try {
-            o.create(new String[] {
-                "field1",
-                "field2",
-                "field3",
-                "field4",
-                "field5",
-                "field6"
-            });
+            new Data(checksummed, options);
             fail();
-        } catch (DuplicateKeyException e) {
-            // this is what we expect
+        } catch (final InvalidMagicCookieException e) {
             e.printStackTrace();
-        }
-
-        // lock the first record
-        long cookie = 0;
-
-        try {
-            cookie = o.lock(recNo);
-        } catch (final RecordNotFoundException e) {
+            fail();
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
             fail();
+        } catch (final IOException e) {
+            // expected
         }
 
-        // delete the first record
+        // either way, the journal is free for the next open
+        options.setChecksums(false);
         try {
-            o.delete(
-                recNo,
-                cookie);
-        } catch (final RecordNotFoundException e) {
+            new Data(filename, options);
+            new Data(checksummed, options);
+        } catch (final InvalidMagicCookieException e) {
             e.printStackTrace();
             fail();
-        }
-
-        // unlock the first record
-        try {
-            o.unlock(
-                recNo,
-                cookie);
-        } catch (final RecordNotFoundException e) {
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
     }
 
-    // ----------------------------------------------------------
-
     /**
      * Bogus javadoc comment.
      */
-    public void testUpdateRecordNotFoundException() {
+    public void testDataPaged() {
 
-        System.err
-            .println("Expect a suncertify.db.RecordNotFoundException");
+        final DataOptions options = new DataOptions();
+        options.setRecordLayout(RecordLayout.PAGED);
+        options.setCachePages(1);
 
+        Data paged = null;
         try {
-            o.update(
-                -1,
-                new String[] {
-                    "hello"
-                },
-                0x12345678L);
+            paged = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
             fail();
-        } catch (final RecordNotFoundException e) {
-            // this is what we expect
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
         }
+
+        // the pages must hold the same records
+        assertSameRecords(paged);
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testUpdateNullPointerException() {
+    public void testDataIndexed() {
 
-        System.err
-            .println("Expect a java.lang.NullPointerException");
+        final DataOptions options = new DataOptions();
+        options.setIndexFields(new int[] {
+            0,
+            1
+        });
 
+        Data indexed = null;
         try {
-            o.update(
-                0,
-                null,
-                -1);
+            indexed = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
             fail();
-        } catch (final RecordNotFoundException e) {
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
             fail();
-        } catch (final NullPointerException e) {
-            // this is what we expect
+        } catch (final IOException e) {
             e.printStackTrace();
+            fail();
+        }
+
+        // the indexes must find the same records as a scan
+        assertSameRecords(indexed);
+
+        final String[][] criteria = new String[][] {
+            {
+                "Swan",
+                "Atl"
+            },
+            {
+                "b",
+                null
+            },
+            {
+                null,
+                "SMALL"
+            },
+            {
+                "",
+                "x"
+            }
+        };
+        for (int i = 0; i < criteria.length; i++) {
+            final int[] expected = o.find(criteria[i]);
+            final int[] recNos = indexed.find(criteria[i]);
+            assertEquals(
+                expected.length,
+                recNos.length);
+            for (int j = 0; j < recNos.length; j++) {
+                assertEquals(
+                    expected[j],
+                    recNos[j]);
+            }
         }
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testUpdateDuplicateKeyOnUpdateException() {
-
-        // create 'unique' record
-        int unique = Integer.MIN_VALUE;
-        try {
-            unique = o.create(new String[] {
-                "unique1",
-                "unique2",
-                "unique3",
-                "unique4",
-                "unique5",
-                "unique6"
-            });
-        } catch (DuplicateKeyException e) {
-            e.printStackTrace();
-            fail();
-        }
-        assert (unique >= 0);
-
-        // create 'another' record
-        int another = Integer.MIN_VALUE;
-        try {
-            another = o.create(new String[] {
-                "another1",
-                "another2",
-                "another3",
-                "another4",
-                "another5",
-                "another6"
-            });
-        } catch (DuplicateKeyException e) {
-            e.printStackTrace();
-            fail();
-        }
-        assert (another >= 0);
+    public void testDataBitmap() {
 
-        long cookie = 0;
+        final DataOptions options = new DataOptions();
+        options.setIndexFields(new int[] {
+            0
+        });
+        options.setBitmapFields(new int[] {
+            1,
+            5
+        });
 
-        // lock 'another' record
+        Data bitmapped = null;
         try {
-            cookie = o.lock(another);
-        } catch (final RecordNotFoundException e) {
+            bitmapped = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
             e.printStackTrace();
             fail();
-        }
-
-        // update 'another' record, with a duplicate key
-        System.err
-            .println("Expect a suncertify.db.DuplicateKeyOnUpdateException");
-        try {
-            o.update(
-                another,
-                new String[] {
-                    "unique1",
-                    "unique2",
-                    "new3",
-                    "new4",
-                    "new5",
-                    "new6"
-                },
-                cookie);
-            fail();
-        } catch (final DuplicateKeyOnUpdateException e) {
-            // this is what we expect
-            e.printStackTrace();
-        } catch (final RecordNotFoundException e) {
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
             fail();
-        }
-
-        // delete 'another' record
-        try {
-            o.delete(
-                another,
-                cookie);
-        } catch (final RecordNotFoundException e) {
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
 
-        // unlock 'another' record
-        try {
-            o.unlock(
-                another,
-                cookie);
-        } catch (final RecordNotFoundException e) {
-            e.printStackTrace();
-            fail();
+        // the bitmaps must find the same records as a scan
+        final int[] blankFields = new int[] {
+            5
+        };
+        final String[][] criteria = new String[][] {
+            {
+                null,
+                "Smallville"
+            },
+            {
+                "B",
+                "w"
+            },
+            {
+                "",
+                ""
+            },
+            {
+                null,
+                "x"
+            }
+        };
+        for (int i = 0; i < criteria.length; i++) {
+            final int[] expected = o.find(criteria[i], blankFields);
+            final int[] recNos = bitmapped.find(criteria[i], blankFields);
+            assertEquals(
+                expected.length,
+                recNos.length);
+            for (int j = 0; j < recNos.length; j++) {
+                assertEquals(
+                    expected[j],
+                    recNos[j]);
+            }
         }
 
-        // lock 'unique' record
+        // a booked record is no longer blank
+        final int recNo = 28;
+        final String[] lendmarch = new String[] {
+            null,
+            "Lendmarch"
+        };
         try {
-            cookie = o.lock(unique);
-        } catch (final RecordNotFoundException e) {
-            e.printStackTrace();
-            fail();
-        }
+            final String[] data = bitmapped.read(recNo);
+            final String owner = data[5];
+            final long lockCookie = bitmapped.lock(recNo);
 
-        // delete 'unique' record
-        try {
-            o.delete(
-                unique,
-                cookie);
-        } catch (final RecordNotFoundException e) {
-            e.printStackTrace();
-            fail();
-        }
+            data[5] = "12345678";
+            bitmapped.update(
+                recNo,
+                data,
+                lockCookie);
+            assertFalse(contains(
+                bitmapped.find(lendmarch, blankFields),
+                recNo));
 
-        // unlock 'unique' record
-        try {
-            o.unlock(
-                unique,
-                cookie);
+            data[5] = owner;
+            bitmapped.update(
+                recNo,
+                data,
+                lockCookie);
+            assertTrue(contains(
+                bitmapped.find(lendmarch, blankFields),
+                recNo));
+            bitmapped.unlock(
+                recNo,
+                lockCookie);
         } catch (final RecordNotFoundException e) {
             e.printStackTrace();
             fail();
@@ -678,215 +856,2933 @@ public class DataTest extends TestCase {
     /**
      * Bogus javadoc comment.
      */
-    public void testUpdateSecurityException() {
+    public void testIndexedChurn() {
 
-        System.err
-            .println("Expect a java.lang.SecurityException");
+        final String filename = "C:/tmp/db-2x1.db-indexedChurn";
+        final int threads = 4;
+        final int creates = 300;
 
-        final int recNo = 28;
-        final String[] data = new String[] {
-            "Moore Power Tool Ya",
-            "Lendmarch",
-            "Electrical, Heating, Glass",
-            "8",
-            "$95.00",
-            ""
-        };
-        final long lockCookie = -1;
+        final DataOptions options = new DataOptions();
+        options.setStorageMode(StorageMode.MAPPED);
+        options.setForcePolicy(ForcePolicy.REQUEST);
+        options.setIndexFields(new int[] {
+            0
+        });
+        options.setBitmapFields(new int[] {
+            1
+        });
 
         try {
-            o.update(
-                recNo,
-                data,
-                lockCookie);
+            copy(filename);
+            final Data d = new Data(filename, options);
+            final String[] template = d.read(d.find(new String[6])[0]);
+            final Exception[] failure = new Exception[1];
+
+            /* Each thread creates records and deletes every other
+             * one, so the threads keep re-using each other's slots.
+             */
+            final Thread[] churners = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                churners[t] = new Thread("churner " + t) {
+
+                    public void run() {
+
+                        final String[] values = (String[]) template
+                            .clone();
+                        try {
+                            for (int i = 0; i < creates; i++) {
+                                values[0] = "Churn " + thread + " " + i;
+                                values[1] = "Churnville";
+                                final int recNo = d.create(values);
+                                if (0 != (i % 2)) {
+                                    final long cookie = d.lock(recNo);
+                                    d.delete(recNo, cookie);
+                                    d.unlock(recNo, cookie);
+                                }
+                            }
+                        } catch (final DuplicateKeyException e) {
+                            failure[0] = e;
+                        } catch (final RecordNotFoundException e) {
+                            failure[0] = e;
+                        }
+                    }
+                };
+                churners[t].start();
+            }
+            for (int t = 0; t < threads; t++) {
+                churners[t].join();
+            }
+            assertNull(failure[0]);
+
+            // the indexes must find the same records as a scan
+            final int[] all = d.find(new String[6]);
+            final String[][] records = d.readAll(all);
+            int scanned = 0;
+            for (int i = 0; i < records.length; i++) {
+                if (records[i][0].startsWith("Churn ")) {
+                    scanned++;
+                }
+            }
+            assertEquals(threads * creates / 2, scanned);
+            assertEquals(scanned, d.find(new String[] {
+                "Churn "
+            }).length);
+            assertEquals(scanned, d.find(new String[] {
+                null,
+                "Churnville"
+            }).length);
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
             fail();
         } catch (final RecordNotFoundException e) {
             e.printStackTrace();
             fail();
-        } catch (final SecurityException e) {
-            // this is what we expect
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
             e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
         }
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testUpdate() {
+    public void testReadSnapshot() {
 
-        final int recNo = 28;
-        final String[] data = new String[] {
-            "Moore Power Tool Ya",
-            "Lendmarch",
-            "Electrical, Heating, Glass",
-            "8",
-            "$95.00",
+        final int[] fieldLengths = new int[] {
+            4,
+            4
+        };
+        final RecordTable[] recordTables = new RecordTable[] {
+            new ObjectRecordTable(fieldLengths),
+            new ColumnarRecordTable(fieldLengths)
+        };
+
+        final int records = 16;
+        for (int t = 0; t < recordTables.length; t++) {
+
+            final RecordTable recordTable = recordTables[t];
+            for (int i = 0; i < records; i++) {
+                recordTable.add(new String[] {
+                    "aaaa",
+                    "aaaa"
+                });
+            }
+
+            // keep changing both fields of each record in turn
+            final Thread writer = new Thread("writer") {
+
+                public void run() {
+
+                    final String[][] versions = new String[][] {
+                        {
+                            "aaaa",
+                            "aaaa"
+                        },
+                        {
+                            "bbbb",
+                            "bbbb"
+                        }
+                    };
+                    for (int i = 0; i < 100000; i++) {
+                        recordTable.setValues(
+                            i % records,
+                            versions[(i / records) % 2]);
+                    }
+                }
+            };
+            writer.start();
+
+            // a reader must never see half of a change
+            while (writer.isAlive()) {
+                for (int i = 0; i < records; i++) {
+                    final String[] values = recordTable.getValues(i);
+                    assertEquals(
+                        values[0],
+                        values[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testReadWhileLocked() {
+
+        final File file = new File("C:/tmp/db-2x1.db-readWhileLocked");
+        final int[] fieldLengths = new int[] {
+            4,
+            4
+        };
+        final int recordLength = 1 + 4 + 4;
+
+        try {
+            // a file of one record, with no header
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                out.write(Data.VALID_RECORD);
+                out.write("aaaabbbb".getBytes("US-ASCII"));
+            } finally {
+                out.close();
+            }
+
+            final RecordFile recordFile = new RandomAccessRecordFile(
+                file,
+                false);
+            try {
+                final RecordTable[] recordTables = new RecordTable[] {
+                    new ObjectRecordTable(fieldLengths),
+                    new ColumnarRecordTable(fieldLengths),
+                    new PagedRecordTable(
+                        recordFile,
+                        0,
+                        recordLength,
+                        fieldLengths,
+                        1,
+                        1)
+                };
+
+                for (int t = 0; t < recordTables.length; t++) {
+
+                    final RecordTable recordTable = recordTables[t];
+                    if (0 == recordTable.size()) {
+                        recordTable.add(new String[] {
+                            "aaaa",
+                            "bbbb"
+                        });
+                    }
+
+                    final Object[] results = new Object[2];
+                    final Thread reader = new Thread("reader") {
+
+                        public void run() {
+
+                            results[0] = recordTable.getValues(0);
+                            results[1] = Boolean.valueOf(recordTable
+                                .matches(
+                                    0,
+                                    new int[] {
+                                        1
+                                    },
+                                    new PrefixMatcher[] {
+                                        new PrefixMatcher("bb")
+                                    }));
+                        }
+                    };
+
+                    // reads must not wait while a writer holds a lock
+                    assertTrue(readWhileLocked(
+                        writeLocks(recordTable),
+                        0,
+                        reader));
+                    assertEquals("bbbb", ((String[]) results[0])[1]);
+                    assertEquals(Boolean.TRUE, results[1]);
+                }
+            } finally {
+                recordFile.close();
+            }
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IllegalAccessException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Returns the locks that writers of a record table hold while
+     * they change it: its own monitor, which <code>Data</code>
+     * also holds while it writes and forces a new record, and its
+     * write lock, if it has one.
+     *
+     * @param recordTable
+     * the record table.
+     *
+     * @return
+     * the locks.
+     *
+     * @throws IllegalAccessException
+     * if the write lock can not be read.
+     */
+    private static Object[] writeLocks(final RecordTable recordTable)
+        throws IllegalAccessException {
+
+        final List locks = new ArrayList();
+        locks.add(recordTable);
+
+        final Field[] fields = recordTable.getClass().getDeclaredFields();
+        for (int i = 0; i < fields.length; i++) {
+            if ("writeLock".equals(fields[i].getName())) {
+                fields[i].setAccessible(true);
+                locks.add(fields[i].get(recordTable));
+            }
+        }
+
+        return locks.toArray();
+    }
+
+    /**
+     * Runs a reader while holding some locks, and waits a while
+     * for it to finish.
+     *
+     * @param locks
+     * the locks to hold.
+     *
+     * @param first
+     * the index of the first lock still to take.
+     *
+     * @param reader
+     * the reader.
+     *
+     * @return
+     * <code>true</code> if the reader finished while the locks
+     * were held.
+     *
+     * @throws InterruptedException
+     * if the current thread is interrupted while it waits.
+     */
+    private static boolean readWhileLocked(
+        final Object[] locks,
+        final int first,
+        final Thread reader) throws InterruptedException {
+
+        if (first == locks.length) {
+            reader.start();
+            reader.join(10000);
+
+            return !reader.isAlive();
+        }
+
+        synchronized (locks[first]) {
+            return readWhileLocked(locks, first + 1, reader);
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testPagedPastEnd() {
+
+        final File file = new File("C:/tmp/db-2x1.db-pagedPastEnd");
+        final int[] fieldLengths = new int[] {
+            4,
+            4
+        };
+        final int recordLength = 1 + 4 + 4;
+        final int records = 10;
+
+        try {
+            // a file of valid records, with no header
+            final FileOutputStream out = new FileOutputStream(file);
+            try {
+                for (int i = 0; i < records; i++) {
+                    out.write(Data.VALID_RECORD);
+                    out.write("aaaabbbb".getBytes("US-ASCII"));
+                }
+            } finally {
+                out.close();
+            }
+
+            final RecordFile recordFile = new RandomAccessRecordFile(
+                file,
+                false);
+            try {
+                final RecordTable table = new PagedRecordTable(
+                    recordFile,
+                    0,
+                    recordLength,
+                    fieldLengths,
+                    records,
+                    1);
+
+                // records cut off the file are read as deleted
+                recordFile.setLength((records - 3) * recordLength);
+                assertTrue(table.isDeleted(records - 1));
+                assertFalse(table.isDeleted(records - 4));
+
+                // and stay deleted once the table is cut short too
+                table.setSize(records - 3);
+                assertTrue(table.isDeleted(records - 1));
+                assertFalse(table.matches(
+                    records - 1,
+                    new int[0],
+                    new PrefixMatcher[0]));
+            } finally {
+                recordFile.close();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Tests whether an array holds a record number.
+     *
+     * @param recNos
+     * the record numbers.
+     *
+     * @param recNo
+     * the record number to look for.
+     *
+     * @return
+     * <code>true</code> if <code>recNos</code> holds
+     * <code>recNo</code>.
+     */
+    private static boolean contains(final int[] recNos, final int recNo) {
+
+        for (int i = 0; i < recNos.length; i++) {
+            if (recNo == recNos[i]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Asserts that a database holds the same records as
+     * <code>o</code>.
+     *
+     * @param other
+     * the database to compare with <code>o</code>.
+     */
+    private void assertSameRecords(final Data other) {
+
+        final int[] recNos = o.find(new String[] {
+            null,
+            null
+        });
+        assertEquals(
+            recNos.length,
+            other.find(new String[] {
+                null,
+                null
+            }).length);
+
+        for (int i = 0; i < recNos.length; i++) {
+            try {
+                final String[] expected = o.read(recNos[i]);
+                final String[] values = other.read(recNos[i]);
+                for (int j = 0; j < expected.length; j++) {
+                    assertEquals(
+                        expected[j],
+                        values[j]);
+                }
+            } catch (final RecordNotFoundException e) {
+                e.printStackTrace();
+                fail();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testReadRecordNotFoundException() {
+
+        System.err
+            .println("Expect a suncertify.db.RecordNotFoundException");
+
+        try {
+            o.read(-1);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testRead() {
+
+        final int[] recNos = o.find(new String[] {
+            null,
+            null
+        });
+
+        for (int i = 0; i < recNos.length; i++) {
+
+            String[] values = null;
+            try {
+                values = o.read(recNos[i]);
+            } catch (final RecordNotFoundException e) {
+                e.printStackTrace();
+                fail();
+            }
+
+            String line = "Record " + recNos[i] + ": ";
+            for (int j = 0; j < values.length; j++) {
+                line += values[j].trim() + "|";
+            }
+            System.err.println(line);
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testLockRecordNotFound() {
+
+        System.err
+            .println("Expect a suncertify.db.RecordNotFoundException");
+
+        try {
+            o.lock(-1);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUnlockSecurityException() {
+
+        // lock a record
+        int recNo = 0;
+        long cookie = 0;
+        try {
+            cookie = o.lock(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock the wrong record
+        System.err
+            .println("Expect a java.lang.SecurityException");
+        try {
+            o.unlock(
+                recNo + 1,
+                cookie);
+            fail();
+        } catch (final SecurityException e) {
+            // this is what we expect
+            e.printStackTrace();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock the correct record
+        try {
+            o.unlock(
+                recNo,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUnlockLockCookieNotFound() {
+
+        // lock a record
+        int recNo = 0;
+        long cookie = 0;
+        try {
+            cookie = o.lock(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock the wrong cookie
+        System.err
+            .println("Expect a java.lang.SecurityException");
+        try {
+            o.unlock(
+                recNo,
+                cookie + 1);
+            fail();
+        } catch (final SecurityException e) {
+            // this is what we expect
+            e.printStackTrace();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock the correct record
+        try {
+            o.unlock(
+                recNo,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUnlockOtherThread() {
+
+        // lock a record in another thread
+        final int recNo = 0;
+        final long[] cookie = new long[1];
+        final Thread locker = new Thread("locker") {
+
+            public void run() {
+
+                try {
+                    cookie[0] = o.lock(recNo);
+                } catch (final RecordNotFoundException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        locker.start();
+        try {
+            locker.join();
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // the cookie, not the thread, owns the lock
+        try {
+            o.unlock(
+                recNo,
+                cookie[0]);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCreateNullPointerException() {
+
+        System.err
+            .println("Expect a java.lang.NullPointerException");
+
+        try {
+            o.create(null);
+            fail();
+        } catch (final NullPointerException e) {
+            // this is what we expect
+            e.printStackTrace();
+        } catch (DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCreateTooFewValues() {
+
+        System.err
+            .println("Expect a java.lang.IllegalArgumentException");
+
+        try {
+            o.create(new String[] {
+                "field1",
+                "field2",
+                "field3",
+                "field4",
+                "field5"
+            });
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // this is what we expect
+            e.printStackTrace();
+        } catch (DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCreateTooManyValues() {
+
+        System.err
+            .println("Expect a java.lang.IllegalArgumentException");
+
+        try {
+            o.create(new String[] {
+                "field1",
+                "field2",
+                "field3",
+                "field4",
+                "field5",
+                "field6",
+                "field7"
+            });
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // this is what we expect
+            e.printStackTrace();
+        } catch (DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCreateDuplicateKey() {
+
+        // create a record
+        int recNo = Integer.MIN_VALUE;
+
+        try {
+            recNo = o.create(new String[] {
+                "field1",
+                "field2",
+                "field3",
+                "field4",
+                "field5",
+                "field6"
+            });
+        } catch (DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+        assert (recNo >= 0);
+
+        // try to create a record with a duplicate key
+        System.err
+            .println("Expect a suncertify.db.DuplicateKeyException");
+
+        try {
+            o.create(new String[] {
+                "field1",
+                "field2",
+                "field3",
+                "field4",
+                "field5",
+                "field6"
+            });
+            fail();
+        } catch (DuplicateKeyException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+
+        // lock the first record
+        long cookie = 0;
+
+        try {
+            cookie = o.lock(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // delete the first record
+        try {
+            o.delete(
+                recNo,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock the first record
+        try {
+            o.unlock(
+                recNo,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCreateDuplicateKeyEqualValues() {
+
+        // read an existing record; its values are padded
+        final int recNo = o.find(new String[] {
+            null,
+            null
+        })[0];
+        String[] values = null;
+        try {
+            values = o.read(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // equal, but neither identical nor padded, values
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new String(values[i].trim());
+        }
+
+        System.err
+            .println("Expect a suncertify.db.DuplicateKeyException");
+
+        try {
+            o.create(values);
+            fail();
+        } catch (DuplicateKeyException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUpdateRecordNotFoundException() {
+
+        System.err
+            .println("Expect a suncertify.db.RecordNotFoundException");
+
+        try {
+            o.update(
+                -1,
+                new String[] {
+                    "hello"
+                },
+                0x12345678L);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUpdateNullPointerException() {
+
+        System.err
+            .println("Expect a java.lang.NullPointerException");
+
+        try {
+            o.update(
+                0,
+                null,
+                -1);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final NullPointerException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUpdateDuplicateKeyOnUpdateException() {
+
+        // create 'unique' record
+        int unique = Integer.MIN_VALUE;
+        try {
+            unique = o.create(new String[] {
+                "unique1",
+                "unique2",
+                "unique3",
+                "unique4",
+                "unique5",
+                "unique6"
+            });
+        } catch (DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+        assert (unique >= 0);
+
+        // create 'another' record
+        int another = Integer.MIN_VALUE;
+        try {
+            another = o.create(new String[] {
+                "another1",
+                "another2",
+                "another3",
+                "another4",
+                "another5",
+                "another6"
+            });
+        } catch (DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+        assert (another >= 0);
+
+        long cookie = 0;
+
+        // lock 'another' record
+        try {
+            cookie = o.lock(another);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // update 'another' record, with a duplicate key
+        System.err
+            .println("Expect a suncertify.db.DuplicateKeyOnUpdateException");
+        try {
+            o.update(
+                another,
+                new String[] {
+                    "unique1",
+                    "unique2",
+                    "new3",
+                    "new4",
+                    "new5",
+                    "new6"
+                },
+                cookie);
+            fail();
+        } catch (final DuplicateKeyOnUpdateException e) {
+            // this is what we expect
+            e.printStackTrace();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // delete 'another' record
+        try {
+            o.delete(
+                another,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock 'another' record
+        try {
+            o.unlock(
+                another,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // lock 'unique' record
+        try {
+            cookie = o.lock(unique);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // delete 'unique' record
+        try {
+            o.delete(
+                unique,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // unlock 'unique' record
+        try {
+            o.unlock(
+                unique,
+                cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUpdateSecurityException() {
+
+        System.err
+            .println("Expect a java.lang.SecurityException");
+
+        final int recNo = 28;
+        final String[] data = new String[] {
+            "Moore Power Tool Ya",
+            "Lendmarch",
+            "Electrical, Heating, Glass",
+            "8",
+            "$95.00",
+            ""
+        };
+        final long lockCookie = -1;
+
+        try {
+            o.update(
+                recNo,
+                data,
+                lockCookie);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final SecurityException e) {
+            // this is what we expect
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testUpdate() {
+
+        final int recNo = 28;
+        final String[] data = new String[] {
+            "Moore Power Tool Ya",
+            "Lendmarch",
+            "Electrical, Heating, Glass",
+            "8",
+            "$95.00",
             ""
         };
-        long lockCookie = -1;
+        long lockCookie = -1;
+
+        try {
+            lockCookie = o.lock(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        try {
+            o.update(
+                recNo,
+                data,
+                lockCookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        try {
+            o.unlock(
+                recNo,
+                lockCookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testFindStringString() {
+
+        final String[] criteria = new String[] {
+            "Swan",
+            "Atl"
+        };
+        final int[] expected = new int[] {
+            12
+        };
+
+        final int[] recNos = o.find(criteria);
+        assertEquals(
+            expected.length,
+            recNos.length);
+
+        for (int i = 0; i < recNos.length; i++) {
+            assertEquals(
+                expected[i],
+                recNos[i]);
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testFindLiteral() {
+
+        // none of these are patterns
+        final String[] criteria = new String[] {
+            "Swan.*",
+            "(Atl"
+        };
+
+        final int[] recNos = o.find(criteria);
+        assertEquals(
+            0,
+            recNos.length);
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testFindNullString() {
+
+        final String[] criteria = new String[] {
+            null,
+            "Atl"
+        };
+        final int[] expected = new int[] {
+            11,
+            12,
+            13
+        };
+
+        final int[] recNos = o.find(criteria);
+        assertEquals(
+            expected.length,
+            recNos.length);
+
+        for (int i = 0; i < recNos.length; i++) {
+            assertEquals(
+                expected[i],
+                recNos[i]);
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testFindStringNull() {
+
+        final String[] criteria = new String[] {
+            "Swan",
+            null
+        };
+        final int[] expected = new int[] {
+            1,
+            12,
+            22
+        };
+
+        final int[] recNos = o.find(criteria);
+        assertEquals(
+            expected.length,
+            recNos.length);
+
+        for (int i = 0; i < recNos.length; i++) {
+            assertEquals(
+                expected[i],
+                recNos[i]);
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testFindNullNull() {
+
+        final String[] criteria = new String[] {
+            null,
+            null
+        };
+        final int[] expected = new int[] {
+            0,
+            1,
+            2,
+            3,
+            4,
+            5,
+            6,
+            7,
+            8,
+            9,
+            10,
+            11,
+            12,
+            13,
+            14,
+            15,
+            16,
+            17,
+            18,
+            19,
+            20,
+            21,
+            22,
+            23,
+            24,
+            25,
+            26,
+            27,
+            28
+        };
+
+        final int[] recNos = o.find(criteria);
+        assertEquals(
+            expected.length,
+            recNos.length);
+
+        for (int i = 0; i < recNos.length; i++) {
+            assertEquals(
+                expected[i],
+                recNos[i]);
+        }
+    }
+
+    // ----------------------------------------------------------
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testLockFifo() {
+
+        final int recNo = 7;
+        final List order = new ArrayList();
+
+        long cookie = -1;
+        try {
+            cookie = o.lock(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // queue up waiting threads, one at a time
+        final Thread[] waiters = new Thread[5];
+        for (int i = 0; i < waiters.length; i++) {
+            final Integer id = new Integer(i);
+            waiters[i] = new Thread("waiter " + i) {
+
+                public void run() {
+
+                    try {
+                        final long waiterCookie = o.lock(recNo);
+                        synchronized (order) {
+                            order.add(id);
+                        }
+                        o.unlock(
+                            recNo,
+                            waiterCookie);
+                    } catch (final RecordNotFoundException e) {
+                        e.printStackTrace();
+                        fail();
+                    }
+                }
+            };
+            waiters[i].start();
+            try {
+                Thread.sleep(100);
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        try {
+            o.unlock(
+                recNo,
+                cookie);
+            for (int i = 0; i < waiters.length; i++) {
+                waiters[i].join();
+            }
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // the lock was handed on in the order it was asked for
+        assertEquals(
+            waiters.length,
+            order.size());
+        for (int i = 0; i < waiters.length; i++) {
+            assertEquals(
+                new Integer(i),
+                order.get(i));
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testTryLock() {
+
+        final int recNo = 9;
+
+        long cookie = -1;
+        try {
+            cookie = o.tryLock(recNo);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final RecordLockedException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // the record is locked, so neither call may succeed
+        try {
+            o.tryLock(recNo);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final RecordLockedException e) {
+            // expected
+        }
+
+        final long start = System.currentTimeMillis();
+        try {
+            o.lock(recNo, 200);
+            fail();
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final RecordLockedException e) {
+            assertTrue(System.currentTimeMillis() - start >= 150);
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // an interrupted thread stops waiting
+        final boolean[] interrupted = new boolean[1];
+        final Thread waiter = new Thread("waiter") {
+
+            public void run() {
+
+                try {
+                    o.lock(recNo, 60000);
+                } catch (final RecordNotFoundException e) {
+                    e.printStackTrace();
+                } catch (final RecordLockedException e) {
+                    e.printStackTrace();
+                } catch (final InterruptedException e) {
+                    interrupted[0] = true;
+                }
+            }
+        };
+        waiter.start();
+        try {
+            Thread.sleep(100);
+            waiter.interrupt();
+            waiter.join(5000);
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+        assertTrue(interrupted[0]);
+
+        // the threads that gave up are no longer in the queue
+        try {
+            o.unlock(
+                recNo,
+                cookie);
+            o.unlock(
+                recNo,
+                o.tryLock(recNo));
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final RecordLockedException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testLockLease() {
+
+        final DataOptions options = new DataOptions();
+        options.setLockLease(200);
+
+        Data leased = null;
+        try {
+            leased = new Data("C:/tmp/db-2x1.db", options);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        final int recNo = 11;
+        try {
+
+            // a dead client locks a record, and never unlocks it
+            final long cookie = leased.lock(recNo);
+            leased.renewLock(
+                recNo,
+                cookie);
+
+            // the next client gets the lock once the lease runs out
+            final long start = System.currentTimeMillis();
+            final long nextCookie = leased.lock(recNo, 5000);
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            assertEquals(
+                1,
+                leased.getExpiredLocks());
+
+            // the expired cookie no longer works
+            System.err
+                .println("Expect a java.lang.SecurityException");
+            try {
+                leased.unlock(
+                    recNo,
+                    cookie);
+                fail();
+            } catch (final SecurityException e) {
+                // this is what we expect
+                e.printStackTrace();
+            }
+
+            leased.unlock(
+                recNo,
+                nextCookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final RecordLockedException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCancelAfterExpiry() {
+
+        final LockManager lockManager = new LockManager(1);
+        final int recNo = 11;
+        final Throwable[] failure = new Throwable[1];
+        final long stop = System.currentTimeMillis() + 1000;
+
+        /* Clients never unlock, and give up as soon as they can,
+         * so a lock is often handed over and expired before its
+         * client sees it.
+         */
+        final Thread[] clients = new Thread[4];
+        for (int i = 0; i < clients.length; i++) {
+            clients[i] = new Thread() {
+
+                public void run() {
+
+                    try {
+                        while (System.currentTimeMillis() < stop) {
+                            try {
+                                lockManager.lock(recNo, 1);
+                            } catch (final RecordLockedException e) {
+                                // expected
+                            }
+                        }
+                    } catch (final Throwable e) {
+                        synchronized (failure) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            };
+            clients[i].start();
+        }
+
+        // take the locks as fast as their leases run out
+        while (System.currentTimeMillis() < stop) {
+            lockManager.expireLocks();
+        }
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                clients[i].join();
+            }
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        synchronized (failure) {
+            if (null != failure[0]) {
+                failure[0].printStackTrace();
+                fail();
+            }
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCompareAndSet() {
+
+        final int recNo = 11;
+        final int owner = 5;
+
+        try {
+            final String original = o.read(recNo)[owner];
+
+            // the field holds the expected value, so it is set
+            assertTrue(o.compareAndSet(
+                recNo,
+                owner,
+                original,
+                "12345678",
+                0));
+            assertEquals("12345678", o.read(recNo)[owner].trim());
+
+            // the field no longer holds it, so nothing changes
+            assertFalse(o.compareAndSet(
+                recNo,
+                owner,
+                original,
+                "87654321",
+                0));
+            assertEquals("12345678", o.read(recNo)[owner].trim());
+
+            // a client lock keeps the field from being set
+            final long cookie = o.lock(recNo);
+            try {
+                o.compareAndSet(
+                    recNo,
+                    owner,
+                    "12345678",
+                    original,
+                    0);
+                fail();
+            } catch (final RecordLockedException e) {
+                // expected
+            }
+            o.unlock(recNo, cookie);
+
+            // restore the original value
+            assertTrue(o.compareAndSet(
+                recNo,
+                owner,
+                "12345678",
+                original,
+                0));
+            assertEquals(original, o.read(recNo)[owner]);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final RecordLockedException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testWriteFields() {
+
+        final int recNo = 13;
+        final int owner = 5;
+
+        try {
+            final String[] original = o.read(recNo);
+
+            // change only the owner, and read it back from the file
+            final String[] values = o.read(recNo);
+            values[owner] = "24681357";
+            final long cookie = o.lock(recNo);
+            o.update(recNo, values, cookie);
+            o.unlock(recNo, cookie);
+
+            String[] reread = reopen().read(recNo);
+            for (int i = 0; i < original.length; i++) {
+                assertEquals(
+                    values[i].trim(),
+                    reread[i].trim());
+            }
+
+            // a deleted record must stay deleted in the file
+            final long deleteCookie = o.lock(recNo);
+            o.delete(recNo, deleteCookie);
+            o.unlock(recNo, deleteCookie);
+            try {
+                reopen().read(recNo);
+                fail();
+            } catch (final RecordNotFoundException e) {
+                // expected
+            }
+
+            // put the original record back
+            final int newRecNo = o.create(original);
+            reread = reopen().read(newRecNo);
+            for (int i = 0; i < original.length; i++) {
+                assertEquals(original[i], reread[i]);
+            }
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testEncoding() {
+
+        final int recNo = 17;
+        final int owner = 5;
+
+        try {
+            final String[] original = o.read(recNo);
+
+            // characters that are not US ASCII are stored as '?'
+            final String[] values = o.read(recNo);
+            values[owner] = "12\u00e934";
+            long cookie = o.lock(recNo);
+            o.update(recNo, values, cookie);
+            o.unlock(recNo, cookie);
+            assertEquals("12?34", reopen().read(recNo)[owner].trim());
+
+            // restore the original value
+            cookie = o.lock(recNo);
+            o.update(recNo, original, cookie);
+            o.unlock(recNo, cookie);
+            assertEquals(original[owner], reopen().read(recNo)[owner]);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testReadAll() {
+
+        final int[] found = o.find(new String[6]);
+
+        // every record found is read, as read() would read it
+        final String[][] records = o.readAll(found);
+        assertEquals(found.length, records.length);
+        try {
+            for (int i = 0; i < found.length; i++) {
+                final String[] values = o.read(found[i]);
+                assertEquals(values.length, records[i].length);
+                for (int j = 0; j < values.length; j++) {
+                    assertEquals(values[j], records[i][j]);
+                }
+            }
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // records that do not exist are skipped
+        final String[][] missing = o.readAll(new int[] {
+            -1,
+            found[0],
+            Integer.MAX_VALUE
+        });
+        assertNull(missing[0]);
+        assertNotNull(missing[1]);
+        assertNull(missing[2]);
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCompact() {
+
+        // compact a copy, so record numbers stay put for the others
+        final String filename = "C:/tmp/db-2x1.db-compact";
+        try {
+            final Data d = copy(filename);
+            final String[] all = new String[6];
+
+            final int[] live = d.find(all);
+            final int lastRecNo = live[live.length - 1];
+            final String[] last = d.read(lastRecNo);
+
+            // delete the first few records
+            final int deleted = 5;
+            for (int i = 0; i < deleted; i++) {
+                final long cookie = d.lock(live[i]);
+                d.delete(live[i], cookie);
+                d.unlock(live[i], cookie);
+            }
+
+            final long length = new File(filename).length();
+            final int compacted = d.compact();
+            assertTrue(compacted >= deleted);
+            assertTrue(new File(filename).length() < length);
+
+            // the live records now fill the first record numbers
+            final int[] compact = d.find(all);
+            assertEquals(live.length - deleted, compact.length);
+            assertEquals(
+                compact.length - 1,
+                compact[compact.length - 1]);
+
+            // the old record number of a moved record still works
+            String[] values = d.read(lastRecNo);
+            for (int i = 0; i < last.length; i++) {
+                assertEquals(last[i], values[i]);
+            }
+            final long cookie = d.lock(lastRecNo);
+            d.update(lastRecNo, values, cookie);
+            d.unlock(lastRecNo, cookie);
+
+            // the file holds the compacted records
+            final Data reopened = new Data(filename);
+            assertEquals(compact.length, reopened.find(all).length);
+            values = reopened.read(compact[compact.length - 1]);
+            assertNotNull(values);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCompactPaged() {
+
+        final String filename = "C:/tmp/db-2x1.db-compactPaged";
+
+        final DataOptions options = new DataOptions();
+        options.setRecordLayout(RecordLayout.PAGED);
+
+        try {
+            copy(filename);
+            final Data d = new Data(filename, options);
+            final String[] all = new String[6];
+
+            // cache every page, then cut the last records off
+            final int[] live = d.find(all);
+            final String[][] records = d.readAll(live);
+            final int deleted = 3;
+            for (int i = live.length - deleted; i < live.length; i++) {
+                final long cookie = d.lock(live[i]);
+                d.delete(live[i], cookie);
+                d.unlock(live[i], cookie);
+            }
+            d.compact();
+
+            // records added past the new end are read as written
+            for (int i = live.length - deleted; i < live.length; i++) {
+                final String[] values = records[i];
+                values[0] = "Appended " + i;
+                final int recNo = d.create(values);
+                assertEquals(values[0], d.read(recNo)[0]);
+            }
+
+            final Data reopened = new Data(filename, options);
+            assertEquals(d.find(all).length, reopened.find(all).length);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testCreateReusesLowest() {
+
+        final String filename = "C:/tmp/db-2x1.db-reuseLowest";
+        try {
+            final Data d = copy(filename);
+            final String[] all = new String[6];
+            d.compact();
+
+            // free a low slot, then a higher one
+            final int[] live = d.find(all);
+            final String[] values = d.read(live[0]);
+            for (int i = 0; i <= 2; i += 2) {
+                final long cookie = d.lock(live[i]);
+                d.delete(live[i], cookie);
+                d.unlock(live[i], cookie);
+            }
+
+            // the lowest free slot is re-used first
+            values[0] = "Lowest Slot Contractors";
+            assertEquals(live[0], d.create(values));
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testReadDuringCompact() {
+
+        final String filename = "C:/tmp/db-2x1.db-readDuringCompact";
+        try {
+            final Data d = copy(filename);
+            final int[] live = d.find(new String[6]);
+            final String[][] records = d.readAll(live);
+            final int half = live.length / 2;
+            final Exception[] failure = new Exception[1];
+
+            // delete the low half, one at a time, compacting each
+            final Thread compactor = new Thread("compactor") {
+
+                public void run() {
+
+                    try {
+                        for (int i = 0; i < half; i++) {
+                            final long cookie = d.lock(live[i]);
+                            d.delete(live[i], cookie);
+                            d.unlock(live[i], cookie);
+                            d.compact();
+                        }
+                    } catch (final RecordNotFoundException e) {
+                        failure[0] = e;
+                    } catch (final IOException e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            compactor.start();
+
+            // the high half, as it is moved, is always readable
+            while (compactor.isAlive()) {
+                for (int i = half; i < live.length; i++) {
+                    assertEquals(records[i][0], d.read(live[i])[0]);
+                }
+            }
+            compactor.join();
+            assertNull(failure[0]);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InterruptedException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testSnapshot() {
+
+        final String filename = "C:/tmp/db-2x1.db-snapshot";
+        final File snapshotFile = new File(filename + ".snapshot");
+
+        final DataOptions options = new DataOptions();
+        options.setRecordLayout(RecordLayout.COLUMNS);
+        options.setSnapshot(true);
+        options.setIndexFields(new int[] {
+            0
+        });
+        options.setBitmapFields(new int[] {
+            1,
+            5
+        });
+
+        try {
+            copy(filename);
+            snapshotFile.delete();
+
+            final Data d = new Data(filename, options);
+            d.checkpoint();
+            assertTrue(snapshotFile.exists());
+
+            // a snapshot that matches the file is used, not deleted
+            final Data restarted = new Data(filename, options);
+            assertTrue(snapshotFile.exists());
+
+            // the records and indexes are as they were
+            final String[] all = new String[6];
+            final int[] recNos = d.find(all);
+            final String[][] records = d.readAll(recNos);
+            final String[][] restored = restarted.readAll(recNos);
+            assertEquals(recNos.length, restarted.find(all).length);
+            for (int i = 0; i < recNos.length; i++) {
+                for (int j = 0; j < all.length; j++) {
+                    assertEquals(records[i][j], restored[i][j]);
+                }
+            }
+            final String[] criteria = new String[] {
+                records[0][0].substring(0, 2),
+                records[0][1],
+                null,
+                null,
+                null,
+                null
+            };
+            assertEquals(
+                d.find(criteria).length,
+                restarted.find(criteria).length);
+            final int[] blank = new int[] {
+                5
+            };
+            assertEquals(
+                d.find(all, blank).length,
+                restarted.find(all, blank).length);
+
+            // the first change deletes the snapshot
+            final long cookie = restarted.lock(recNos[0]);
+            restarted.update(recNos[0], records[0], cookie);
+            restarted.unlock(recNos[0], cookie);
+            assertFalse(snapshotFile.exists());
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // snapshots hold the records in columns only
+        options.setRecordLayout(RecordLayout.OBJECTS);
+        try {
+            new Data(filename, options);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testSnapshotStale() {
+
+        final String filename = "C:/tmp/db-2x1.db-snapshotStale";
+        final File file = new File(filename);
+        final File snapshotFile = new File(filename + ".snapshot");
+
+        final DataOptions options = new DataOptions();
+        options.setRecordLayout(RecordLayout.COLUMNS);
+        options.setSnapshot(true);
+
+        try {
+            copy(filename);
+            snapshotFile.delete();
+            final Data d = new Data(filename, options);
+            final int[] recNos = d.find(new String[6]);
+            d.checkpoint();
+
+            /* Update a record without snapshots, keeping the file's
+             * length and time stamp, as an update within the same
+             * second would.
+             */
+            final long modified = file.lastModified();
+            final Data other = new Data(filename);
+            String[] values = other.read(recNos[0]);
+            values[1] = "Stale City";
+            final long cookie = other.lock(recNos[0]);
+            other.update(recNos[0], values, cookie);
+            other.unlock(recNos[0], cookie);
+            file.setLastModified(modified);
+
+            // the snapshot no longer matches, and is not used
+            values = new Data(filename, options).read(recNos[0]);
+            assertEquals("Stale City", values[1]);
+            assertFalse(snapshotFile.exists());
+
+            // a snapshot of an earlier generation is not used
+            final Data current = new Data(filename, options);
+            current.checkpoint();
+            final RandomAccessFile saved = new RandomAccessFile(
+                snapshotFile,
+                "r");
+            final byte[] savedBytes = new byte[(int) saved.length()];
+            try {
+                saved.readFully(savedBytes);
+            } finally {
+                saved.close();
+            }
+            values[1] = "Newer City";
+            final long newCookie = current.lock(recNos[0]);
+            current.update(recNos[0], values, newCookie);
+            current.unlock(recNos[0], newCookie);
+            final FileOutputStream restored = new FileOutputStream(
+                snapshotFile);
+            try {
+                restored.write(savedBytes);
+            } finally {
+                restored.close();
+            }
+            values = new Data(filename, options).read(recNos[0]);
+            assertEquals("Newer City", values[1]);
+            assertFalse(snapshotFile.exists());
+
+            // a snapshot with a bogus record count is not used
+            new Data(filename, options).checkpoint();
+            final RandomAccessFile snapshot = new RandomAccessFile(
+                snapshotFile,
+                "rw");
+            try {
+                snapshot.seek(4 + 4 + 8 + 8 + 8 + 4 + 4 * values.length);
+                snapshot.writeInt(Integer.MAX_VALUE);
+            } finally {
+                snapshot.close();
+            }
+            assertEquals(
+                recNos.length,
+                new Data(filename, options).find(new String[6]).length);
+            assertFalse(snapshotFile.exists());
+
+            /* A program that keeps no generation changes the end
+             * of the file, and leaves the generation file as it
+             * was; the snapshot no longer matches the contents.
+             */
+            new Data(filename, options).checkpoint();
+            final RandomAccessFile database = new RandomAccessFile(
+                file,
+                "rw");
+            try {
+                database.seek(database.length() - 1);
+                final int b = database.read();
+                database.seek(database.length() - 1);
+                database.write(b ^ 1);
+            } finally {
+                database.close();
+            }
+            file.setLastModified(modified);
+            new Data(filename, options);
+            assertFalse(snapshotFile.exists());
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testSnapshotJournal() {
+
+        final String filename = "C:/tmp/db-2x1.db-snapshotJournal";
+        final File snapshotFile = new File(filename + ".snapshot");
+
+        final DataOptions options = new DataOptions();
+        options.setRecordLayout(RecordLayout.COLUMNS);
+        options.setSnapshot(true);
+        options.setJournal(true);
+        options.setForcePolicy(ForcePolicy.REQUEST);
+
+        try {
+            copy(filename);
+            snapshotFile.delete();
+            new File(filename + ".journal").delete();
+            final Data d = new Data(filename, options);
+
+            // change a record, then checkpoint straight away
+            final int[] recNos = d.find(new String[6]);
+            final String[] values = d.read(recNos[0]);
+            values[1] = "Journal City";
+            final long cookie = d.lock(recNos[0]);
+            d.update(recNos[0], values, cookie);
+            d.unlock(recNos[0], cookie);
+            d.checkpoint();
+
+            // the snapshot matches the file without the journal
+            options.setJournal(false);
+            final Data restarted = new Data(filename, options);
+            assertTrue(snapshotFile.exists());
+            assertEquals("Journal City", restarted.read(recNos[0])[1]);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Copies the test database, and opens the copy.
+     *
+     * @param filename
+     * the name of the copy.
+     *
+     * @return
+     * a new <code>Data</code> instance for the copy.
+     *
+     * @throws IOException
+     * if the copy fails.
+     *
+     * @throws InvalidMagicCookieException
+     * if the copy can not be opened.
+     *
+     * @throws InvalidDataHeaderException
+     * if the copy can not be opened.
+     */
+    private Data copy(final String filename)
+        throws IOException,
+        InvalidMagicCookieException,
+        InvalidDataHeaderException {
+
+        final FileInputStream in = new FileInputStream(
+            "C:/tmp/db-2x1.db");
+        final FileOutputStream out = new FileOutputStream(filename);
+        try {
+            final byte[] buffer = new byte[4096];
+            int count;
+            while (-1 != (count = in.read(buffer))) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        return new Data(filename);
+    }
+
+    /**
+     * Opens the test database again, to see what is in the file.
+     *
+     * @return
+     * a new <code>Data</code> instance.
+     */
+    private Data reopen() {
+
+        try {
+            return new Data("C:/tmp/db-2x1.db");
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+        fail();
+
+        return null;
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testChecksums() {
+
+        final String filename = "C:/tmp/db-2x1.db-checksums";
+        final File checksumFile = new File(filename + ".crc");
+
+        final DataOptions options = new DataOptions();
+        options.setChecksums(true);
+
+        try {
+            copy(filename);
+            checksumFile.delete();
+
+            // the checksums are written from the records as they are
+            final Data d = new Data(filename, options);
+            assertTrue(checksumFile.exists());
+
+            // change part of one record, and add another
+            final int[] recNos = d.find(new String[6]);
+            final String[] values = d.read(recNos[0]);
+            values[1] = "Checksum City";
+            final long cookie = d.lock(recNos[0]);
+            d.update(recNos[0], values, cookie);
+            d.unlock(recNos[0], cookie);
+            values[0] = "Checksum Contractors";
+            final int created = d.create(values);
+
+            // every record still matches its checksum
+            final Data reopened = new Data(filename, options);
+            assertEquals("Checksum City", reopened
+                .read(recNos[0])[1]
+                .trim());
+            assertEquals(values[0], reopened.read(created)[0].trim());
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // change the last byte of the file, as a torn write would
+        try {
+            final RandomAccessFile file = new RandomAccessFile(
+                filename,
+                "rw");
+            try {
+                file.seek(file.length() - 1);
+                final int b = file.read();
+                file.seek(file.length() - 1);
+                file.write(b ^ 1);
+            } finally {
+                file.close();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // the changed record is found, in every record layout
+        final RecordLayout[] layouts = new RecordLayout[] {
+            RecordLayout.OBJECTS,
+            RecordLayout.COLUMNS,
+            RecordLayout.PAGED
+        };
+        for (int i = 0; i < layouts.length; i++) {
+            options.setRecordLayout(layouts[i]);
+            try {
+                new Data(filename, options);
+                fail();
+            } catch (final InvalidMagicCookieException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final InvalidDataHeaderException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final IOException e) {
+                // expected
+            }
+        }
+
+        // without a journal, checksums need synchronous writes
+        final DataOptions mapped = new DataOptions();
+        mapped.setChecksums(true);
+        mapped.setStorageMode(StorageMode.MAPPED);
+        try {
+            new Data(filename, mapped);
+            fail();
+        } catch (final IllegalArgumentException e) {
+            // expected
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testTornAppend() {
+
+        final String filename = "C:/tmp/db-2x1.db-tornAppend";
+        final File file = new File(filename);
+        final File checksumFile = new File(filename + ".crc");
+
+        final DataOptions options = new DataOptions();
+        options.setChecksums(true);
+
+        int created = -1;
+        int count = -1;
+        long length = -1;
+        try {
+            copy(filename);
+            checksumFile.delete();
+
+            // create records until one is appended
+            final Data d = new Data(filename, options);
+            final String[] values = d.read(d.find(new String[6])[0]);
+            int i = 0;
+            do {
+                length = file.length();
+                count = d.find(new String[6]).length;
+                values[0] = "Torn Append Contractors " + i++;
+                created = d.create(values);
+            } while (length == file.length());
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        /* Drop the last checksum and add half a record, as an
+         * append that stopped before its checksum was written
+         * would.
+         */
+        try {
+            final RandomAccessFile crc = new RandomAccessFile(
+                checksumFile,
+                "rw");
+            try {
+                crc.setLength(crc.length() - 8);
+            } finally {
+                crc.close();
+            }
+            final RandomAccessFile db = new RandomAccessFile(file, "rw");
+            try {
+                db.setLength(db.length() + (db.length() - length) / 2);
+            } finally {
+                db.close();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        // the torn record is dropped, and the rest are loaded
+        try {
+            final Data d = new Data(filename, options);
+            assertEquals(length, file.length());
+            try {
+                d.read(created);
+                fail();
+            } catch (final RecordNotFoundException e) {
+                // expected
+            }
+            assertEquals(count, d.find(new String[6]).length);
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testChecksumsBeforeUpdate() {
+
+        final String filename = "C:/tmp/db-2x1.db-checksumsBeforeUpdate";
+        final File checksumFile = new File(filename + ".crc");
+
+        final DataOptions options = new DataOptions();
+        options.setChecksums(true);
+
+        byte[] before = null;
+        int recNo = -1;
+        try {
+            copy(filename);
+            checksumFile.delete();
+
+            // keep the file as it is before an update
+            final Data d = new Data(filename, options);
+            recNo = d.find(new String[6])[0];
+            before = readFile(filename);
+
+            final String[] values = d.read(recNo);
+            values[1] = "Checksum City";
+            final long cookie = d.lock(recNo);
+            d.update(recNo, values, cookie);
+            d.unlock(recNo, cookie);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        /* Put the record back as it was, as an update that
+         * stopped after its checksums were written would leave it.
+         */
+        try {
+            final RandomAccessFile file = new RandomAccessFile(
+                filename,
+                "rw");
+            try {
+                file.write(before);
+            } finally {
+                file.close();
+            }
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
 
+        // the record as it was still matches a checksum
         try {
-            lockCookie = o.lock(recNo);
+            final Data d = new Data(filename, options);
+            final String city = d.read(recNo)[1].trim();
+            assertFalse("Checksum City".equals(city));
+
+            // a change made without checksums deletes them
+            final Data unchecked = new Data(filename);
+            final String[] values = unchecked.read(recNo);
+            values[1] = "Unchecked City";
+            final long cookie = unchecked.lock(recNo);
+            unchecked.update(recNo, values, cookie);
+            unchecked.unlock(recNo, cookie);
+            assertFalse(checksumFile.exists());
+
+            // and they are written again from the records
+            assertEquals("Unchecked City", new Data(filename, options)
+                .read(recNo)[1]
+                .trim());
+            assertTrue(checksumFile.exists());
         } catch (final RecordNotFoundException e) {
             e.printStackTrace();
             fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @param filename
+     * the file name.
+     *
+     * @return
+     * the bytes of the file.
+     *
+     * @throws IOException
+     * if the file can not be read.
+     */
+    private static byte[] readFile(final String filename)
+        throws IOException {
+
+        final RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            final byte[] bytes = new byte[(int) file.length()];
+            file.readFully(bytes);
+            return bytes;
+        } finally {
+            file.close();
         }
+    }
+
+    /**
+     * Bogus javadoc comment.
+     */
+    public void testRepair() {
+
+        final String filename = "C:/tmp/db-2x1.db-repair";
+        final File checksumFile = new File(filename + ".crc");
+
+        final DataOptions options = new DataOptions();
+        options.setChecksums(true);
 
+        final File databaseFile = new File(filename);
+        int created = -1;
+        int count = -1;
         try {
-            o.update(
-                recNo,
-                data,
-                lockCookie);
+            copy(filename);
+            checksumFile.delete();
+
+            // create records until one is appended, so it is last
+            final Data d = new Data(filename, options);
+            final String[] values = d.read(d.find(new String[6])[0]);
+            int i = 0;
+            long length;
+            do {
+                length = databaseFile.length();
+                values[0] = "Repair Contractors " + i++;
+                created = d.create(values);
+            } while (length == databaseFile.length());
+            count = d.find(new String[6]).length;
         } catch (final RecordNotFoundException e) {
             e.printStackTrace();
             fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
         }
 
+        // change the last byte of the file, as a torn write would
         try {
-            o.unlock(
-                recNo,
-                lockCookie);
-        } catch (final RecordNotFoundException e) {
+            final RandomAccessFile file = new RandomAccessFile(
+                filename,
+                "rw");
+            try {
+                file.seek(file.length() - 1);
+                final int b = file.read();
+                file.seek(file.length() - 1);
+                file.write(b ^ 1);
+            } finally {
+                file.close();
+            }
+        } catch (final IOException e) {
             e.printStackTrace();
             fail();
         }
-    }
 
-    // ----------------------------------------------------------
+        // the changed record is deleted, and stays deleted
+        options.setRepair(true);
+        try {
+            assertEquals(count - 1, new Data(filename, options)
+                .find(new String[6]).length);
+
+            options.setRepair(false);
+            final Data d = new Data(filename, options);
+            assertEquals(count - 1, d.find(new String[6]).length);
+            try {
+                d.read(created);
+                fail();
+            } catch (final RecordNotFoundException e) {
+                // expected
+            }
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+    }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testFindStringString() {
+    public void testWriteBehind() {
 
-        final String[] criteria = new String[] {
-            "Swan",
-            "Atl"
-        };
-        final int[] expected = new int[] {
-            12
-        };
+        final String filename = "C:/tmp/db-2x1.db-writeBehind";
 
-        final int[] recNos = o.find(criteria);
-        assertEquals(
-            expected.length,
-            recNos.length);
+        final DataOptions options = new DataOptions();
+        options.setForcePolicy(ForcePolicy.REQUEST);
+        options.setWriteBehind(2);
 
-        for (int i = 0; i < recNos.length; i++) {
-            assertEquals(
-                expected[i],
-                recNos[i]);
+        try {
+            copy(filename);
+            final Data d = new Data(filename, options);
+
+            // more changes than the queue holds
+            final int[] recNos = d.find(new String[6]);
+            final long cookie = d.lock(recNos[0]);
+            final String[] values = d.read(recNos[0]);
+            for (int i = 0; i < 10; i++) {
+                values[2] = "Queued " + i;
+                d.update(recNos[0], values, cookie, Durability.MEMORY);
+            }
+
+            // a read sees a change that may not be written yet
+            values[0] = "Write Behind";
+            final int created = d.create(values, Durability.MEMORY);
+            assertEquals("Write Behind", d.read(created)[0].trim());
+
+            // once written, the change is in the file
+            d.delete(recNos[0], cookie, Durability.OS_BUFFER);
+            d.unlock(recNos[0], cookie);
+            Data reopened = new Data(filename);
+            assertEquals("Queued 9", reopened.read(created)[2].trim());
+            try {
+                reopened.read(recNos[0]);
+                fail();
+            } catch (final RecordNotFoundException e) {
+                // expected
+            }
+
+            values[0] = "Forced";
+            d.create(values, Durability.FORCE);
+            reopened = new Data(filename);
+            assertEquals(1, reopened.find(new String[] {
+                "Forced",
+                null,
+                null,
+                null,
+                null,
+                null
+            }).length);
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
         }
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testFindNullString() {
+    public void testClose() {
 
-        final String[] criteria = new String[] {
-            null,
-            "Atl"
-        };
-        final int[] expected = new int[] {
-            11,
-            12,
-            13
-        };
+        final String filename = "C:/tmp/db-2x1.db-close";
 
-        final int[] recNos = o.find(criteria);
-        assertEquals(
-            expected.length,
-            recNos.length);
+        final DataOptions options = new DataOptions();
+        options.setForcePolicy(ForcePolicy.PERIODIC);
+        options.setForceInterval(60 * 60 * 1000);
+        options.setWriteBehind(4);
+        options.setJournal(true);
+        options.setThreads(2);
+        options.setLockLease(60 * 60 * 1000);
+        options.setCompactInterval(60 * 60 * 1000);
 
-        for (int i = 0; i < recNos.length; i++) {
-            assertEquals(
-                expected[i],
-                recNos[i]);
+        try {
+            copy(filename);
+            final Data d = new Data(filename, options);
+
+            // changes that are only in memory until closed
+            final int[] recNos = d.find(new String[6]);
+            final long cookie = d.lock(recNos[0]);
+            final String[] values = d.read(recNos[0]);
+            for (int i = 0; i < 10; i++) {
+                values[2] = "Closed " + i;
+                d.update(recNos[0], values, cookie, Durability.MEMORY);
+            }
+            d.unlock(recNos[0], cookie);
+            values[0] = "Close";
+            final int created = d.create(values, Durability.MEMORY);
+            d.close();
+
+            // the changes are on disk
+            final Data reopened = new Data(filename);
+            assertEquals("Closed 9", reopened.read(recNos[0])[2].trim());
+            assertEquals("Close", reopened.read(created)[0].trim());
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final DuplicateKeyException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
         }
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testFindStringNull() {
+    public void testUnpadded() {
 
-        final String[] criteria = new String[] {
-            "Swan",
-            null
-        };
-        final int[] expected = new int[] {
-            1,
-            12,
-            22
+        final String filename = "C:/tmp/db-2x1.db-unpadded";
+
+        final RecordLayout[] layouts = new RecordLayout[] {
+            RecordLayout.OBJECTS,
+            RecordLayout.COLUMNS,
+            RecordLayout.PAGED
         };
+        for (int layout = 0; layout < layouts.length; layout++) {
+            final DataOptions options = new DataOptions();
+            options.setRecordLayout(layouts[layout]);
 
-        final int[] recNos = o.find(criteria);
-        assertEquals(
-            expected.length,
-            recNos.length);
+            try {
+                copy(filename);
+                final Data d = new Data(filename, options);
+
+                // no value read from the file has padding
+                final int[] recNos = d.find(new String[6]);
+                final String[][] records = d.readAll(recNos);
+                for (int i = 0; i < records.length; i++) {
+                    for (int j = 0; j < records[i].length; j++) {
+                        assertFalse(records[i][j].endsWith(" "));
+                        assertFalse(records[i][j].endsWith("\u0000"));
+                    }
+                }
 
-        for (int i = 0; i < recNos.length; i++) {
-            assertEquals(
-                expected[i],
-                recNos[i]);
+                // a value reads the same before and after reopening
+                final Data.FieldDescriptor[] fields = d
+                    .getFieldDescriptors();
+                final String[] values = records[0];
+                values[2] = "Padded   ";
+                final StringBuffer buffer = new StringBuffer();
+                while (buffer.length() <= fields[3].getDataLength()) {
+                    buffer.append('x');
+                }
+                values[3] = buffer.toString();
+                final long cookie = d.lock(recNos[0]);
+                d.update(recNos[0], values, cookie);
+                d.unlock(recNos[0], cookie);
+
+                final String[] updated = d.read(recNos[0]);
+                assertEquals("Padded", updated[2]);
+                assertEquals(fields[3].getDataLength(), updated[3]
+                    .length());
+
+                final String[] reread = new Data(filename, options)
+                    .read(recNos[0]);
+                for (int i = 0; i < updated.length; i++) {
+                    assertEquals(updated[i], reread[i]);
+                }
+            } catch (final RecordNotFoundException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final InvalidMagicCookieException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final InvalidDataHeaderException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final IOException e) {
+                e.printStackTrace();
+                fail();
+            }
         }
     }
 
     /**
      * Bogus javadoc comment.
      */
-    public void testFindNullNull() {
+    public void testFindCanonical() {
 
-        final String[] criteria = new String[] {
-            null,
-            null
+        final String filename = "C:/tmp/db-2x1.db-findCanonical";
+        final int owner = 5;
+
+        // store an owner with a byte that is not US ASCII
+        int recNo = -1;
+        String[] values = null;
+        try {
+            final Data d = copy(filename);
+            recNo = d.find(new String[6])[0];
+            values = d.read(recNo);
+            values[0] = "Freddy Contractors";
+            values[owner] = "12\u00e934";
+            final long cookie = d.lock(recNo);
+            d.update(recNo, values, cookie);
+            d.unlock(recNo, cookie);
+
+            // the update stored '?'; store the byte itself instead
+            final RandomAccessFile file = new RandomAccessFile(
+                filename,
+                "rw");
+            try {
+                final byte[] bytes = new byte[(int) file.length()];
+                file.readFully(bytes);
+                final byte[] stored = "12?34".getBytes("US-ASCII");
+                int at = 0;
+                while (!new String(bytes, at, stored.length, "US-ASCII")
+                    .equals("12?34")) {
+                    at++;
+                }
+                file.seek(at + 2);
+                file.write(0xe9);
+            } finally {
+                file.close();
+            }
+        } catch (final RecordNotFoundException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidMagicCookieException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final InvalidDataHeaderException e) {
+            e.printStackTrace();
+            fail();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            fail();
+        }
+
+        final RecordLayout[] layouts = new RecordLayout[] {
+            RecordLayout.OBJECTS,
+            RecordLayout.COLUMNS,
+            RecordLayout.PAGED
         };
-        final int[] expected = new int[] {
-            0,
-            1,
-            2,
-            3,
-            4,
-            5,
-            6,
-            7,
-            8,
-            9,
-            10,
-            11,
-            12,
-            13,
-            14,
-            15,
-            16,
-            17,
-            18,
-            19,
-            20,
-            21,
-            22,
-            23,
-            24,
-            25,
-            26,
-            27,
-            28
+        final String[] owners = new String[] {
+            "12\u00e9",
+            "12?"
         };
+        final int[] counts = new int[layouts.length];
+        for (int layout = 0; layout < layouts.length; layout++) {
+            final DataOptions options = new DataOptions();
+            options.setRecordLayout(layouts[layout]);
 
-        final int[] recNos = o.find(criteria);
-        assertEquals(
-            expected.length,
-            recNos.length);
+            try {
+                final Data d = new Data(filename, options);
+                assertEquals("12?34", d.read(recNo)[owner]);
+
+                // trailing padding, and a character read as '?'
+                for (int i = 0; i < owners.length; i++) {
+                    final String[] criteria = new String[6];
+                    criteria[0] = values[0] + " ";
+                    criteria[owner] = owners[i];
+                    final int[] found = d.find(criteria);
+                    assertTrue(contains(found, recNo));
+                    counts[layout] += found.length;
+                }
 
-        for (int i = 0; i < recNos.length; i++) {
-            assertEquals(
-                expected[i],
-                recNos[i]);
+                // a trailing space in the criterion is kept
+                final String[] criteria = new String[6];
+                criteria[0] = "Fred ";
+                assertFalse(contains(d.find(criteria), recNo));
+            } catch (final RecordNotFoundException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final InvalidMagicCookieException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final InvalidDataHeaderException e) {
+                e.printStackTrace();
+                fail();
+            } catch (final IOException e) {
+                e.printStackTrace();
+                fail();
+            }
         }
-    }
 
-    // ----------------------------------------------------------
+        // every layout finds the same records
+        for (int layout = 1; layout < layouts.length; layout++) {
+            assertEquals(counts[0], counts[layout]);
+        }
+    }
 
     /**
      * Bogus javadoc comment.
@@ -0,0 +1,105 @@
+/*
+ * @(#)Durability.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>Durability</code> class enumerates how far a change
+ * must have gone towards the storage device before the call
+ * that made it returns.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public final class Durability {
+
+    /**
+     * Return once the change is queued in memory. With
+     * write-behind it is written to the file later, by the
+     * writer thread.
+     */
+    public static final Durability MEMORY = new Durability(
+        "memory");
+
+    /**
+     * Return once the change has been written to the file, so
+     * it is in the operating system's buffers and survives the
+     * server, but not a crash of the machine.
+     */
+    public static final Durability OS_BUFFER = new Durability(
+        "buffer");
+
+    /**
+     * Return once the change has been forced to the storage
+     * device.
+     */
+    public static final Durability FORCE = new Durability(
+        "force");
+
+    /** All durabilities, for parsing. */
+    private static final Durability[] VALUES = new Durability[] {
+        MEMORY,
+        OS_BUFFER,
+        FORCE
+    };
+
+    /** The name of the durability. */
+    private final String name;
+
+    /**
+     * Constructs a <code>Durability</code>.
+     *
+     * @param newName
+     * the name of the durability.
+     */
+    private Durability(final String newName) {
+
+        name = newName;
+    }
+
+    /**
+     * Returns the <code>Durability</code> with the specified
+     * name.
+     *
+     * @param name
+     * the name of the durability.
+     *
+     * @return
+     * the matching <code>Durability</code>.
+     *
+     * @throws IllegalArgumentException
+     * if there is no durability with that name.
+     */
+    public static Durability parse(final String name) {
+
+        // validate arguments
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+
+        for (int i = 0; i < VALUES.length; i++) {
+            if (VALUES[i].name.equalsIgnoreCase(name.trim())) {
+                return VALUES[i];
+            }
+        }
+        throw new IllegalArgumentException("durability was '"
+            + name
+            + "'");
+    }
+
+    /**
+     * Returns the name of the durability.
+     *
+     * @return
+     * the name of the durability.
+     */
+    public String toString() {
+
+        return name;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * @(#)ExtendedDB.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>ExtendedDB</code> interface extends the
+ * <code>TimedLockDB</code> interface with searches for blank
+ * fields, with reads of several records at once, and with a
+ * compare-and-set that needs no client lock.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public interface ExtendedDB extends TimedLockDB {
+
+    /**
+     * Returns an array of record numbers that match the
+     * specified criteria, and whose values are blank in the
+     * specified fields.
+     * The criteria are as for <code>find(String[])</code>.
+     * A value is blank if it is empty, or holds only spaces.
+     *
+     * @param criteria
+     * match criteria; <code>null</code> matches any value.
+     *
+     * @param blankFields
+     * the fields that must be blank, by field number.
+     *
+     * @return
+     * an array of record numbers that match the specified
+     * criteria.
+     */
+    public int[] find(String[] criteria, int[] blankFields);
+
+    /**
+     * Reads several records at once; for example, the records
+     * returned by <code>find()</code>. Records that do not exist
+     * or are marked as deleted are skipped rather than reported
+     * with an exception.
+     *
+     * @param recNos
+     * the record numbers; 0-based.
+     *
+     * @return
+     * an array with one element per record number: an array
+     * where each element is a record value, or <code>null</code>
+     * if the record does not exist or is marked as deleted.
+     */
+    public String[][] readAll(int[] recNos);
+
+    /**
+     * Sets a field of a record to a new value, if and only if the
+     * field currently holds the expected value. Trailing padding
+     * is ignored, and a blank value is <code>""</code>.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param field
+     * the field number; 0-based.
+     *
+     * @param expected
+     * the value the field must hold.
+     *
+     * @param newValue
+     * the value to set.
+     *
+     * @param timeout
+     * the longest time to wait for another client to unlock the
+     * record, in milliseconds; <code>0</code> does not wait.
+     *
+     * @return
+     * 'true' if the field was set, or 'false' if it did not hold
+     * the expected value.
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     *
+     * @throws RecordLockedException
+     * if the record is still locked by another client when the
+     * time is up.
+     *
+     * @throws InterruptedException
+     * if the current thread is interrupted while it waits; it
+     * then no longer waits for the lock.
+     */
+    public boolean compareAndSet(
+        int recNo,
+        int field,
+        String expected,
+        String newValue,
+        long timeout)
+        throws RecordNotFoundException,
+        RecordLockedException,
+        InterruptedException;
+}
@@ -0,0 +1,299 @@
+/*
+ * @(#)FieldIndex.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The <code>FieldIndex</code> class indexes the values of one
+ * field, so that records whose value begins with a prefix can be
+ * found with a range lookup rather than a scan.
+ * <p>
+ * Values are kept in a sorted map, folded to lower case and
+ * without trailing padding, as stored in the database file. A
+ * lookup may return more records than actually match (for
+ * example, deleted records, or records whose value changed a
+ * moment ago), so callers must test each record they get back.
+ * </p>
+ * <p>
+ * A <code>FieldIndex</code> is synchronized, so it can be
+ * searched while it is being changed.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class FieldIndex {
+
+    /** The field length, in bytes. */
+    private final int fieldLength;
+
+    /** Sets of record numbers, keyed by folded value. */
+    private final SortedMap values = new TreeMap();
+
+    /**
+     * Constructs an empty <code>FieldIndex</code>.
+     *
+     * @param newFieldLength
+     * the field length, in bytes.
+     */
+    FieldIndex(final int newFieldLength) {
+
+        fieldLength = newFieldLength;
+    }
+
+    /**
+     * Records that a record has a value.
+     *
+     * @param value
+     * the value.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    synchronized void add(final String value, final int recNo) {
+
+        final String key = fold(value, fieldLength);
+        Set recNos = (Set) values.get(key);
+        if (null == recNos) {
+            recNos = new HashSet();
+            values.put(key, recNos);
+        }
+        recNos.add(new Integer(recNo));
+    }
+
+    /**
+     * Records that a record no longer has a value.
+     *
+     * @param value
+     * the value.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    synchronized void remove(final String value, final int recNo) {
+
+        final String key = fold(value, fieldLength);
+        final Set recNos = (Set) values.get(key);
+        if (null != recNos) {
+            recNos.remove(new Integer(recNo));
+            if (recNos.isEmpty()) {
+                values.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Records that a record's value has changed. Other threads
+     * see either the old value or the new one, never neither.
+     *
+     * @param oldValue
+     * the old value.
+     *
+     * @param newValue
+     * the new value.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    synchronized void replace(
+        final String oldValue,
+        final String newValue,
+        final int recNo) {
+
+        if (!fold(oldValue, fieldLength).equals(
+            fold(newValue, fieldLength))) {
+            add(newValue, recNo);
+            remove(oldValue, recNo);
+        }
+    }
+
+    /**
+     * Counts the records whose value begins with a prefix,
+     * without collecting them.
+     *
+     * @param prefix
+     * the prefix.
+     *
+     * @return
+     * the number of records.
+     */
+    synchronized int count(final String prefix) {
+
+        final String key = fold(prefix, fieldLength);
+
+        int count = 0;
+        final Iterator iterator = values.tailMap(key).entrySet()
+            .iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            if (!((String) entry.getKey()).startsWith(key)) {
+                break;
+            }
+            count += ((Set) entry.getValue()).size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns the records whose value begins with a prefix.
+     *
+     * @param prefix
+     * the prefix.
+     *
+     * @return
+     * the record numbers, in ascending order.
+     */
+    synchronized int[] find(final String prefix) {
+
+        final String key = fold(prefix, fieldLength);
+
+        final int[] recNos = new int[count(prefix)];
+        int i = 0;
+        final Iterator iterator = values.tailMap(key).entrySet()
+            .iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            if (!((String) entry.getKey()).startsWith(key)) {
+                break;
+            }
+
+            final Iterator recNoIterator = ((Set) entry.getValue())
+                .iterator();
+            while (recNoIterator.hasNext()) {
+                recNos[i++] = ((Integer) recNoIterator.next())
+                    .intValue();
+            }
+        }
+        Arrays.sort(recNos);
+
+        return recNos;
+    }
+
+    /**
+     * Writes the index, for a snapshot: the number of values,
+     * then each folded value, the number of its records, and
+     * their record numbers.
+     *
+     * @param out
+     * the output to write to.
+     *
+     * @throws IOException
+     * if the write fails.
+     */
+    synchronized void writeTo(final DataOutput out) throws IOException {
+
+        out.writeInt(values.size());
+        final Iterator iterator = values.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry entry = (Map.Entry) iterator.next();
+            final Set recNos = (Set) entry.getValue();
+            out.writeUTF((String) entry.getKey());
+            out.writeInt(recNos.size());
+            final Iterator recNoIterator = recNos.iterator();
+            while (recNoIterator.hasNext()) {
+                out.writeInt(((Integer) recNoIterator.next()).intValue());
+            }
+        }
+    }
+
+    /**
+     * Reads an index written by <code>writeTo()</code>.
+     *
+     * @param in
+     * the input to read from.
+     *
+     * @param fieldLength
+     * the field length, in bytes.
+     *
+     * @return
+     * the new index.
+     *
+     * @throws IOException
+     * if the read fails, or a count is negative.
+     */
+    static FieldIndex readFrom(final DataInput in, final int fieldLength)
+        throws IOException {
+
+        final FieldIndex index = new FieldIndex(fieldLength);
+
+        final int count = readCount(in);
+        for (int i = 0; i < count; i++) {
+            final String key = in.readUTF();
+            final int size = readCount(in);
+            final Set recNos = new HashSet();
+            for (int j = 0; j < size; j++) {
+                recNos.add(new Integer(in.readInt()));
+            }
+            index.values.put(key, recNos);
+        }
+
+        return index;
+    }
+
+    /**
+     * Reads a count, written by <code>writeTo()</code>.
+     *
+     * @param in
+     * the input to read from.
+     *
+     * @return
+     * the count.
+     *
+     * @throws IOException
+     * if the read fails, or the count is negative.
+     */
+    static int readCount(final DataInput in) throws IOException {
+
+        final int count = in.readInt();
+        if (count < 0) {
+            throw new IOException("count was " + count);
+        }
+
+        return count;
+    }
+
+    /**
+     * Returns a value as it would be read back from the database
+     * file, folded to lower case.
+     *
+     * @param value
+     * the value.
+     *
+     * @param fieldLength
+     * the field length, in bytes.
+     *
+     * @return
+     * the folded value.
+     */
+    static String fold(final String value, final int fieldLength) {
+
+        final char[] chars = RecordEncoder.canonical(value, fieldLength)
+            .toCharArray();
+
+        // fold case as PrefixMatcher does
+        for (int i = 0; i < chars.length; i++) {
+            if (('A' <= chars[i]) && (chars[i] <= 'Z')) {
+                chars[i] += 'a' - 'A';
+            }
+        }
+
+        return new String(chars);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * @(#)ForcePolicy.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>ForcePolicy</code> class enumerates when changes to
+ * a memory-mapped database file are forced to the storage
+ * device.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public final class ForcePolicy {
+
+    /**
+     * Force the file once after each record is written.
+     * This is the default.
+     */
+    public static final ForcePolicy WRITE = new ForcePolicy(
+        "write");
+
+    /**
+     * Force the file from a background thread, at a fixed
+     * interval.
+     */
+    public static final ForcePolicy PERIODIC = new ForcePolicy(
+        "periodic");
+
+    /**
+     * Force the file only when <code>Data.force()</code> is
+     * called; otherwise the operating system decides.
+     */
+    public static final ForcePolicy REQUEST = new ForcePolicy(
+        "request");
+
+    /** All force policies, for parsing. */
+    private static final ForcePolicy[] VALUES = new ForcePolicy[] {
+        WRITE,
+        PERIODIC,
+        REQUEST
+    };
+
+    /** The name of the force policy. */
+    private final String name;
+
+    /**
+     * Constructs a <code>ForcePolicy</code>.
+     *
+     * @param newName
+     * the name of the force policy.
+     */
+    private ForcePolicy(final String newName) {
+
+        name = newName;
+    }
+
+    /**
+     * Returns the <code>ForcePolicy</code> with the specified
+     * name.
+     *
+     * @param name
+     * the name of the force policy.
+     *
+     * @return
+     * the matching <code>ForcePolicy</code>.
+     *
+     * @throws IllegalArgumentException
+     * if there is no force policy with that name.
+     */
+    public static ForcePolicy parse(final String name) {
+
+        // validate arguments
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+
+        for (int i = 0; i < VALUES.length; i++) {
+            if (VALUES[i].name.equalsIgnoreCase(name.trim())) {
+                return VALUES[i];
+            }
+        }
+        throw new IllegalArgumentException("force policy was '"
+            + name
+            + "'");
+    }
+
+    /**
+     * Returns the name of the force policy.
+     *
+     * @return
+     * the name of the force policy.
+     */
+    public String toString() {
+
+        return name;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * @(#)IOExceptionOnReadException.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * Instances of the <code>IOExceptionOnReadException</code>
+ * class are thrown to indicate that an IOException was thrown
+ * while reading a record.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public class IOExceptionOnReadException extends
+    RuntimeException {
+
+    /**
+     * Constructs a <code>IOExceptionOnReadException</code>
+     * with no detail message.
+     */
+    public IOExceptionOnReadException() {
+
+        super();
+    }
+
+    /**
+     * Constructs a <code>IOExceptionOnReadException</code>
+     * with the specified detail message.
+     *
+     * @param description
+     * the detail message.
+     */
+    public IOExceptionOnReadException(final String description) {
+
+        super(description);
+    }
+
+    /**
+     * Constructs a <code>IOExceptionOnReadException</code>
+     * with the specified detail message and cause.
+     *
+     * @param description
+     * the detail message.
+     *
+     * @param  cause
+     * the cause.
+     */
+    public IOExceptionOnReadException(
+        final String description,
+        final Throwable cause) {
+
+        super(description, cause);
+    }
+}
+
@@ -0,0 +1,907 @@
+/*
+ * @(#)JournaledRecordFile.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The <code>JournaledRecordFile</code> class implements the
+ * <code>RecordFile</code> interface by writing every change to
+ * a sequential, append-only journal before it is applied to
+ * the database file.
+ * <h3>
+ * Group commit
+ * </h3>
+ * <p>
+ * <code>write()</code> only adds an entry to the batch that is
+ * waiting to be written to the journal. <code>force()</code>
+ * waits until everything written so far is durable: the first
+ * caller to arrive writes the whole batch and forces the
+ * journal once, on behalf of every thread whose entries are in
+ * the batch. Callers that arrive while a batch is being forced
+ * wait for the next one. The cost of a force is therefore
+ * shared by all the threads that are writing at the same time.
+ * A batch that nobody forces is committed by the write that
+ * fills it, so entries that wait to be written to the journal,
+ * and that every read looks through, stay few.
+ * </p>
+ * <h3>
+ * Applying the journal
+ * </h3>
+ * <p>
+ * A background thread copies durable entries, in order, to the
+ * database file. Whenever it has caught up it forces the
+ * database file and truncates the journal. When a
+ * <code>JournaledRecordFile</code> is opened, the entries left
+ * in the journal by a previous run are replayed first.
+ * <code>close()</code> applies every entry and truncates the
+ * journal, and stops the background thread.
+ * </p>
+ * <h3>
+ * Journal file format
+ * </h3>
+ * <ul>
+ * <li>
+ * 4 byte numeric, magic cookie value.
+ * </li>
+ * <li>
+ * 8 byte numeric, sequence number of the last entry applied to
+ * the database file when the journal was truncated.
+ * </li>
+ * <li>
+ * Repeated for each entry: 8 byte sequence number, 8 byte file
+ * position, 4 byte length, <i>length</i> bytes of data, and a
+ * 4 byte CRC-32 of all the preceding fields of the entry.
+ * </li>
+ * </ul>
+ * <p>
+ * Sequence numbers increase by one from entry to entry. Replay
+ * stops at the first entry that is incomplete, out of sequence
+ * or fails its checksum; such an entry was never acknowledged.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class JournaledRecordFile implements RecordFile {
+
+    /** The magic cookie at the start of a journal file. */
+    private static final int MAGIC_COOKIE = 0x4a524e4c;
+
+    /** Length of the journal file header, in bytes. */
+    private static final int HEADER_LENGTH = 4 + 8;
+
+    /** Length of an entry, not counting its data. */
+    private static final int ENTRY_OVERHEAD = 8 + 8 + 4 + 4;
+
+    /** Largest entry data length accepted during replay. */
+    private static final int MAX_ENTRY_LENGTH = 1 << 24;
+
+    /** Length of a batch that is committed without a force. */
+    private static final int MAX_BATCH_LENGTH = 64 * 1024;
+
+    /** Logger for this class. */
+    private static final Logger LOGGER = Logger
+        .getLogger(JournaledRecordFile.class.getName());
+
+    /** The database file. */
+    private final RecordFile target;
+
+    /** The journal file. */
+    private final RandomAccessFile journalFile;
+
+    /** The channel for the journal file. */
+    private final FileChannel journal;
+
+    /** Entries written but not yet forced to the journal. */
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+
+    /**
+     * Entries not yet applied to the database file, in
+     * sequence order.
+     */
+    private final LinkedList unapplied = new LinkedList();
+
+    /** The thread that applies entries to the database file. */
+    private final Thread applier;
+
+    /** Length of the journal file, in bytes. */
+    private long journalLength;
+
+    /** Sequence number of the last entry written. */
+    private long lastSequence;
+
+    /** Sequence number of the last entry forced to the journal. */
+    private long durableSequence;
+
+    /**
+     * Number of entries ever applied to the database file; the
+     * entries since are in <code>unapplied</code>.
+     */
+    private long applied;
+
+    /**
+     * <code>true</code> while the applier thread writes the
+     * oldest unapplied entry to the database file.
+     */
+    private boolean applying;
+
+    /** <code>true</code> while a batch is being forced. */
+    private boolean forcing;
+
+    /** The first error, after which the file can not be used. */
+    private IOException failure;
+
+    /** <code>true</code> once the file has been closed. */
+    private boolean closed;
+
+    /**
+     * Constructs a <code>JournaledRecordFile</code>, replaying
+     * any entries left in the journal.
+     *
+     * @param newTarget
+     * the database file.
+     *
+     * @param file
+     * the journal file; it is created if it does not exist.
+     *
+     * @throws IOException
+     * if the journal can not be opened or replayed.
+     */
+    JournaledRecordFile(final RecordFile newTarget, final File file)
+        throws IOException {
+
+        target = newTarget;
+
+        final boolean exists = file.exists();
+        journalFile = new RandomAccessFile(file, "rw");
+        journal = journalFile.getChannel();
+
+        /* Only one JournaledRecordFile may use a journal; a
+         * second one would replay entries that are still being
+         * applied.
+         */
+        boolean locked = false;
+        try {
+            locked = (null != journal.tryLock());
+        } catch (final OverlappingFileLockException e) {
+            locked = false;
+        }
+        if (!locked) {
+            journalFile.close();
+            throw new IOException("journal in use: " + file);
+        }
+
+        try {
+            // an incomplete header means there were no entries
+            if (exists && (journalFile.length() >= HEADER_LENGTH)) {
+                lastSequence = replay(file);
+            }
+            durableSequence = lastSequence;
+
+            // the database file is now up to date; start afresh
+            truncate();
+        } catch (final IOException e) {
+            // release the journal, so it can be examined
+            journalFile.close();
+            throw e;
+        }
+
+        applier = new Thread(new Applier(), "journal " + file);
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * Reads bytes at the specified position.
+     * The bytes are read from the database file, then entries
+     * not yet applied are copied over them, so there is no need
+     * to wait for the journal to be applied.
+     *
+     * @param position
+     * the byte offset of the first byte to read.
+     *
+     * @param bytes
+     * the buffer to read into.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to read.
+     *
+     * @return
+     * the number of bytes read.
+     *
+     * @throws IOException
+     * if the database file can not be read.
+     */
+    public int read(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        final long end = position + length;
+        final List pending = new ArrayList();
+        int count;
+
+        for (;;) {
+
+            /* Take the pending entries that overlap the bytes
+             * before reading the database file; an entry applied
+             * in between is then copied again, over itself.
+             */
+            final long last;
+            synchronized (this) {
+                checkFailure();
+                pending.clear();
+                last = applied + unapplied.size();
+                final Iterator iterator = unapplied.iterator();
+                while (iterator.hasNext()) {
+                    final Entry entry = (Entry) iterator.next();
+                    if ((entry.position < end)
+                        && (entry.position + entry.bytes.length
+                            > position)) {
+                        pending.add(entry);
+                    }
+                }
+            }
+
+            count = target.read(position, bytes, offset, length);
+
+            /* An entry written after the pending entries were
+             * taken may already be in the database file, and an
+             * older pending entry would then hide it; read again
+             * if so.
+             */
+            synchronized (this) {
+                final long started = applying
+                    ? applied + 1
+                    : applied;
+                if (started <= last) {
+                    break;
+                }
+            }
+        }
+
+        // copy the pending entries over the file, oldest first
+        for (int i = 0; i < pending.size(); i++) {
+            final Entry entry = (Entry) pending.get(i);
+            final long from = Math.max(position, entry.position);
+            final long to = Math.min(end, entry.position
+                + entry.bytes.length);
+
+            // an entry past the end of the file leaves a gap
+            final int start = (int) (from - position);
+            if (start > count) {
+                Arrays.fill(
+                    bytes,
+                    offset + count,
+                    offset + start,
+                    (byte) 0);
+            }
+
+            System.arraycopy(
+                entry.bytes,
+                (int) (from - entry.position),
+                bytes,
+                offset + start,
+                (int) (to - from));
+            count = Math.max(count, (int) (to - position));
+        }
+
+        return count;
+    }
+
+    /**
+     * Writes bytes at the specified position.
+     * The bytes are added to the current batch;
+     * <code>force()</code> makes them durable. A write that fills
+     * the batch commits it.
+     *
+     * @param position
+     * the byte offset of the first byte to write.
+     *
+     * @param bytes
+     * the data.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to write.
+     *
+     * @throws IOException
+     * if an earlier write to the journal failed, or a full batch
+     * can not be committed.
+     */
+    public void write(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        final long sequence;
+        synchronized (this) {
+            checkFailure();
+
+            final Entry entry = new Entry(
+                ++lastSequence,
+                position,
+                bytes,
+                offset,
+                length);
+            entry.writeTo(batch);
+            unapplied.addLast(entry);
+            if (batch.size() < MAX_BATCH_LENGTH) {
+                return;
+            }
+            sequence = entry.sequence;
+        }
+
+        // the batch is full; commit it rather than let it grow
+        commit(sequence);
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long length() throws IOException {
+
+        // pending writes may extend the file
+        long length = target.length();
+        final Iterator iterator = unapplied.iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = (Entry) iterator.next();
+            length = Math.max(length, entry.position
+                + entry.bytes.length);
+        }
+
+        return length;
+    }
+
+    /** {@inheritDoc} */
+    public void setLength(final long newLength) throws IOException {
+
+        // apply pending writes first, so none land past the end
+        drain();
+
+        target.setLength(newLength);
+    }
+
+    /**
+     * Forces all written bytes to the journal; this is the
+     * group commit. The database file itself is updated in the
+     * background.
+     *
+     * @throws IOException
+     * if the journal can not be written or forced.
+     */
+    public void force() throws IOException {
+
+        final long sequence;
+        synchronized (this) {
+            sequence = lastSequence;
+        }
+        commit(sequence);
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+
+        force();
+        drain();
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        // the applier thread must be done with the files first
+        boolean interrupted = false;
+        for (;;) {
+            try {
+                applier.join();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        target.force();
+        truncate();
+        journal.close();
+        journalFile.close();
+        target.close();
+    }
+
+    /**
+     * Waits until the specified entry has been forced to the
+     * journal. If no other thread is forcing a batch, this
+     * thread forces the current batch, for all threads.
+     *
+     * @param sequence
+     * the sequence number of the entry.
+     *
+     * @throws IOException
+     * if the journal can not be written or forced.
+     */
+    private void commit(final long sequence) throws IOException {
+
+        boolean interrupted = false;
+        try {
+            for (;;) {
+
+                final byte[] bytes;
+                final long batchSequence;
+                final long position;
+
+                synchronized (this) {
+
+                    // wait for any batch that is being forced
+                    while (forcing
+                        && (durableSequence < sequence)
+                        && (null == failure)) {
+                        try {
+                            wait();
+                        } catch (final InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+
+                    checkFailure();
+                    if (durableSequence >= sequence) {
+                        return;
+                    }
+
+                    // our entry is in the current batch; force it
+                    forcing = true;
+                    bytes = batch.toByteArray();
+                    batch.reset();
+                    batchSequence = lastSequence;
+                    position = journalLength;
+                }
+
+                IOException error = null;
+                try {
+                    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    long at = position;
+                    while (buffer.hasRemaining()) {
+                        at += journal.write(buffer, at);
+                    }
+                    journal.force(false);
+                } catch (final IOException e) {
+                    error = e;
+                }
+
+                synchronized (this) {
+                    forcing = false;
+                    if (null == error) {
+                        journalLength = position + bytes.length;
+                        durableSequence = batchSequence;
+                    } else {
+                        fail(error);
+                    }
+
+                    // wake waiting writers and the applier
+                    notifyAll();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until every entry written so far has been applied to
+     * the database file.
+     *
+     * @throws IOException
+     * if the journal or the database file can not be written.
+     */
+    void drain() throws IOException {
+
+        force();
+
+        boolean interrupted = false;
+        synchronized (this) {
+            while (!unapplied.isEmpty() && (null == failure)) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Replays the journal into the database file.
+     *
+     * @param file
+     * the journal file.
+     *
+     * @return
+     * the sequence number of the last entry replayed.
+     *
+     * @throws IOException
+     * if the journal is invalid or can not be replayed.
+     */
+    private long replay(final File file) throws IOException {
+
+        /* Read through the locked channel; the stream is not
+         * closed, since that would close the channel too.
+         */
+        journal.position(0);
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(Channels
+                .newInputStream(journal)));
+
+        final int magicCookie = in.readInt();
+        if (MAGIC_COOKIE != magicCookie) {
+            throw new IOException("journal cookie was 0x"
+                + Integer.toHexString(magicCookie)
+                + ", expected 0x"
+                + Integer.toHexString(MAGIC_COOKIE));
+        }
+
+        long sequence = in.readLong();
+        int count = 0;
+
+        for (;;) {
+            final Entry entry;
+            try {
+                entry = Entry.readFrom(in);
+            } catch (final EOFException e) {
+                // the last entry was never completed
+                break;
+            }
+
+            if ((null == entry)
+                || (entry.sequence != sequence + 1)) {
+                // the last entry was never acknowledged
+                break;
+            }
+
+            target.write(
+                entry.position,
+                entry.bytes,
+                0,
+                entry.bytes.length);
+            sequence = entry.sequence;
+            count++;
+        }
+
+        target.force();
+        if (count > 0) {
+            LOGGER.info("replayed "
+                + count
+                + " journal entries from "
+                + file);
+        }
+
+        return sequence;
+    }
+
+    /**
+     * Truncates the journal, recording the sequence number of
+     * the last entry applied. The database file must already be
+     * forced.
+     *
+     * @throws IOException
+     * if the journal can not be written.
+     */
+    private synchronized void truncate() throws IOException {
+
+        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC_COOKIE);
+        header.putLong(lastSequence);
+        header.flip();
+
+        journal.truncate(HEADER_LENGTH);
+        while (header.hasRemaining()) {
+            journal.write(header, header.position());
+        }
+        journal.force(true);
+        journalLength = HEADER_LENGTH;
+    }
+
+    /**
+     * Records the first error; the file can not be used after
+     * an error, as the journal and the database file may no
+     * longer agree.
+     *
+     * @param e
+     * the error.
+     */
+    private synchronized void fail(final IOException e) {
+
+        if (null == failure) {
+            failure = e;
+            LOGGER.severe("journal failed -- " + e.toString());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Throws an exception if an earlier operation failed.
+     *
+     * @throws IOException
+     * if an earlier operation failed.
+     */
+    private synchronized void checkFailure() throws IOException {
+
+        if (null != failure) {
+            final IOException e = new IOException("journal failed");
+            e.initCause(failure);
+            throw e;
+        }
+    }
+
+    /**
+     * The <code>Applier</code> class applies durable journal
+     * entries to the database file, and truncates the journal
+     * whenever it catches up.
+     */
+    private final class Applier implements Runnable {
+
+        /**
+         * Applies entries until the file is closed.
+         */
+        public void run() {
+
+            final JournaledRecordFile outer = JournaledRecordFile.this;
+
+            try {
+                for (;;) {
+
+                    Entry entry = null;
+                    synchronized (outer) {
+
+                        // wait for something to do
+                        while (!closed
+                            && (null == failure)
+                            && !hasDurableEntry()
+                            && !isCaughtUp()) {
+                            outer.wait();
+                        }
+
+                        if (closed || (null != failure)) {
+                            return;
+                        }
+                        if (hasDurableEntry()) {
+                            entry = (Entry) unapplied.getFirst();
+                            applying = true;
+                        }
+                    }
+
+                    if (null != entry) {
+
+                        // apply the oldest entry
+                        target.write(
+                            entry.position,
+                            entry.bytes,
+                            0,
+                            entry.bytes.length);
+
+                        synchronized (outer) {
+                            unapplied.removeFirst();
+                            applied++;
+                            applying = false;
+                            outer.notifyAll();
+                        }
+                    } else {
+
+                        /* Caught up: once the database file is
+                         * forced, the journal is no longer needed.
+                         * Only this thread removes entries, so if
+                         * none are waiting now, every entry in the
+                         * journal was applied before the force.
+                         */
+                        target.force();
+
+                        synchronized (outer) {
+                            if (unapplied.isEmpty() && !forcing && !closed) {
+                                truncate();
+                            }
+                        }
+                    }
+                }
+            } catch (final IOException e) {
+                fail(e);
+            } catch (final InterruptedException e) {
+                // nothing more to do
+                assert null != e;
+            }
+        }
+
+        /**
+         * Tests whether the oldest unapplied entry is durable.
+         * The caller must hold the monitor.
+         *
+         * @return
+         * <code>true</code> if there is an entry to apply.
+         */
+        private boolean hasDurableEntry() {
+
+            return !unapplied.isEmpty()
+                && (((Entry) unapplied.getFirst()).sequence
+                    <= durableSequence);
+        }
+
+        /**
+         * Tests whether every entry in the journal has been
+         * applied, so the journal can be truncated.
+         * The caller must hold the monitor.
+         *
+         * @return
+         * <code>true</code> if the journal can be truncated.
+         */
+        private boolean isCaughtUp() {
+
+            return unapplied.isEmpty()
+                && !forcing
+                && (journalLength > HEADER_LENGTH);
+        }
+    }
+
+    /**
+     * The <code>Entry</code> class encapsulates one journal
+     * entry: bytes to be written at a position in the database
+     * file.
+     */
+    private static final class Entry {
+
+        /** The sequence number. */
+        private final long sequence;
+
+        /** The position in the database file. */
+        private final long position;
+
+        /** The bytes to write. */
+        private final byte[] bytes;
+
+        /**
+         * Constructs an <code>Entry</code> with a copy of the
+         * bytes to write.
+         *
+         * @param newSequence
+         * the sequence number.
+         *
+         * @param newPosition
+         * the position in the database file.
+         *
+         * @param source
+         * the bytes to write.
+         *
+         * @param offset
+         * the start offset in <code>source</code>.
+         *
+         * @param length
+         * the number of bytes to write.
+         */
+        Entry(
+            final long newSequence,
+            final long newPosition,
+            final byte[] source,
+            final int offset,
+            final int length) {
+
+            sequence = newSequence;
+            position = newPosition;
+            bytes = new byte[length];
+            System.arraycopy(source, offset, bytes, 0, length);
+        }
+
+        /**
+         * Appends this entry, in journal format, to a stream.
+         *
+         * @param out
+         * the stream.
+         */
+        void writeTo(final ByteArrayOutputStream out) {
+
+            final ByteBuffer buffer = ByteBuffer
+                .allocate(ENTRY_OVERHEAD + bytes.length);
+            buffer.putLong(sequence);
+            buffer.putLong(position);
+            buffer.putInt(bytes.length);
+            buffer.put(bytes);
+            buffer.putInt(checksum());
+
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        /**
+         * Returns the CRC-32 of the entry's fields.
+         *
+         * @return
+         * the checksum.
+         */
+        int checksum() {
+
+            final ByteBuffer header = ByteBuffer
+                .allocate(ENTRY_OVERHEAD - 4);
+            header.putLong(sequence);
+            header.putLong(position);
+            header.putInt(bytes.length);
+
+            final CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, header.position());
+            crc.update(bytes, 0, bytes.length);
+
+            return (int) crc.getValue();
+        }
+
+        /**
+         * Reads an entry, in journal format, from a stream.
+         *
+         * @param in
+         * the stream.
+         *
+         * @return
+         * the entry, or <code>null</code> if it is not valid.
+         *
+         * @throws IOException
+         * if the entry can not be read.
+         */
+        static Entry readFrom(final DataInputStream in)
+            throws IOException {
+
+            final long sequence = in.readLong();
+            final long position = in.readLong();
+            final int length = in.readInt();
+            if ((length < 0) || (length > MAX_ENTRY_LENGTH)) {
+                return null;
+            }
+
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+
+            final Entry entry = new Entry(
+                sequence,
+                position,
+                bytes,
+                0,
+                length);
+
+            if (in.readInt() != entry.checksum()) {
+                return null;
+            }
+
+            return entry;
+        }
+    }
+}
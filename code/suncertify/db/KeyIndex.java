@@ -0,0 +1,155 @@
+/*
+ * @(#)KeyIndex.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The <code>KeyIndex</code> class maps the primary key of each
+ * record that is not deleted to its record number.
+ * <p>
+ * The key is made of the values of the key fields, compared as
+ * they are stored in the database file: truncated to the field
+ * length, and without trailing spaces or null bytes. So the key
+ * of a record read from the file equals the key of the values
+ * it was created with.
+ * </p>
+ * <p>
+ * A <code>KeyIndex</code> is not synchronized; callers are
+ * responsible for serializing access.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class KeyIndex {
+
+    /** The key fields, by field number. */
+    private final int[] keyFields;
+
+    /** Field lengths, in bytes. */
+    private final int[] fieldLengths;
+
+    /** Record numbers, keyed by record key. */
+    private final Map recNos = new HashMap();
+
+    /**
+     * Constructs an empty <code>KeyIndex</code>.
+     *
+     * @param newKeyFields
+     * the key fields, by field number.
+     *
+     * @param newFieldLengths
+     * the length of each field, in bytes.
+     */
+    KeyIndex(final int[] newKeyFields, final int[] newFieldLengths) {
+
+        keyFields = (int[]) newKeyFields.clone();
+        fieldLengths = (int[]) newFieldLengths.clone();
+    }
+
+    /**
+     * Returns the key for a set of field values.
+     *
+     * @param values
+     * the field values.
+     *
+     * @return
+     * the key; keys are equal if the key fields would be stored
+     * the same way.
+     */
+    Object keyOf(final String[] values) {
+
+        final String[] key = new String[keyFields.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = RecordEncoder.canonical(
+                values[keyFields[i]],
+                fieldLengths[keyFields[i]]);
+        }
+
+        // a List has value equality
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Returns the key of a record in a table.
+     *
+     * @param recordTable
+     * the table.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the key.
+     */
+    Object keyOf(final RecordTable recordTable, final int recNo) {
+
+        final String[] key = new String[keyFields.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = RecordEncoder.canonical(
+                recordTable.getValue(recNo, keyFields[i]),
+                fieldLengths[keyFields[i]]);
+        }
+
+        return Arrays.asList(key);
+    }
+
+    /**
+     * Returns the record with the specified key.
+     *
+     * @param key
+     * the key.
+     *
+     * @return
+     * the record number, or <code>-1</code> if no record has
+     * the key.
+     */
+    int get(final Object key) {
+
+        final Integer recNo = (Integer) recNos.get(key);
+
+        return (null == recNo)
+            ? -1
+            : recNo.intValue();
+    }
+
+    /**
+     * Records that a record has the specified key.
+     *
+     * @param key
+     * the key.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    void put(final Object key, final int recNo) {
+
+        recNos.put(key, new Integer(recNo));
+    }
+
+    /**
+     * Forgets the specified key, if it belongs to the specified
+     * record.
+     *
+     * @param key
+     * the key.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     */
+    void remove(final Object key, final int recNo) {
+
+        if (get(key) == recNo) {
+            recNos.remove(key);
+        }
+    }
+}
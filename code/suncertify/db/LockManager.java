@@ -0,0 +1,784 @@
+/*
+ * @(#)LockManager.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The <code>LockManager</code> class keeps the record locks of a
+ * database.
+ * <p>
+ * Each locked record has an owner, and a queue of threads
+ * waiting for the lock, in the order they asked for it. Unlocking
+ * a record hands the lock straight to the first waiting thread,
+ * and wakes only that thread; a thread that asks later can not
+ * take the lock first. Locking and unlocking take no longer
+ * however many threads are waiting, and allocate only the
+ * <code>Lock</code> that holds the cookie. Without leases they
+ * take constant time; with leases, granting, renewing and
+ * expiring a lock also add or remove its lease in a sorted map,
+ * which takes time O(log n) in the leases held in the stripe.
+ * </p>
+ * <p>
+ * Records are spread over several stripes, each with its own
+ * monitor, so threads that lock different records seldom wait
+ * for each other. Within a stripe, owners are found by record
+ * number in an array, with no hashing.
+ * </p>
+ * <p>
+ * A thread may also give up waiting for a lock, when a timeout
+ * expires or when it is interrupted; it then leaves the queue.
+ * </p>
+ * <p>
+ * A lock belongs to its cookie, not to the thread that took it.
+ * Any thread that presents the cookie may update, delete or
+ * unlock the record, so a client's calls need not all be served
+ * by the same thread.
+ * </p>
+ * <p>
+ * Locks may have a lease. A lock whose lease runs out is taken
+ * from its cookie by <code>expireLocks()</code>, and handed to
+ * the first waiting thread, so a client that dies while it holds
+ * a lock does not hold it forever. Checking or renewing a lock
+ * starts a new lease. Each stripe keeps its leases in the order
+ * they run out, so expiring locks looks only at the leases that
+ * have run out, and the stripe is not held while every owner is
+ * checked.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class LockManager {
+
+    /** Log base 2 of the number of stripes. */
+    private static final int STRIPE_BITS = 4;
+
+    /** Selects the stripe from a record number. */
+    private static final int STRIPE_MASK = (1 << STRIPE_BITS) - 1;
+
+    /** Initial number of records a stripe can hold. */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Random number generator, for lock cookies. */
+    private final Random random = new Random();
+
+    /** The stripes. */
+    private final Stripe[] stripes = new Stripe[1 << STRIPE_BITS];
+
+    /** Number of locks that have expired. */
+    private long expiredLocks;
+
+    /**
+     * Constructs a <code>LockManager</code>, with no records
+     * locked.
+     *
+     * @param lease
+     * how long a lock lasts without being checked or renewed,
+     * in milliseconds; <code>0</code> if locks never expire.
+     */
+    LockManager(final long lease) {
+
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(lease);
+        }
+    }
+
+    /**
+     * Locks a record, waiting until every thread that asked for
+     * the lock earlier has unlocked it.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the lock cookie.
+     */
+    long lock(final int recNo) {
+
+        final Lock lock = new Lock(random.nextLong());
+
+        if (!stripe(recNo).enqueue(recNo >> STRIPE_BITS, lock, true)) {
+            lock.awaitGrant();
+        }
+
+        return lock.getCookie();
+    }
+
+    /**
+     * Locks a record, if no other thread has it locked.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the lock cookie.
+     *
+     * @throws RecordLockedException
+     * if another thread has the record locked.
+     */
+    long tryLock(final int recNo) throws RecordLockedException {
+
+        final Lock lock = new Lock(random.nextLong());
+
+        if (!stripe(recNo).enqueue(recNo >> STRIPE_BITS, lock, false)) {
+            throw new RecordLockedException("locked record number "
+                + recNo);
+        }
+
+        return lock.getCookie();
+    }
+
+    /**
+     * Locks a record, waiting at most the specified time for
+     * the threads that asked for the lock earlier.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param timeout
+     * the longest time to wait, in milliseconds; <code>0</code>
+     * does not wait.
+     *
+     * @return
+     * the lock cookie.
+     *
+     * @throws RecordLockedException
+     * if the record is still locked when the time is up.
+     *
+     * @throws InterruptedException
+     * if the current thread is interrupted while it waits.
+     */
+    long lock(final int recNo, final long timeout)
+        throws RecordLockedException,
+        InterruptedException {
+
+        // validate arguments
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout was "
+                + timeout);
+        }
+
+        if (0 == timeout) {
+            return tryLock(recNo);
+        }
+
+        final Lock lock = new Lock(random.nextLong());
+
+        final Stripe stripe = stripe(recNo);
+        final int index = recNo >> STRIPE_BITS;
+        if (stripe.enqueue(index, lock, true)) {
+            return lock.getCookie();
+        }
+
+        try {
+            if (lock.awaitGrant(timeout)) {
+                return lock.getCookie();
+            }
+        } catch (final InterruptedException e) {
+            if (!stripe.cancel(index, lock)) {
+
+                // the lock came anyway; pass it on, unused
+                unlock(recNo, lock.getCookie());
+            }
+            throw e;
+        }
+
+        // the lock may have been handed over as time ran out
+        if (!stripe.cancel(index, lock)) {
+            return lock.getCookie();
+        }
+
+        throw new RecordLockedException("locked record number "
+            + recNo);
+    }
+
+    /**
+     * Unlocks a record, and hands the lock to the first waiting
+     * thread, if any.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param lockCookie
+     * the lock cookie.
+     *
+     * @throws SecurityException
+     * if the record is not locked with the cookie.
+     */
+    void unlock(final int recNo, final long lockCookie) {
+
+        final Lock next = stripe(recNo).dequeue(
+            recNo >> STRIPE_BITS,
+            lockCookie);
+
+        if (null != next) {
+            next.grant();
+        }
+    }
+
+    /**
+     * Checks that a record is locked with a cookie, and starts a
+     * new lease for the lock.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param lockCookie
+     * the lock cookie.
+     *
+     * @throws SecurityException
+     * if the record is not locked with the cookie.
+     */
+    void checkLock(final int recNo, final long lockCookie) {
+
+        stripe(recNo).renew(recNo >> STRIPE_BITS, lockCookie);
+    }
+
+    /**
+     * Takes every lock whose lease has run out from its cookie,
+     * and hands it to the first waiting thread, if any.
+     *
+     * @return
+     * the number of locks that expired.
+     */
+    int expireLocks() {
+
+        final long now = System.currentTimeMillis();
+        final List next = new ArrayList();
+
+        int expired = 0;
+        for (int i = 0; i < stripes.length; i++) {
+            expired += stripes[i].expire(now, next);
+        }
+
+        synchronized (this) {
+            expiredLocks += expired;
+        }
+
+        // wake the new owners
+        for (int i = 0; i < next.size(); i++) {
+            ((Lock) next.get(i)).grant();
+        }
+
+        return expired;
+    }
+
+    /**
+     * Returns the number of locks that have expired.
+     *
+     * @return
+     * the number of locks taken from their cookies by
+     * <code>expireLocks()</code>.
+     */
+    synchronized long getExpiredLocks() {
+
+        return expiredLocks;
+    }
+
+    /**
+     * Returns the stripe that holds a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the stripe.
+     */
+    private Stripe stripe(final int recNo) {
+
+        return stripes[recNo & STRIPE_MASK];
+    }
+
+    /**
+     * The <code>Stripe</code> class holds the owners of the
+     * locks of some of the records. Waiting threads are queued
+     * behind the owner.
+     */
+    private static final class Stripe {
+
+        /** The lock lease, in milliseconds; or <code>0</code>. */
+        private final long lease;
+
+        /** The owner of each lock, by index; or <code>null</code>. */
+        private Lock[] owners = new Lock[INITIAL_CAPACITY];
+
+        /** The index of each owner with a lease, by expiry. */
+        private final SortedMap leases = new TreeMap();
+
+        /** Number of leases started, to order equal expiries. */
+        private long leasesStarted;
+
+        /**
+         * Constructs a <code>Stripe</code>, with no records
+         * locked.
+         *
+         * @param newLease
+         * the lock lease, in milliseconds; <code>0</code> if locks
+         * never expire.
+         */
+        Stripe(final long newLease) {
+
+            lease = newLease;
+        }
+
+        /**
+         * Gives a lock to a thread, or queues the thread for it.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param lock
+         * the new lock.
+         *
+         * @param wait
+         * <code>true</code> to queue the thread if another
+         * thread owns the lock.
+         *
+         * @return
+         * <code>true</code> if the thread now owns the lock;
+         * <code>false</code> if it must wait for it, or if it
+         * was not queued.
+         */
+        synchronized boolean enqueue(
+            final int index,
+            final Lock lock,
+            final boolean wait) {
+
+            if (index >= owners.length) {
+                final Lock[] newOwners = new Lock[Math.max(
+                    owners.length * 2,
+                    index + 1)];
+                System.arraycopy(
+                    owners,
+                    0,
+                    newOwners,
+                    0,
+                    owners.length);
+                owners = newOwners;
+            }
+
+            final Lock owner = owners[index];
+            if (null == owner) {
+                lock.setLast(lock);
+                startLease(index, lock);
+                owners[index] = lock;
+                return true;
+            }
+
+            // join the end of the queue
+            if (wait) {
+                owner.getLast().setNext(lock);
+                owner.setLast(lock);
+            }
+            return false;
+        }
+
+        /**
+         * Takes a thread out of the queue for a lock, unless it
+         * has already been given the lock. A lock that was given
+         * to the thread, and expired before the thread saw it, is
+         * in no queue any more.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param lock
+         * the thread's lock.
+         *
+         * @return
+         * <code>true</code> if the thread left the queue, or its
+         * lock has expired; <code>false</code> if it owns the
+         * lock.
+         */
+        synchronized boolean cancel(final int index, final Lock lock) {
+
+            final Lock owner = owners[index];
+            if (owner == lock) {
+                return false;
+            }
+
+            // the queue is short, and this is the slow path
+            Lock previous = owner;
+            while ((null != previous) && (previous.getNext() != lock)) {
+                previous = previous.getNext();
+            }
+            if (null == previous) {
+                return true;
+            }
+            previous.setNext(lock.getNext());
+            if (owner.getLast() == lock) {
+                owner.setLast(previous);
+            }
+
+            return true;
+        }
+
+        /**
+         * Takes a lock from its owner, and gives it to the first
+         * waiting thread, if any.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param lockCookie
+         * the owner's lock cookie.
+         *
+         * @return
+         * the new owner, which must be granted the lock; or
+         * <code>null</code> if no thread is waiting.
+         */
+        synchronized Lock dequeue(final int index, final long lockCookie) {
+
+            return handOver(index, owner(index, lockCookie));
+        }
+
+        /**
+         * Checks that a record is locked with a cookie, and
+         * starts a new lease for the lock.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param lockCookie
+         * the owner's lock cookie.
+         *
+         * @throws SecurityException
+         * if the record is not locked with the cookie.
+         */
+        synchronized void renew(final int index, final long lockCookie) {
+
+            startLease(index, owner(index, lockCookie));
+        }
+
+        /**
+         * Takes every lock whose lease has run out from its
+         * owner, and gives it to the first waiting thread, if
+         * any.
+         *
+         * @param now
+         * the current time, in milliseconds.
+         *
+         * @param next
+         * the list to add the new owners to; they must be
+         * granted the lock.
+         *
+         * @return
+         * the number of locks that expired.
+         */
+        synchronized int expire(final long now, final List next) {
+
+            int expired = 0;
+            while (!leases.isEmpty()) {
+
+                // the first lease runs out soonest
+                final Lock owner = (Lock) leases.firstKey();
+                if (owner.getExpires() > now) {
+                    break;
+                }
+
+                final int index = ((Integer) leases.get(owner)).intValue();
+                final Lock newOwner = handOver(index, owner);
+                if (null != newOwner) {
+                    next.add(newOwner);
+                }
+                expired++;
+            }
+
+            return expired;
+        }
+
+        /**
+         * Takes a lock from its owner, and gives it to the first
+         * waiting thread, if any.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param owner
+         * the owner.
+         *
+         * @return
+         * the new owner, which must be granted the lock; or
+         * <code>null</code> if no thread is waiting.
+         */
+        private Lock handOver(final int index, final Lock owner) {
+
+            if (0 != lease) {
+                leases.remove(owner);
+            }
+
+            // the rest of the queue moves up behind the new owner
+            final Lock next = owner.getNext();
+            if (null != next) {
+                next.setLast(owner.getLast());
+                startLease(index, next);
+            }
+            owners[index] = next;
+
+            return next;
+        }
+
+        /**
+         * Starts a new lease for the owner of a lock, and moves
+         * it to its place in the lease order.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param owner
+         * the owner.
+         */
+        private void startLease(final int index, final Lock owner) {
+
+            if (0 != lease) {
+
+                // the key must not change while it is in the map
+                leases.remove(owner);
+                owner.setExpires(
+                    System.currentTimeMillis() + lease,
+                    ++leasesStarted);
+                leases.put(owner, new Integer(index));
+            }
+        }
+
+        /**
+         * Returns the owner of a lock, after checking its cookie.
+         *
+         * @param index
+         * the index of the record in this stripe.
+         *
+         * @param lockCookie
+         * the owner's lock cookie.
+         *
+         * @return
+         * the owner.
+         *
+         * @throws SecurityException
+         * if the record is not locked with the cookie.
+         */
+        synchronized Lock owner(final int index, final long lockCookie) {
+
+            final Lock owner = (index < owners.length)
+                ? owners[index]
+                : null;
+
+            // the cookie alone identifies the owner
+            if ((null == owner) || (lockCookie != owner.getCookie())) {
+                throw new SecurityException("lock cookie not found");
+            }
+
+            return owner;
+        }
+    }
+
+    /**
+     * The <code>Lock</code> class encapsulates one request for a
+     * record lock, and links it into the queue for the record.
+     * The queue and lease fields are guarded by the stripe, and
+     * owners with a lease are ordered by when it runs out.
+     */
+    private static final class Lock implements Comparable {
+
+        /** The lock cookie. */
+        private final long cookie;
+
+        /** The next thread in the queue, or <code>null</code>. */
+        private Lock next;
+
+        /** The last thread in the queue; only kept by its head. */
+        private Lock last;
+
+        /** When the lease of the owner runs out, in milliseconds. */
+        private long expires;
+
+        /** The number of the lease, among those of its stripe. */
+        private long leaseNumber;
+
+        /** <code>true</code> once the thread owns the lock. */
+        private boolean granted;
+
+        /**
+         * Constructs a <code>Lock</code>.
+         *
+         * @param newCookie
+         * the lock cookie.
+         */
+        Lock(final long newCookie) {
+
+            cookie = newCookie;
+        }
+
+        /**
+         * Returns the lock cookie value.
+         * The cookie value is immutable.
+         *
+         * @return
+         * the lock cookie value.
+         */
+        long getCookie() {
+
+            return cookie;
+        }
+
+        /**
+         * Returns the next thread in the queue.
+         *
+         * @return
+         * the next <code>Lock</code>, or <code>null</code>.
+         */
+        Lock getNext() {
+
+            return next;
+        }
+
+        /**
+         * Sets the next thread in the queue.
+         *
+         * @param newNext
+         * the next <code>Lock</code>.
+         */
+        void setNext(final Lock newNext) {
+
+            next = newNext;
+        }
+
+        /**
+         * Returns the last thread in the queue.
+         *
+         * @return
+         * the last <code>Lock</code>.
+         */
+        Lock getLast() {
+
+            return last;
+        }
+
+        /**
+         * Sets the last thread in the queue.
+         *
+         * @param newLast
+         * the last <code>Lock</code>.
+         */
+        void setLast(final Lock newLast) {
+
+            last = newLast;
+        }
+
+        /**
+         * Returns when the lease runs out.
+         *
+         * @return
+         * the time, in milliseconds.
+         */
+        long getExpires() {
+
+            return expires;
+        }
+
+        /**
+         * Sets when the lease runs out.
+         *
+         * @param newExpires
+         * the time, in milliseconds.
+         *
+         * @param newLeaseNumber
+         * the number of the lease, among those of its stripe;
+         * orders leases that run out at the same time.
+         */
+        void setExpires(final long newExpires, final long newLeaseNumber) {
+
+            expires = newExpires;
+            leaseNumber = newLeaseNumber;
+        }
+
+        /**
+         * Compares the leases of two owners.
+         *
+         * @param o
+         * the other <code>Lock</code>.
+         *
+         * @return -1 if this lease runs out first, 0 if it is the
+         * same lease, 1 if it runs out last.
+         */
+        public int compareTo(final Object o) {
+
+            final Lock other = (Lock) o;
+            if (expires != other.expires) {
+                return (expires < other.expires) ? -1 : 1;
+            }
+            if (leaseNumber != other.leaseNumber) {
+                return (leaseNumber < other.leaseNumber) ? -1 : 1;
+            }
+            return 0;
+        }
+
+        /**
+         * Hands the lock to its thread, and wakes it.
+         */
+        synchronized void grant() {
+
+            granted = true;
+            notify();
+        }
+
+        /**
+         * Waits until the lock is handed to this thread. An
+         * interrupt does not stop the wait, but is kept for the
+         * thread to see afterwards.
+         */
+        synchronized void awaitGrant() {
+
+            boolean interrupted = false;
+            while (!granted) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Waits until the lock is handed to this thread, or the
+         * time is up.
+         *
+         * @param timeout
+         * the longest time to wait, in milliseconds.
+         *
+         * @return
+         * <code>true</code> if the thread was given the lock.
+         *
+         * @throws InterruptedException
+         * if the thread is interrupted while it waits.
+         */
+        synchronized boolean awaitGrant(final long timeout)
+            throws InterruptedException {
+
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (!granted) {
+                final long remaining = deadline
+                    - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(remaining);
+            }
+
+            return true;
+        }
+    }
+}
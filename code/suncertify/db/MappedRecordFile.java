@@ -0,0 +1,266 @@
+/*
+ * @(#)MappedRecordFile.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The <code>MappedRecordFile</code> class implements the
+ * <code>RecordFile</code> interface with a
+ * <code>MappedByteBuffer</code>.
+ * Reads and writes are memory operations; the operating system
+ * writes dirty pages back to the file, and
+ * <code>force()</code> makes them durable on demand.
+ * <p>
+ * The mapping is never longer than the file: a mapping can not be
+ * released explicitly, and some platforms will not cut a file
+ * short under one. The file is extended before each write past
+ * its end, and bytes past the end of the mapping are read and
+ * written through the file channel. Once the file has doubled,
+ * it is mapped again to its whole length, so a file that grows
+ * one record at a time is only mapped again a few times.
+ * </p>
+ * <p>
+ * Reads take no lock: each reads from a duplicate of the current
+ * mapping, whose position is its own. Writes, and changes to
+ * the length, hold this object's monitor.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class MappedRecordFile implements RecordFile {
+
+    /** The database file. */
+    private final RandomAccessFile randomAccessFile;
+
+    /** The channel for the database file. */
+    private final FileChannel channel;
+
+    /** The current mapping; never longer than the file. */
+    private volatile MappedByteBuffer buffer;
+
+    /** The length of the file, in bytes. */
+    private volatile long fileLength;
+
+    /**
+     * <code>true</code> if bytes past the end of the mapping were
+     * written since the last force. Guarded by this object's
+     * monitor.
+     */
+    private boolean tailWritten;
+
+    /**
+     * Constructs a <code>MappedRecordFile</code>.
+     *
+     * @param file
+     * the database file.
+     *
+     * @throws IOException
+     * if the file can not be opened for writing, or mapped.
+     */
+    MappedRecordFile(final File file) throws IOException {
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        fileLength = channel.size();
+        buffer = map(fileLength);
+    }
+
+    /** {@inheritDoc} */
+    public int read(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        final long end = fileLength;
+        if (position >= end) {
+            return 0;
+        }
+        final int count = (int) Math.min(length, end - position);
+
+        // read what is mapped from the mapping
+        final MappedByteBuffer current = buffer;
+        final int mapped = (int) Math.max(0, Math.min(
+            count,
+            current.capacity() - position));
+        if (mapped > 0) {
+            final ByteBuffer view = current.duplicate();
+            view.position((int) position);
+            view.get(bytes, offset, mapped);
+        }
+
+        // and the rest from the file
+        int done = mapped;
+        while (done < count) {
+            final int n = channel.read(
+                ByteBuffer.wrap(bytes, offset + done, count - done),
+                position + done);
+            if (n < 0) {
+                break;
+            }
+            done += n;
+        }
+
+        return done;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void write(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        // grow the file if the write would run past its end
+        if (position + length > fileLength) {
+            grow(position + length);
+        }
+
+        // write what is mapped to the mapping
+        final int mapped = (int) Math.max(0, Math.min(
+            length,
+            buffer.capacity() - position));
+        if (mapped > 0) {
+            final ByteBuffer view = buffer.duplicate();
+            view.position((int) position);
+            view.put(bytes, offset, mapped);
+        }
+
+        // and the rest to the file
+        final ByteBuffer rest = ByteBuffer.wrap(
+            bytes,
+            offset + mapped,
+            length - mapped);
+        while (rest.hasRemaining()) {
+            channel.write(rest, position + rest.position() - offset);
+            tailWritten = true;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public long length() {
+
+        return fileLength;
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void setLength(final long newLength)
+        throws IOException {
+
+        if (newLength > fileLength) {
+            grow(newLength);
+            return;
+        }
+        if (newLength == fileLength) {
+            return;
+        }
+
+        /* Readers stop at the new end first, and any mapping
+         * past it is replaced before the file is cut. A caller
+         * only cuts bytes that nobody reads any more.
+         */
+        fileLength = newLength;
+        if (newLength < buffer.capacity()) {
+            buffer.force();
+            buffer = map(newLength);
+        }
+        try {
+            randomAccessFile.setLength(newLength);
+        } catch (final IOException e) {
+
+            // the old mapping holds the file until it is collected
+            System.gc();
+            System.runFinalization();
+            randomAccessFile.setLength(newLength);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void force() throws IOException {
+
+        /* Take a reference, rather than holding the monitor, so
+         * writers are not blocked while the pages are flushed.
+         */
+        final MappedByteBuffer current;
+        final boolean tail;
+        synchronized (this) {
+            current = buffer;
+            tail = tailWritten;
+            tailWritten = false;
+        }
+        current.force();
+        if (tail) {
+            channel.force(false);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void close() throws IOException {
+
+        buffer.force();
+        if (tailWritten) {
+            channel.force(false);
+        }
+        channel.close();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Extends the file, and maps it again once it is twice as
+     * long as the mapping. The caller must hold this object's
+     * monitor.
+     *
+     * @param newLength
+     * the new length of the file, in bytes.
+     *
+     * @throws IOException
+     * if the file can not be extended or mapped.
+     */
+    private void grow(final long newLength) throws IOException {
+
+        /* Pages written through the old mapping are shared with
+         * the new one, so there is no need to force them first.
+         */
+        randomAccessFile.setLength(newLength);
+        fileLength = newLength;
+        if ((newLength >= 2L * buffer.capacity())
+            && (buffer.capacity() < Integer.MAX_VALUE)) {
+            buffer = map(newLength);
+        }
+    }
+
+    /**
+     * Maps the file from its start, up to the length of the file;
+     * a <code>MappedByteBuffer</code> is indexed by an int, so
+     * the rest of a longer file is left unmapped.
+     *
+     * @param length
+     * the length of the file, in bytes.
+     *
+     * @return
+     * the mapping.
+     *
+     * @throws IOException
+     * if the file can not be mapped.
+     */
+    private MappedByteBuffer map(final long length) throws IOException {
+
+        return channel.map(
+            FileChannel.MapMode.READ_WRITE,
+            0,
+            Math.min(length, Integer.MAX_VALUE));
+    }
+}
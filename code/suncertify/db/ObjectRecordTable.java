@@ -0,0 +1,324 @@
+/*
+ * @(#)ObjectRecordTable.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>ObjectRecordTable</code> class implements the
+ * <code>RecordTable</code> interface with one
+ * <code>DataRecord</code> object per record, holding one
+ * <code>String</code> per field.
+ * <p>
+ * Each value is decoded once, when it is loaded, and held as it
+ * would be read back from the database file, without padding;
+ * so a value can be read again and again with no further work.
+ * </p>
+ * <p>
+ * A <code>DataRecord</code> is never changed once it is in the
+ * table; a change replaces it with a new one. So readers take no
+ * locks and copy nothing to look at a record, and always see
+ * one version of it. Changes are serialized by a lock of their
+ * own, which readers never wait for.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class ObjectRecordTable implements RecordTable {
+
+    /** Initial number of records the table can hold. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Field lengths, in bytes. */
+    private final int[] fieldLengths;
+
+    /** Serializes changes to the table. */
+    private final Object writeLock = new Object();
+
+    /**
+     * All data records, by record number. Written again after
+     * every change, so that readers see the change.
+     */
+    private volatile DataRecord[] dataRecords =
+        new DataRecord[INITIAL_CAPACITY];
+
+    /** Number of records. */
+    private volatile int size;
+
+    /**
+     * Constructs an empty <code>ObjectRecordTable</code>.
+     *
+     * @param newFieldLengths
+     * the length of each field, in bytes.
+     */
+    ObjectRecordTable(final int[] newFieldLengths) {
+
+        fieldLengths = (int[]) newFieldLengths.clone();
+    }
+
+    /** {@inheritDoc} */
+    public int size() {
+
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    public void setSize(final int newSize) {
+
+        // the new records are filled in by set()
+        synchronized (writeLock) {
+            ensureCapacity(newSize);
+            size = newSize;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void set(
+        final int recNo,
+        final boolean deleted,
+        final byte[] bytes,
+        final int offset) {
+
+        final String[] values = new String[fieldLengths.length];
+
+        int position = offset;
+        for (int i = 0; i < values.length; i++) {
+
+            /* convert bytes to String, without padding;
+             * enforce maximum field length, per schema
+             */
+            values[i] = RecordEncoder.decode(
+                bytes,
+                position,
+                RecordEncoder.valueLength(bytes, position, fieldLengths[i]));
+            position += fieldLengths[i];
+        }
+
+        // records have their own elements, so no lock is needed
+        dataRecords[recNo] = new DataRecord(deleted, values);
+    }
+
+    /** {@inheritDoc} */
+    public void add(final String[] values) {
+
+        final DataRecord dataRecord = new DataRecord(
+            false,
+            canonical(values));
+
+        synchronized (writeLock) {
+            ensureCapacity(size + 1);
+            dataRecords[size] = dataRecord;
+
+            // publish the new record last
+            size++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean isDeleted(final int recNo) {
+
+        return getRecord(recNo).isDeleted();
+    }
+
+    /** {@inheritDoc} */
+    public void setDeleted(final int recNo, final boolean deleted) {
+
+        synchronized (writeLock) {
+            publish(recNo, new DataRecord(
+                deleted,
+                getRecord(recNo).getValues()));
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String[] getValues(final int recNo) {
+
+        /* return a new copy of the array of values;
+         * we return a copy rather than the original, so the
+         * caller can not change our copy
+         */
+        return (String[]) getRecord(recNo).getValues().clone();
+    }
+
+    /** {@inheritDoc} */
+    public String getValue(final int recNo, final int field) {
+
+        return getRecord(recNo).getValues()[field];
+    }
+
+    /** {@inheritDoc} */
+    public void setValues(final int recNo, final String[] values) {
+
+        /* Use a new copy of the data, as the caller may later
+         * change the object passed to us.
+         */
+        final String[] copy = canonical(values);
+
+        synchronized (writeLock) {
+            publish(recNo, new DataRecord(
+                getRecord(recNo).isDeleted(),
+                copy));
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean matches(
+        final int recNo,
+        final int[] fields,
+        final PrefixMatcher[] matchers) {
+
+        final DataRecord dataRecord = getRecord(recNo);
+        if (dataRecord.isDeleted()) {
+            return false;
+        }
+
+        final String[] values = dataRecord.getValues();
+        for (int i = 0; i < fields.length; i++) {
+            if (!matchers[i].matches(
+                values[fields[i]],
+                fieldLengths[fields[i]])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns a copy of a record's values, as they would be read
+     * back from the database file.
+     *
+     * @param values
+     * the values.
+     *
+     * @return
+     * the copy.
+     */
+    private String[] canonical(final String[] values) {
+
+        final String[] copy = new String[fieldLengths.length];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = RecordEncoder.canonical(values[i], fieldLengths[i]);
+        }
+
+        return copy;
+    }
+
+    /**
+     * Returns the specified record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the <code>DataRecord</code>.
+     */
+    private DataRecord getRecord(final int recNo) {
+
+        return dataRecords[recNo];
+    }
+
+    /**
+     * Replaces a record with a new version. The caller must hold
+     * <code>writeLock</code>.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param dataRecord
+     * the new version of the record.
+     */
+    private void publish(final int recNo, final DataRecord dataRecord) {
+
+        final DataRecord[] records = dataRecords;
+        records[recNo] = dataRecord;
+
+        // a volatile write makes the new version visible
+        dataRecords = records;
+    }
+
+    /**
+     * Grows the table, if necessary, to hold the specified
+     * number of records. The caller must hold
+     * <code>writeLock</code>.
+     *
+     * @param minCapacity
+     * the number of records the table must hold.
+     */
+    private void ensureCapacity(final int minCapacity) {
+
+        final DataRecord[] records = dataRecords;
+        if (minCapacity <= records.length) {
+            return;
+        }
+
+        // double the capacity, to keep appends cheap
+        int newCapacity = records.length * 2;
+        if (newCapacity < minCapacity) {
+            newCapacity = minCapacity;
+        }
+
+        final DataRecord[] newRecords = new DataRecord[newCapacity];
+        System.arraycopy(records, 0, newRecords, 0, size);
+        dataRecords = newRecords;
+    }
+
+    /**
+     * The <code>DataRecord</code> class encapsulates one version
+     * of the state of a data record. It can not be changed.
+     */
+    private static final class DataRecord {
+
+        /** The 'deleted' status for a record. */
+        private final boolean deleted;
+
+        /** The array of data values for a record. */
+        private final String[] values;
+
+        /**
+         * Constructs a <code>DataRecord</code>.
+         *
+         * @param newDeleted
+         * 'true' if the data record was deleted, else 'false'.
+         *
+         * @param newValues
+         * the array of data values for a record; the record
+         * keeps it, and no one may change it.
+         */
+        DataRecord(
+            final boolean newDeleted,
+            final String[] newValues) {
+
+            deleted = newDeleted;
+            values = newValues;
+        }
+
+        /**
+         * Returns the 'deleted' status for a record.
+         *
+         * @return
+         * 'true' if the record was deleted, else 'false'.
+         */
+        boolean isDeleted() {
+
+            return deleted;
+        }
+
+        /**
+         * Returns the array of data values for a record.
+         *
+         * @return values
+         * the array of data values for a record; it must not
+         * be changed.
+         */
+        String[] getValues() {
+
+            return values;
+        }
+    }
+}
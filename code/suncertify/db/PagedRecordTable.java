@@ -0,0 +1,465 @@
+/*
+ * @(#)PagedRecordTable.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The <code>PagedRecordTable</code> class implements the
+ * <code>RecordTable</code> interface by reading records from
+ * the database file when they are needed.
+ * <p>
+ * Records are read a page at a time, and pages are kept in a
+ * cache that holds at most a fixed number of pages; the least
+ * recently used page is evicted to make room. Pages hold
+ * records exactly as they appear in the database file.
+ * </p>
+ * <p>
+ * The database file is the master copy of every record. The
+ * caller must write a change to the file before making it to
+ * the table, since a page evicted in between is read again from
+ * the file. Changes to the table only update cached pages.
+ * </p>
+ * <p>
+ * A cached page is never changed: a change to the table replaces
+ * it with a changed copy. So readers look at a page without any
+ * lock, and never see part of a change. The cache itself is
+ * guarded by a lock of its own, held only to look a page up or
+ * to replace it, and never while the file is read; in
+ * particular, it is not the table's monitor, which
+ * <code>Data</code> holds while it writes and forces a new
+ * record.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class PagedRecordTable implements RecordTable {
+
+    /** Number of records in a page. */
+    private static final int RECORDS_PER_PAGE = 64;
+
+    /** The database file. */
+    private final RecordFile recordFile;
+
+    /** Byte offset of the first record in the file. */
+    private final long startOfData;
+
+    /** Length of a record in the file, in bytes. */
+    private final int recordLength;
+
+    /** Field lengths, in bytes. */
+    private final int[] fieldLengths;
+
+    /** Offset of each field within a record, in bytes. */
+    private final int[] fieldOffsets;
+
+    /**
+     * Cached pages, keyed by page number, in access order.
+     * Guarded by <code>cacheLock</code>.
+     */
+    private final Map pages;
+
+    /** Guards the cache. */
+    private final Object cacheLock = new Object();
+
+    /**
+     * Number of changes made to the table; a page read from the
+     * file while one was made may be older than it, and is not
+     * cached. Guarded by <code>cacheLock</code>.
+     */
+    private long changes;
+
+    /** Number of records. */
+    private volatile int size;
+
+    /**
+     * Constructs a <code>PagedRecordTable</code>.
+     *
+     * @param newRecordFile
+     * the database file.
+     *
+     * @param newStartOfData
+     * the byte offset of the first record in the file.
+     *
+     * @param newRecordLength
+     * the length of a record in the file, including its
+     * 'deleted' byte.
+     *
+     * @param newFieldLengths
+     * the length of each field, in bytes.
+     *
+     * @param newSize
+     * the number of records in the file.
+     *
+     * @param maxPages
+     * the most pages to cache.
+     */
+    PagedRecordTable(
+        final RecordFile newRecordFile,
+        final long newStartOfData,
+        final int newRecordLength,
+        final int[] newFieldLengths,
+        final int newSize,
+        final int maxPages) {
+
+        recordFile = newRecordFile;
+        startOfData = newStartOfData;
+        recordLength = newRecordLength;
+        fieldLengths = (int[]) newFieldLengths.clone();
+        size = newSize;
+
+        // the 'deleted' byte comes before the fields
+        fieldOffsets = new int[fieldLengths.length];
+        int position = 1;
+        for (int i = 0; i < fieldLengths.length; i++) {
+            fieldOffsets[i] = position;
+            position += fieldLengths[i];
+        }
+
+        // evict the least recently used page once the cache is full
+        pages = new LinkedHashMap(16, 0.75f, true) {
+
+            protected boolean removeEldestEntry(
+                final Map.Entry eldest) {
+
+                return size() > maxPages;
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    public int size() {
+
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    public void setSize(final int newSize) {
+
+        synchronized (cacheLock) {
+
+            /* Drop the cached pages past the new end, and the page
+             * it falls in; the records there no longer exist, and
+             * a record added later must not find them.
+             */
+            if (newSize < size) {
+                final int firstPage = newSize / RECORDS_PER_PAGE;
+                final Iterator iterator = pages.keySet().iterator();
+                while (iterator.hasNext()) {
+                    if (((Integer) iterator.next()).intValue()
+                        >= firstPage) {
+                        iterator.remove();
+                    }
+                }
+            }
+
+            size = newSize;
+            changes++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void set(
+        final int recNo,
+        final boolean deleted,
+        final byte[] bytes,
+        final int offset) {
+
+        synchronized (cacheLock) {
+            final byte[] page = copyOfCachedPage(recNo);
+            if (null != page) {
+                final int start = pageOffset(recNo);
+                page[start] = deleted
+                    ? Data.DELETED_RECORD
+                    : Data.VALID_RECORD;
+                System.arraycopy(
+                    bytes,
+                    offset,
+                    page,
+                    start + 1,
+                    recordLength - 1);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void add(final String[] values) {
+
+        synchronized (cacheLock) {
+            final int recNo = size;
+
+            final byte[] page = copyOfCachedPage(recNo);
+            if (null != page) {
+                page[pageOffset(recNo)] = Data.VALID_RECORD;
+                encode(page, recNo, values);
+            }
+
+            // publish the new record last
+            size++;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean isDeleted(final int recNo) {
+
+        // a record cut off since its caller looked at size() is gone
+        return (recNo >= size)
+            || (Data.VALID_RECORD != page(recNo)[pageOffset(recNo)]);
+    }
+
+    /** {@inheritDoc} */
+    public void setDeleted(
+        final int recNo,
+        final boolean deleted) {
+
+        synchronized (cacheLock) {
+            final byte[] page = copyOfCachedPage(recNo);
+            if (null != page) {
+                page[pageOffset(recNo)] = deleted
+                    ? Data.DELETED_RECORD
+                    : Data.VALID_RECORD;
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public String[] getValues(final int recNo) {
+
+        final byte[] page = page(recNo);
+        final int start = pageOffset(recNo);
+
+        final String[] values = new String[fieldLengths.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = decode(page, start + fieldOffsets[i], i);
+        }
+
+        return values;
+    }
+
+    /** {@inheritDoc} */
+    public String getValue(
+        final int recNo,
+        final int field) {
+
+        return decode(
+            page(recNo),
+            pageOffset(recNo) + fieldOffsets[field],
+            field);
+    }
+
+    /** {@inheritDoc} */
+    public void setValues(
+        final int recNo,
+        final String[] values) {
+
+        synchronized (cacheLock) {
+            final byte[] page = copyOfCachedPage(recNo);
+            if (null != page) {
+                encode(page, recNo, values);
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public boolean matches(
+        final int recNo,
+        final int[] fields,
+        final PrefixMatcher[] matchers) {
+
+        if (recNo >= size) {
+            return false;
+        }
+
+        final byte[] page = page(recNo);
+        final int offset = pageOffset(recNo);
+        if (Data.VALID_RECORD != page[offset]) {
+            return false;
+        }
+
+        for (int i = 0; i < fields.length; i++) {
+            if (!matchers[i].matches(
+                page,
+                offset + fieldOffsets[fields[i]],
+                fieldLengths[fields[i]])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the page holding a record, reading it from the
+     * database file if it is not cached.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the page.
+     *
+     * @throws IOExceptionOnReadException
+     * if the page can not be read.
+     */
+    private byte[] page(final int recNo) {
+
+        final Integer key = new Integer(recNo / RECORDS_PER_PAGE);
+        final long changesBefore;
+        synchronized (cacheLock) {
+            final byte[] page = (byte[]) pages.get(key);
+            if (null != page) {
+                return page;
+            }
+            changesBefore = changes;
+        }
+
+        // fault the page in, without holding the lock
+        final byte[] page = new byte[RECORDS_PER_PAGE * recordLength];
+        final int count;
+        try {
+            count = recordFile.read(
+                startOfData + ((long) key.intValue() * page.length),
+                page,
+                0,
+                page.length);
+        } catch (final IOException e) {
+            throw new IOExceptionOnReadException(
+                "record number " + recNo,
+                e);
+        }
+
+        /* Records past the end of the file, or cut short by it,
+         * are deleted, rather than left as empty valid records.
+         */
+        for (int i = Math.max(0, count) / recordLength;
+            i < RECORDS_PER_PAGE; i++) {
+            page[i * recordLength] = Data.DELETED_RECORD;
+        }
+
+        /* Another reader may have cached the page meanwhile; and
+         * if the table was changed meanwhile, the page may have
+         * been read before the change was written to the file.
+         */
+        synchronized (cacheLock) {
+            final byte[] cached = (byte[]) pages.get(key);
+            if (null != cached) {
+                return cached;
+            }
+            if (changesBefore == changes) {
+                pages.put(key, page);
+            }
+        }
+
+        return page;
+    }
+
+    /**
+     * Replaces the page holding a record, if it is cached, with a
+     * copy of it that the caller changes; readers of the old page
+     * are not disturbed. Counts the change, whether or not the
+     * page is cached. The caller must hold <code>cacheLock</code>.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the copy of the page, or <code>null</code> if it is not
+     * cached.
+     */
+    private byte[] copyOfCachedPage(final int recNo) {
+
+        changes++;
+
+        final Integer key = new Integer(recNo / RECORDS_PER_PAGE);
+        final byte[] page = (byte[]) pages.get(key);
+        if (null == page) {
+            return null;
+        }
+
+        /* The copy is changed before any reader can see it; it is
+         * published when the caller releases the lock.
+         */
+        final byte[] copy = (byte[]) page.clone();
+        pages.put(key, copy);
+
+        return copy;
+    }
+
+    /**
+     * Returns the offset of a record within its page.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * the offset of the record's 'deleted' byte.
+     */
+    private int pageOffset(final int recNo) {
+
+        return (recNo % RECORDS_PER_PAGE) * recordLength;
+    }
+
+    /**
+     * Creates a <code>String</code> from a value in a page,
+     * without its padding.
+     *
+     * @param page
+     * the page holding the record.
+     *
+     * @param offset
+     * the offset of the value in the page.
+     *
+     * @param field
+     * the field number; 0-based.
+     *
+     * @return
+     * the value.
+     */
+    private String decode(
+        final byte[] page,
+        final int offset,
+        final int field) {
+
+        return RecordEncoder.decode(page, offset, RecordEncoder
+            .valueLength(page, offset, fieldLengths[field]));
+    }
+
+    /**
+     * Stores a record's values in a page, padded with spaces and
+     * truncated to the field lengths, as in the database file.
+     *
+     * @param page
+     * the page holding the record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param values
+     * the values to store.
+     */
+    private void encode(
+        final byte[] page,
+        final int recNo,
+        final String[] values) {
+
+        final int start = pageOffset(recNo);
+        for (int i = 0; i < fieldLengths.length; i++) {
+
+            RecordEncoder.encode(
+                values[i],
+                page,
+                start + fieldOffsets[i],
+                fieldLengths[i]);
+        }
+    }
+}
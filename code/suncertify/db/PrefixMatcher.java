@@ -0,0 +1,212 @@
+/*
+ * @(#)PrefixMatcher.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>PrefixMatcher</code> class tests whether field
+ * values begin with a literal prefix, ignoring upper and lower
+ * case.
+ * <p>
+ * Fields hold 8 bit US ASCII characters, so case is folded for
+ * the letters <code>A</code> to <code>Z</code> only, and a
+ * stored byte that is not US ASCII is tested as
+ * <code>'?'</code>, as it is read. Values may be tested as
+ * <code>String</code> objects or directly as the bytes stored
+ * in the database file; neither allocates any objects.
+ * </p>
+ * <p>
+ * The prefix is taken with <code>'?'</code> for each character
+ * that is not US ASCII, as it would be read back from the
+ * database file, but keeps any trailing spaces: a space in the
+ * prefix matches padding, so <code>"Fred "</code> matches
+ * <code>"Fred"</code> but not <code>"Freddy"</code>. A
+ * <code>String</code> value is taken as padded to its field
+ * length, so values match the same whether they are tested as
+ * <code>String</code> objects or as stored bytes.
+ * </p>
+ * <p>
+ * A matcher may instead test whole values, so that a value
+ * matches only if nothing but padding (spaces or null bytes)
+ * follows the prefix. A whole value matcher for the empty
+ * prefix matches blank values.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class PrefixMatcher {
+
+    /** The prefix, folded to lower case. */
+    private final char[] prefix;
+
+    /** <code>true</code> if only padding may follow the prefix. */
+    private final boolean wholeValue;
+
+    /**
+     * Constructs a <code>PrefixMatcher</code>.
+     *
+     * @param newPrefix
+     * the prefix; every character is taken literally.
+     */
+    PrefixMatcher(final String newPrefix) {
+
+        this(newPrefix, false);
+    }
+
+    /**
+     * Constructs a <code>PrefixMatcher</code> that may test
+     * whole values.
+     *
+     * @param newPrefix
+     * the prefix; every character is taken literally.
+     *
+     * @param newWholeValue
+     * <code>true</code> if only padding may follow the prefix.
+     */
+    PrefixMatcher(final String newPrefix, final boolean newWholeValue) {
+
+        wholeValue = newWholeValue;
+        prefix = new char[newPrefix.length()];
+        for (int i = 0; i < prefix.length; i++) {
+            prefix[i] = fold(RecordEncoder.canonical(newPrefix
+                .charAt(i)));
+        }
+    }
+
+    /**
+     * Tests whether a value begins with the prefix. The value is
+     * taken as padded with spaces to its field length.
+     *
+     * @param value
+     * the value, without padding.
+     *
+     * @param fieldLength
+     * the field length, in bytes.
+     *
+     * @return
+     * <code>true</code> if the value begins with the prefix.
+     */
+    boolean matches(final String value, final int fieldLength) {
+
+        if (fieldLength < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            final char c = (i < value.length())
+                ? value.charAt(i)
+                : ' ';
+            if (!matchesAt(i, c)) {
+                return false;
+            }
+        }
+
+        if (wholeValue) {
+            for (int i = prefix.length; i < value.length(); i++) {
+                if (!isPadding(value.charAt(i))) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Tests whether a stored value begins with the prefix.
+     *
+     * @param bytes
+     * the stored values.
+     *
+     * @param offset
+     * the offset of the value in <code>bytes</code>.
+     *
+     * @param length
+     * the length of the value, in bytes.
+     *
+     * @return
+     * <code>true</code> if the value begins with the prefix.
+     */
+    boolean matches(
+        final byte[] bytes,
+        final int offset,
+        final int length) {
+
+        if (length < prefix.length) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length; i++) {
+            if (!matchesAt(i, RecordEncoder.decode(bytes[offset + i]))) {
+                return false;
+            }
+        }
+
+        if (wholeValue) {
+            for (int i = prefix.length; i < length; i++) {
+                if (!isPadding(RecordEncoder.decode(bytes[offset + i]))) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Tests whether a character matches the prefix character at
+     * an index; a space matches either kind of padding.
+     *
+     * @param index
+     * the index in the prefix.
+     *
+     * @param c
+     * the character.
+     *
+     * @return
+     * <code>true</code> if the character matches.
+     */
+    private boolean matchesAt(final int index, final char c) {
+
+        return (fold(c) == prefix[index])
+            || ((' ' == prefix[index]) && isPadding(c));
+    }
+
+    /**
+     * Folds a character to lower case.
+     *
+     * @param c
+     * the character.
+     *
+     * @return
+     * the character, in lower case if it is a US ASCII letter.
+     */
+    private static char fold(final char c) {
+
+        if (('A' <= c) && (c <= 'Z')) {
+            return (char) (c + ('a' - 'A'));
+        }
+
+        return c;
+    }
+
+    /**
+     * Tests whether a character pads a stored value.
+     *
+     * @param c
+     * the character.
+     *
+     * @return
+     * <code>true</code> if the character is a space or a null.
+     */
+    private static boolean isPadding(final char c) {
+
+        return (' ' == c) || (0 == c);
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * @(#)RandomAccessRecordFile.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The <code>RandomAccessRecordFile</code> class implements the
+ * <code>RecordFile</code> interface with a
+ * <code>RandomAccessFile</code>. The file is normally opened in
+ * "rws" mode, so every write is synchronous; it is opened in
+ * "rw" mode when something else, such as a journal, takes care
+ * of durability.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class RandomAccessRecordFile implements RecordFile {
+
+    /** Use random access for database updates. */
+    private final RandomAccessFile randomAccessFile;
+
+    /** <code>true</code> if every write is synchronous. */
+    private final boolean synchronous;
+
+    /**
+     * Constructs a <code>RandomAccessRecordFile</code>.
+     *
+     * @param newFile
+     * the database file.
+     *
+     * @param newSynchronous
+     * <code>true</code> to make every write synchronous;
+     * <code>false</code> to leave that to <code>force()</code>.
+     *
+     * @throws IOException
+     * if the file can not be opened for writing.
+     */
+    RandomAccessRecordFile(
+        final File newFile,
+        final boolean newSynchronous) throws IOException {
+
+        synchronous = newSynchronous;
+        randomAccessFile = new RandomAccessFile(newFile, synchronous
+            ? "rws"
+            : "rw");
+    }
+
+    /** {@inheritDoc} */
+    public int read(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        // a positional read leaves the file pointer alone
+        final FileChannel channel = randomAccessFile.getChannel();
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        long at = position;
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer, at);
+            if (count < 0) {
+                break;
+            }
+            at += count;
+        }
+
+        return (int) (at - position);
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void write(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        // the seek and the write must not be separated
+        randomAccessFile.seek(position);
+        randomAccessFile.write(bytes, offset, length);
+    }
+
+    /** {@inheritDoc} */
+    public long length() throws IOException {
+
+        return randomAccessFile.length();
+    }
+
+    /** {@inheritDoc} */
+    public synchronized void setLength(final long newLength)
+        throws IOException {
+
+        randomAccessFile.setLength(newLength);
+    }
+
+    /** {@inheritDoc} */
+    public void force() throws IOException {
+
+        // a synchronous file has nothing left to force
+        if (!synchronous) {
+            randomAccessFile.getChannel().force(false);
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+
+        randomAccessFile.close();
+    }
+}
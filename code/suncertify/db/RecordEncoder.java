@@ -0,0 +1,312 @@
+/*
+ * @(#)RecordEncoder.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>RecordEncoder</code> class encodes data values as
+ * they are stored in the database file: as 8 bit US ASCII, each
+ * value cut or padded with spaces to its field length. It also
+ * decodes stored values, without their padding.
+ * <p>
+ * Characters are encoded and decoded one at a time, so neither
+ * the platform's default character set nor a byte array for the
+ * value is used. A character that is not US ASCII is encoded,
+ * and a byte that is not is decoded, as <code>'?'</code>. A
+ * value's padding is any spaces or null bytes at its end. Each
+ * thread has buffers of its own, big enough for a record, so
+ * writers neither allocate nor wait for one another. A buffer
+ * may be used again as soon as the <code>RecordFile</code> write
+ * returns, since a <code>RecordFile</code> does not keep the
+ * bytes it is given.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class RecordEncoder {
+
+    /** Encoding of a character that is not US ASCII. */
+    private static final byte UNMAPPABLE = (byte) '?';
+
+    /** Decoding of a byte that is not US ASCII. */
+    private static final char UNDECODABLE = '?';
+
+    /** Field lengths, in bytes. */
+    private final int[] fieldLengths;
+
+    /** Buffers of the calling thread. */
+    private final ThreadLocal buffers;
+
+    /**
+     * Constructs a <code>RecordEncoder</code>.
+     *
+     * @param newFieldLengths
+     * the length of each field, in bytes.
+     *
+     * @param bufferLength
+     * the length of each buffer, in bytes.
+     */
+    RecordEncoder(final int[] newFieldLengths, final int bufferLength) {
+
+        fieldLengths = (int[]) newFieldLengths.clone();
+
+        buffers = new ThreadLocal() {
+
+            protected Object initialValue() {
+
+                return new byte[][] {
+                    new byte[bufferLength],
+                    new byte[bufferLength]
+                };
+            }
+        };
+    }
+
+    /**
+     * Returns the calling thread's buffer.
+     *
+     * @return
+     * the buffer; only the calling thread uses it.
+     */
+    byte[] buffer() {
+
+        return ((byte[][]) buffers.get())[0];
+    }
+
+    /**
+     * Returns the calling thread's second buffer, for a record
+     * to compare with the one in <code>buffer()</code>.
+     *
+     * @return
+     * the buffer; only the calling thread uses it.
+     */
+    byte[] otherBuffer() {
+
+        return ((byte[][]) buffers.get())[1];
+    }
+
+    /**
+     * Encodes the data values of a record.
+     *
+     * @param values
+     * the array of data values for a record.
+     *
+     * @param bytes
+     * the buffer to encode into.
+     *
+     * @param offset
+     * the offset in <code>bytes</code> of the first field.
+     */
+    void encode(
+        final String[] values,
+        final byte[] bytes,
+        final int offset) {
+
+        int position = offset;
+        for (int i = 0; i < values.length; i++) {
+            encode(values[i], bytes, position, fieldLengths[i]);
+            position += fieldLengths[i];
+        }
+    }
+
+    /**
+     * Encodes one data value.
+     *
+     * @param value
+     * the value.
+     *
+     * @param bytes
+     * the buffer to encode into.
+     *
+     * @param offset
+     * the offset in <code>bytes</code> of the field.
+     *
+     * @param length
+     * the field length, in bytes.
+     */
+    static void encode(
+        final String value,
+        final byte[] bytes,
+        final int offset,
+        final int length) {
+
+        // copy the value, up to the field length
+        final int count = Math.min(value.length(), length);
+        for (int i = 0; i < count; i++) {
+            final char c = value.charAt(i);
+            bytes[offset + i] = (c < 0x80)
+                ? (byte) c
+                : UNMAPPABLE;
+        }
+
+        // fill the rest of the field with spaces
+        for (int i = count; i < length; i++) {
+            bytes[offset + i] = (byte) ' ';
+        }
+    }
+
+    /**
+     * Returns the length of a stored value without its padding.
+     *
+     * @param bytes
+     * the stored values.
+     *
+     * @param offset
+     * the offset in <code>bytes</code> of the field.
+     *
+     * @param length
+     * the field length, in bytes.
+     *
+     * @return
+     * the number of bytes before the padding.
+     */
+    static int valueLength(
+        final byte[] bytes,
+        final int offset,
+        final int length) {
+
+        int end = length;
+        while ((end > 0) && isPadding(bytes[offset + end - 1])) {
+            end--;
+        }
+
+        return end;
+    }
+
+    /**
+     * Decodes a stored value.
+     *
+     * @param bytes
+     * the stored values.
+     *
+     * @param offset
+     * the offset in <code>bytes</code> of the field.
+     *
+     * @param count
+     * the number of bytes to decode; usually the value's length
+     * without its padding.
+     *
+     * @return
+     * the value.
+     */
+    static String decode(
+        final byte[] bytes,
+        final int offset,
+        final int count) {
+
+        final char[] chars = new char[count];
+        for (int i = 0; i < count; i++) {
+            chars[i] = decode(bytes[offset + i]);
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Decodes a stored byte.
+     *
+     * @param b
+     * the stored byte.
+     *
+     * @return
+     * the character; <code>'?'</code> if the byte is not US
+     * ASCII.
+     */
+    static char decode(final byte b) {
+
+        return (b >= 0)
+            ? (char) b
+            : UNDECODABLE;
+    }
+
+    /**
+     * Returns a value as it would be read back from the database
+     * file: cut to the field length, without padding, and with
+     * <code>'?'</code> for each character that is not US ASCII.
+     *
+     * @param value
+     * the value.
+     *
+     * @param length
+     * the field length, in bytes.
+     *
+     * @return
+     * the value as stored; <code>value</code> itself if that is
+     * how it is stored.
+     */
+    static String canonical(final String value, final int length) {
+
+        int end = Math.min(value.length(), length);
+        while ((end > 0) && isPadding(value.charAt(end - 1))) {
+            end--;
+        }
+
+        boolean ascii = true;
+        for (int i = 0; ascii && (i < end); i++) {
+            ascii = value.charAt(i) < 0x80;
+        }
+
+        // most values are stored as they are
+        if (ascii && (end == value.length())) {
+            return value;
+        }
+
+        final char[] chars = new char[end];
+        for (int i = 0; i < end; i++) {
+            chars[i] = canonical(value.charAt(i));
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Returns a character as it would be read back from the
+     * database file.
+     *
+     * @param c
+     * the character.
+     *
+     * @return
+     * the character; <code>'?'</code> if it is not US ASCII.
+     */
+    static char canonical(final char c) {
+
+        return (c < 0x80)
+            ? c
+            : UNDECODABLE;
+    }
+
+    /**
+     * Tests whether a stored byte pads a value.
+     *
+     * @param b
+     * the byte.
+     *
+     * @return
+     * <code>true</code> if the byte is a space or a null.
+     */
+    private static boolean isPadding(final byte b) {
+
+        return (' ' == b) || (0 == b);
+    }
+
+    /**
+     * Tests whether a character pads a value.
+     *
+     * @param c
+     * the character.
+     *
+     * @return
+     * <code>true</code> if the character is a space or a null.
+     */
+    private static boolean isPadding(final char c) {
+
+        return (' ' == c) || (0 == c);
+    }
+}
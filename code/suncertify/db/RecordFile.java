@@ -0,0 +1,108 @@
+/*
+ * @(#)RecordFile.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.IOException;
+
+/**
+ * The <code>RecordFile</code> interface hides how the
+ * <code>Data</code> class reads and writes its database file.
+ * All positions are byte offsets from the start of the file.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+interface RecordFile {
+
+    /**
+     * Reads bytes at the specified position.
+     * Fewer bytes than requested are read only at the end of the
+     * file.
+     *
+     * @param position
+     * the byte offset of the first byte to read.
+     *
+     * @param bytes
+     * the buffer to read into.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to read.
+     *
+     * @return
+     * the number of bytes read.
+     *
+     * @throws IOException
+     * if the read fails.
+     */
+    int read(long position, byte[] bytes, int offset, int length)
+        throws IOException;
+
+    /**
+     * Writes bytes at the specified position. The bytes are not
+     * kept, so the caller may change them once this returns.
+     *
+     * @param position
+     * the byte offset of the first byte to write.
+     *
+     * @param bytes
+     * the data.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to write.
+     *
+     * @throws IOException
+     * if the write fails.
+     */
+    void write(long position, byte[] bytes, int offset, int length)
+        throws IOException;
+
+    /**
+     * Returns the length of the file.
+     *
+     * @return
+     * the length of the file, in bytes.
+     *
+     * @throws IOException
+     * if the length can not be determined.
+     */
+    long length() throws IOException;
+
+    /**
+     * Sets the length of the file.
+     *
+     * @param newLength
+     * the new length of the file, in bytes.
+     *
+     * @throws IOException
+     * if the length can not be changed.
+     */
+    void setLength(long newLength) throws IOException;
+
+    /**
+     * Forces all written bytes to the storage device.
+     *
+     * @throws IOException
+     * if the force fails.
+     */
+    void force() throws IOException;
+
+    /**
+     * Closes the file.
+     *
+     * @throws IOException
+     * if the close fails.
+     */
+    void close() throws IOException;
+}
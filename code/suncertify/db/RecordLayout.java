@@ -0,0 +1,106 @@
+/*
+ * @(#)RecordLayout.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>RecordLayout</code> class enumerates the ways a
+ * <code>Data</code> object can hold its records in memory.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public final class RecordLayout {
+
+    /**
+     * Hold each record as an object with one
+     * <code>String</code> per field. This is the default.
+     */
+    public static final RecordLayout OBJECTS = new RecordLayout(
+        "objects");
+
+    /**
+     * Hold each field as one contiguous byte column, indexed by
+     * record number, plus a bit set of deleted records.
+     * <code>String</code> values are only created when they are
+     * read.
+     */
+    public static final RecordLayout COLUMNS = new RecordLayout(
+        "columns");
+
+    /**
+     * Hold no records at all: records are read from the database
+     * file a page at a time, when they are needed, and a bounded
+     * number of pages is cached. Only the header is read when
+     * the database is opened.
+     */
+    public static final RecordLayout PAGED = new RecordLayout(
+        "paged");
+
+    /** All record layouts, for parsing. */
+    private static final RecordLayout[] VALUES = new RecordLayout[] {
+        OBJECTS,
+        COLUMNS,
+        PAGED
+    };
+
+    /** The name of the record layout. */
+    private final String name;
+
+    /**
+     * Constructs a <code>RecordLayout</code>.
+     *
+     * @param newName
+     * the name of the record layout.
+     */
+    private RecordLayout(final String newName) {
+
+        name = newName;
+    }
+
+    /**
+     * Returns the <code>RecordLayout</code> with the specified
+     * name.
+     *
+     * @param name
+     * the name of the record layout.
+     *
+     * @return
+     * the matching <code>RecordLayout</code>.
+     *
+     * @throws IllegalArgumentException
+     * if there is no record layout with that name.
+     */
+    public static RecordLayout parse(final String name) {
+
+        // validate arguments
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+
+        for (int i = 0; i < VALUES.length; i++) {
+            if (VALUES[i].name.equalsIgnoreCase(name.trim())) {
+                return VALUES[i];
+            }
+        }
+        throw new IllegalArgumentException("record layout was '"
+            + name
+            + "'");
+    }
+
+    /**
+     * Returns the name of the record layout.
+     *
+     * @return
+     * the name of the record layout.
+     */
+    public String toString() {
+
+        return name;
+    }
+}
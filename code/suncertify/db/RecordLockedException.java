@@ -0,0 +1,59 @@
+/*
+ * @(#)RecordLockedException.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * Instances of the <code>RecordLockedException</code> class
+ * are thrown to indicate that a record stayed locked by another
+ * client for longer than the software was willing to wait.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public class RecordLockedException extends Exception {
+
+    /**
+     * Constructs a <code>RecordLockedException</code>
+     * with no detail message.
+     */
+    public RecordLockedException() {
+
+        super();
+    }
+
+    /**
+     * Constructs a <code>RecordLockedException</code>
+     * with the specified detail message.
+     *
+     * @param description
+     * the detail message.
+     */
+    public RecordLockedException(final String description) {
+
+        super(description);
+    }
+
+    /**
+     * Constructs a <code>RecordLockedException</code> with the
+     * specified detail message and cause.
+     *
+     * @param description
+     * the detail message.
+     *
+     * @param  cause
+     * the cause.
+     */
+    public RecordLockedException(
+        final String description,
+        final Throwable cause) {
+
+        super(description, cause);
+    }
+}
+
@@ -0,0 +1,155 @@
+/*
+ * @(#)RecordTable.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>RecordTable</code> interface hides how the
+ * <code>Data</code> class holds its records in memory.
+ * Records are addressed by record number; the record numbers of
+ * a table are always <code>0</code> through
+ * <code>size() - 1</code>.
+ * <p>
+ * Callers are responsible for validating record numbers and
+ * for serializing changes to a record. Reads need not be
+ * serialized with changes: a record is always seen either
+ * wholly before or wholly after a change, never part way
+ * through.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+interface RecordTable {
+
+    /**
+     * Returns the number of records, including deleted records.
+     *
+     * @return
+     * the number of records.
+     */
+    int size();
+
+    /**
+     * Grows the table to hold the records read from the database
+     * file, or cuts it short when deleted records at its end are
+     * compacted away. The new records must then be stored with
+     * <code>set()</code>.
+     *
+     * @param newSize
+     * the number of records.
+     */
+    void setSize(int newSize);
+
+    /**
+     * Stores a record read from the database file.
+     * Different threads may store different records at the same
+     * time, as long as the size of the table is not changed
+     * meanwhile.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param deleted
+     * <code>true</code> if the record is deleted.
+     *
+     * @param bytes
+     * the record's field values, in file format.
+     *
+     * @param offset
+     * the offset of the first field in <code>bytes</code>.
+     */
+    void set(int recNo, boolean deleted, byte[] bytes, int offset);
+
+    /**
+     * Appends a new record.
+     *
+     * @param values
+     * the record's field values; the table keeps its own copy.
+     */
+    void add(String[] values);
+
+    /**
+     * Returns the 'deleted' status for a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * <code>true</code> if the record is deleted.
+     */
+    boolean isDeleted(int recNo);
+
+    /**
+     * Sets the 'deleted' status for a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param deleted
+     * <code>true</code> if the record is deleted.
+     */
+    void setDeleted(int recNo, boolean deleted);
+
+    /**
+     * Returns the field values for a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * a new array of field values, that the caller may change;
+     * all taken from the same version of the record.
+     */
+    String[] getValues(int recNo);
+
+    /**
+     * Returns one field value for a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param field
+     * the field number; 0-based.
+     *
+     * @return
+     * the field value.
+     */
+    String getValue(int recNo, int field);
+
+    /**
+     * Sets the field values for a record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param values
+     * the record's field values; the table keeps its own copy.
+     */
+    void setValues(int recNo, String[] values);
+
+    /**
+     * Tests whether a record is not deleted, and each of some
+     * of its fields matches a prefix. Every test is made on the
+     * same version of the record.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param fields
+     * the field numbers to test.
+     *
+     * @param matchers
+     * the matcher for each of <code>fields</code>.
+     *
+     * @return
+     * <code>true</code> if the record is not deleted and every
+     * field matches.
+     */
+    boolean matches(int recNo, int[] fields, PrefixMatcher[] matchers);
+}
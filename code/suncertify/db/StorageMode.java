@@ -0,0 +1,96 @@
+/*
+ * @(#)StorageMode.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>StorageMode</code> class enumerates the ways a
+ * <code>Data</code> object can access its database file.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public final class StorageMode {
+
+    /**
+     * Read the file with a <code>DataInputStream</code> and
+     * write each field synchronously through a
+     * <code>RandomAccessFile</code>. This is the default.
+     */
+    public static final StorageMode RANDOM_ACCESS = new StorageMode(
+        "random-access");
+
+    /**
+     * Map the file into memory with a <code>FileChannel</code>;
+     * reads and updates are memory operations, and durability is
+     * controlled by a <code>ForcePolicy</code>.
+     */
+    public static final StorageMode MAPPED = new StorageMode(
+        "mapped");
+
+    /** All storage modes, for parsing. */
+    private static final StorageMode[] VALUES = new StorageMode[] {
+        RANDOM_ACCESS,
+        MAPPED
+    };
+
+    /** The name of the storage mode. */
+    private final String name;
+
+    /**
+     * Constructs a <code>StorageMode</code>.
+     *
+     * @param newName
+     * the name of the storage mode.
+     */
+    private StorageMode(final String newName) {
+
+        name = newName;
+    }
+
+    /**
+     * Returns the <code>StorageMode</code> with the specified
+     * name.
+     *
+     * @param name
+     * the name of the storage mode.
+     *
+     * @return
+     * the matching <code>StorageMode</code>.
+     *
+     * @throws IllegalArgumentException
+     * if there is no storage mode with that name.
+     */
+    public static StorageMode parse(final String name) {
+
+        // validate arguments
+        if (null == name) {
+            throw new NullPointerException("name");
+        }
+
+        for (int i = 0; i < VALUES.length; i++) {
+            if (VALUES[i].name.equalsIgnoreCase(name.trim())) {
+                return VALUES[i];
+            }
+        }
+        throw new IllegalArgumentException("storage mode was '"
+            + name
+            + "'");
+    }
+
+    /**
+     * Returns the name of the storage mode.
+     *
+     * @return
+     * the name of the storage mode.
+     */
+    public String toString() {
+
+        return name;
+    }
+}
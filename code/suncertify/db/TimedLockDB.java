@@ -0,0 +1,97 @@
+/*
+ * @(#)TimedLockDB.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+/**
+ * The <code>TimedLockDB</code> interface extends the
+ * <code>DB</code> interface with ways to lock a record that do
+ * not wait forever, and with lock leases.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public interface TimedLockDB extends DB {
+
+    /**
+     * Locks a record, if no other client has it locked.
+     * Returned value is a cookie that must be used when the
+     * record is unlocked, updated, or deleted.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @return
+     * a cookie that must be used when the record is unlocked,
+     * updated, or deleted
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     *
+     * @throws RecordLockedException
+     * if another client has the record locked.
+     */
+    public long tryLock(int recNo)
+        throws RecordNotFoundException,
+        RecordLockedException;
+
+    /**
+     * Locks a record, waiting at most the specified time for
+     * other clients to unlock it.
+     * Returned value is a cookie that must be used when the
+     * record is unlocked, updated, or deleted.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param timeout
+     * the longest time to wait, in milliseconds; <code>0</code>
+     * does not wait.
+     *
+     * @return
+     * a cookie that must be used when the record is unlocked,
+     * updated, or deleted
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist or is marked as
+     * deleted in the database file.
+     *
+     * @throws RecordLockedException
+     * if the record is still locked by another client when the
+     * time is up.
+     *
+     * @throws InterruptedException
+     * if the current thread is interrupted while it waits; it
+     * then no longer waits for the lock.
+     */
+    public long lock(int recNo, long timeout)
+        throws RecordNotFoundException,
+        RecordLockedException,
+        InterruptedException;
+
+    /**
+     * Renews the lease of the lock on a record, so that the lock
+     * does not expire. Updating or deleting the record renews
+     * the lease, too.
+     * Throws <code>SecurityException</code> if the record is not
+     * locked with <code>lockCookie</code>; for example, because
+     * the lock has expired.
+     *
+     * @param recNo
+     * the record number; 0-based.
+     *
+     * @param lockCookie
+     * the cookie that uniquely identifies a lock.
+     *
+     * @throws RecordNotFoundException
+     * if the specified record does not exist.
+     */
+    public void renewLock(int recNo, long lockCookie)
+        throws RecordNotFoundException;
+}
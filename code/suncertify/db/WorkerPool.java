@@ -0,0 +1,270 @@
+/*
+ * @(#)WorkerPool.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.util.LinkedList;
+
+/**
+ * The <code>WorkerPool</code> class runs groups of tasks in
+ * parallel on a fixed set of daemon threads.
+ * <p>
+ * <code>invokeAll()</code> hands its tasks to the workers and
+ * runs tasks itself while it waits, so a pool of
+ * <i>n</i> threads starts only <i>n</i> - 1 workers, and a pool
+ * of one thread simply runs every task in the calling thread.
+ * Several callers may share a pool; their tasks are run in the
+ * order they were submitted. <code>shutdown()</code> stops the
+ * workers once the tasks submitted so far are done.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class WorkerPool {
+
+    /** The number of threads that run tasks. */
+    private final int threads;
+
+    /** Batches that still have tasks to hand out, oldest first. */
+    private final LinkedList queue = new LinkedList();
+
+    /**
+     * <code>true</code> once the workers are to stop. Guarded by
+     * the <code>queue</code> monitor.
+     */
+    private boolean shutdown;
+
+    /**
+     * Constructs a <code>WorkerPool</code>.
+     *
+     * @param name
+     * the name of the worker threads.
+     *
+     * @param newThreads
+     * the number of threads that run tasks, including the
+     * calling thread.
+     */
+    WorkerPool(final String name, final int newThreads) {
+
+        // validate arguments
+        if (newThreads <= 0) {
+            throw new IllegalArgumentException("threads was "
+                + newThreads);
+        }
+
+        threads = newThreads;
+
+        // the calling thread is one of the threads
+        for (int i = 1; i < threads; i++) {
+            final Thread worker = new Thread(
+                new Worker(),
+                name + " " + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Returns the number of threads that run tasks.
+     *
+     * @return
+     * the number of threads, including the calling thread.
+     */
+    int getThreads() {
+
+        return threads;
+    }
+
+    /**
+     * Runs tasks in parallel, and waits until they are all
+     * done. If a task throws an exception, the remaining tasks
+     * are still run, then the first exception is thrown again.
+     *
+     * @param tasks
+     * the tasks to run.
+     */
+    void invokeAll(final Runnable[] tasks) {
+
+        final Batch batch = new Batch(tasks);
+
+        if (threads > 1) {
+            synchronized (queue) {
+                if (!shutdown) {
+                    queue.addLast(batch);
+                    queue.notifyAll();
+                }
+            }
+        }
+
+        // help out, rather than sit idle
+        Runnable task;
+        while (null != (task = batch.next())) {
+            batch.run(task);
+        }
+
+        batch.await();
+    }
+
+    /**
+     * Stops the workers once every task submitted so far has
+     * been handed out. Tasks submitted afterwards are run by the
+     * calling thread alone.
+     */
+    void shutdown() {
+
+        synchronized (queue) {
+            shutdown = true;
+            queue.notifyAll();
+        }
+    }
+
+    /**
+     * The <code>Batch</code> class tracks the tasks passed to one
+     * call of <code>invokeAll()</code>.
+     */
+    private static final class Batch {
+
+        /** The tasks. */
+        private final Runnable[] tasks;
+
+        /** Index of the next task to hand out. */
+        private int next;
+
+        /** Number of tasks not yet finished. */
+        private int remaining;
+
+        /** The first exception thrown by a task. */
+        private Throwable failure;
+
+        /**
+         * Constructs a <code>Batch</code>.
+         *
+         * @param newTasks
+         * the tasks.
+         */
+        Batch(final Runnable[] newTasks) {
+
+            tasks = newTasks;
+            remaining = tasks.length;
+        }
+
+        /**
+         * Hands out the next task.
+         *
+         * @return
+         * the next task, or <code>null</code> if every task has
+         * been handed out.
+         */
+        synchronized Runnable next() {
+
+            if (next == tasks.length) {
+                return null;
+            }
+
+            return tasks[next++];
+        }
+
+        /**
+         * Runs a task, and records its outcome.
+         *
+         * @param task
+         * the task.
+         */
+        void run(final Runnable task) {
+
+            Throwable thrown = null;
+            try {
+                task.run();
+            } catch (final RuntimeException e) {
+                thrown = e;
+            } catch (final Error e) {
+                thrown = e;
+            }
+
+            synchronized (this) {
+                if (null == failure) {
+                    failure = thrown;
+                }
+                if (0 == --remaining) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Waits until every task is finished, then throws the
+         * first exception thrown by a task, if any.
+         */
+        synchronized void await() {
+
+            boolean interrupted = false;
+            while (remaining > 0) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+        }
+    }
+
+    /**
+     * The <code>Worker</code> class runs tasks from the queue,
+     * until the pool is shut down.
+     */
+    private final class Worker implements Runnable {
+
+        /**
+         * Runs tasks as they are submitted.
+         */
+        public void run() {
+
+            for (;;) {
+
+                Batch batch = null;
+                Runnable task = null;
+                synchronized (queue) {
+                    while (null == task) {
+                        if (queue.isEmpty()) {
+                            if (shutdown) {
+                                return;
+                            }
+                            try {
+                                queue.wait();
+                            } catch (final InterruptedException e) {
+                                // nothing to do here
+                                continue;
+                            }
+                        } else {
+                            batch = (Batch) queue.getFirst();
+                            task = batch.next();
+                            if (null == task) {
+
+                                // every task is handed out
+                                queue.removeFirst();
+                            }
+                        }
+                    }
+                }
+
+                batch.run(task);
+            }
+        }
+    }
+}
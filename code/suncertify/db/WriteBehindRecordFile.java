@@ -0,0 +1,474 @@
+/*
+ * @(#)WriteBehindRecordFile.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.db;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * The <code>WriteBehindRecordFile</code> class implements the
+ * <code>RecordFile</code> interface by queueing writes, which a
+ * writer thread of its own then writes to the file.
+ * <p>
+ * The queue is a ring of a fixed number of slots, so it never
+ * grows: <code>write()</code> copies the bytes into the next
+ * free slot, and waits for the writer thread if there is none.
+ * Writes are written to the file in the order they were queued.
+ * <code>flush()</code> waits until every write queued so far
+ * has been written to the file, and <code>force()</code> then
+ * forces the file too.
+ * </p>
+ * <p>
+ * Reads see queued writes: the bytes are read from the file,
+ * then the queued writes are copied over them.
+ * </p>
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+final class WriteBehindRecordFile implements RecordFile {
+
+    /** Logger for this class. */
+    private static final Logger LOGGER = Logger
+        .getLogger(WriteBehindRecordFile.class.getName());
+
+    /** The file written to. */
+    private final RecordFile target;
+
+    /** The file position of each slot's write. */
+    private final long[] positions;
+
+    /** The bytes of each slot's write; a slot's array is re-used. */
+    private final byte[][] slots;
+
+    /** The length of each slot's write. */
+    private final int[] lengths;
+
+    /** The writer thread. */
+    private final Thread writer;
+
+    /**
+     * Number of writes ever queued; the next write goes in slot
+     * <code>queued % slots.length</code>. Guarded by this
+     * object's monitor.
+     */
+    private long queued;
+
+    /**
+     * Number of writes ever written to the file; the writes in
+     * between are in the queue. Guarded by this object's
+     * monitor.
+     */
+    private long written;
+
+    /**
+     * <code>true</code> while the writer thread writes the oldest
+     * queued write. Guarded by this object's monitor.
+     */
+    private boolean writing;
+
+    /** The first error, after which the file can not be used. */
+    private IOException failure;
+
+    /** <code>true</code> once the file has been closed. */
+    private boolean closed;
+
+    /**
+     * Constructs a <code>WriteBehindRecordFile</code>, and starts
+     * its writer thread.
+     *
+     * @param newTarget
+     * the file to write to.
+     *
+     * @param capacity
+     * the number of writes the queue holds.
+     *
+     * @param name
+     * the name of the file, for the writer thread.
+     */
+    WriteBehindRecordFile(
+        final RecordFile newTarget,
+        final int capacity,
+        final String name) {
+
+        // validate arguments
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity was "
+                + capacity);
+        }
+
+        target = newTarget;
+        positions = new long[capacity];
+        slots = new byte[capacity][];
+        lengths = new int[capacity];
+
+        writer = new Thread(new Writer(), "write behind " + name);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads bytes at the specified position.
+     * The bytes are read from the file, then queued writes are
+     * copied over them.
+     *
+     * @param position
+     * the byte offset of the first byte to read.
+     *
+     * @param bytes
+     * the buffer to read into.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to read.
+     *
+     * @return
+     * the number of bytes read.
+     *
+     * @throws IOException
+     * if the file can not be read.
+     */
+    public int read(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        final long end = position + length;
+        final List pending = new ArrayList();
+        int count;
+
+        for (;;) {
+
+            /* Copy the queued writes that overlap the bytes before
+             * reading the file; a slot is re-used once it has been
+             * written.
+             */
+            final long last;
+            synchronized (this) {
+                checkFailure();
+                pending.clear();
+                last = queued;
+                for (long i = written; i < last; i++) {
+                    final int slot = (int) (i % slots.length);
+                    final long from = Math.max(position, positions[slot]);
+                    final long to = Math.min(end, positions[slot]
+                        + lengths[slot]);
+                    if (from < to) {
+                        pending.add(new Part(
+                            from,
+                            slots[slot],
+                            (int) (from - positions[slot]),
+                            (int) (to - from)));
+                    }
+                }
+            }
+
+            count = target.read(position, bytes, offset, length);
+
+            /* A write queued after the copies may already be in
+             * the file, and an older copy would then hide it; read
+             * again if so.
+             */
+            synchronized (this) {
+                final long started = writing
+                    ? written + 1
+                    : written;
+                if (started <= last) {
+                    break;
+                }
+            }
+        }
+
+        // copy the queued writes over the file, oldest first
+        for (int i = 0; i < pending.size(); i++) {
+            final Part part = (Part) pending.get(i);
+
+            // a write past the end of the file leaves a gap
+            final int start = (int) (part.position - position);
+            for (int j = count; j < start; j++) {
+                bytes[offset + j] = 0;
+            }
+
+            System.arraycopy(
+                part.bytes,
+                0,
+                bytes,
+                offset + start,
+                part.bytes.length);
+            count = Math.max(count, start + part.bytes.length);
+        }
+
+        return count;
+    }
+
+    /**
+     * Queues bytes to be written at the specified position,
+     * waiting for a free slot if the queue is full.
+     *
+     * @param position
+     * the byte offset of the first byte to write.
+     *
+     * @param bytes
+     * the data.
+     *
+     * @param offset
+     * the start offset in <code>bytes</code>.
+     *
+     * @param length
+     * the number of bytes to write.
+     *
+     * @throws IOException
+     * if an earlier write failed.
+     */
+    public synchronized void write(
+        final long position,
+        final byte[] bytes,
+        final int offset,
+        final int length) throws IOException {
+
+        boolean interrupted = false;
+        try {
+
+            // wait for the writer thread to free a slot
+            while ((queued - written >= slots.length)
+                && (null == failure)) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            checkFailure();
+
+            final int slot = (int) (queued % slots.length);
+            if ((null == slots[slot]) || (slots[slot].length < length)) {
+                slots[slot] = new byte[length];
+            }
+            System.arraycopy(bytes, offset, slots[slot], 0, length);
+            positions[slot] = position;
+            lengths[slot] = length;
+            queued++;
+
+            notifyAll();
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** {@inheritDoc} */
+    public synchronized long length() throws IOException {
+
+        // queued writes may extend the file
+        long length = target.length();
+        for (long i = written; i < queued; i++) {
+            final int slot = (int) (i % slots.length);
+            length = Math.max(length, positions[slot] + lengths[slot]);
+        }
+
+        return length;
+    }
+
+    /** {@inheritDoc} */
+    public void setLength(final long newLength) throws IOException {
+
+        // write the queue first, so no write lands past the end
+        flush();
+
+        target.setLength(newLength);
+    }
+
+    /**
+     * Waits until every write queued so far has been written to
+     * the file, then forces the file.
+     *
+     * @throws IOException
+     * if the file can not be written or forced.
+     */
+    public void force() throws IOException {
+
+        flush();
+
+        target.force();
+    }
+
+    /** {@inheritDoc} */
+    public void close() throws IOException {
+
+        flush();
+
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+
+        target.close();
+    }
+
+    /**
+     * Waits until every write queued so far has been written to
+     * the file.
+     *
+     * @throws IOException
+     * if the file can not be written.
+     */
+    void flush() throws IOException {
+
+        boolean interrupted = false;
+        synchronized (this) {
+            final long last = queued;
+            while ((written < last) && (null == failure)) {
+                try {
+                    wait();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        checkFailure();
+    }
+
+    /**
+     * Records the first error; the file can not be used after
+     * an error, as queued writes may have been lost.
+     *
+     * @param e
+     * the error.
+     */
+    private synchronized void fail(final IOException e) {
+
+        if (null == failure) {
+            failure = e;
+            LOGGER.severe("write behind failed -- " + e.toString());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Throws an exception if an earlier write failed.
+     *
+     * @throws IOException
+     * if an earlier write failed.
+     */
+    private synchronized void checkFailure() throws IOException {
+
+        if (null != failure) {
+            final IOException e = new IOException("write behind failed");
+            e.initCause(failure);
+            throw e;
+        }
+    }
+
+    /**
+     * The <code>Writer</code> class writes queued writes to the
+     * file, oldest first.
+     */
+    private final class Writer implements Runnable {
+
+        /**
+         * Writes queued writes until the file is closed.
+         */
+        public void run() {
+
+            final WriteBehindRecordFile outer = WriteBehindRecordFile.this;
+
+            try {
+                for (;;) {
+
+                    final int slot;
+                    synchronized (outer) {
+
+                        // wait for something to do
+                        while (!closed
+                            && (null == failure)
+                            && (written == queued)) {
+                            outer.wait();
+                        }
+
+                        if (closed || (null != failure)) {
+                            return;
+                        }
+                        slot = (int) (written % slots.length);
+                        writing = true;
+                    }
+
+                    /* The slot is not re-used until it has been
+                     * counted as written, so it is safe to write
+                     * from it without the monitor.
+                     */
+                    target.write(
+                        positions[slot],
+                        slots[slot],
+                        0,
+                        lengths[slot]);
+
+                    synchronized (outer) {
+                        writing = false;
+                        written++;
+                        outer.notifyAll();
+                    }
+                }
+            } catch (final IOException e) {
+                fail(e);
+            } catch (final InterruptedException e) {
+                // nothing more to do
+                assert null != e;
+            }
+        }
+    }
+
+    /**
+     * The <code>Part</code> class holds a copy of the part of a
+     * queued write that a read overlaps.
+     */
+    private static final class Part {
+
+        /** The position of the first byte in the file. */
+        private final long position;
+
+        /** The bytes. */
+        private final byte[] bytes;
+
+        /**
+         * Constructs a <code>Part</code> with a copy of the bytes.
+         *
+         * @param newPosition
+         * the position of the first byte in the file.
+         *
+         * @param source
+         * the bytes of the queued write.
+         *
+         * @param offset
+         * the start offset in <code>source</code>.
+         *
+         * @param length
+         * the number of bytes to copy.
+         */
+        Part(
+            final long newPosition,
+            final byte[] source,
+            final int offset,
+            final int length) {
+
+            position = newPosition;
+            bytes = new byte[length];
+            System.arraycopy(source, offset, bytes, 0, length);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * @(#)SubcontractorBusyException.java 1.0 04/04/01
+ *
+ * Copyright (c) 2004 Bodgitt and Scarper, LLC.
+ * All rights reserved.
+ */
+
+
+package suncertify.protocol;
+
+/**
+ * Instances of the <code>SubcontractorBusyException</code>
+ * class are thrown to indicate that the Subcontractor could not
+ * be booked right now, because another client is changing it.
+ * Trying again later may succeed.
+ *
+ * @version 1.0
+ * @author Kevin Short
+ */
+public class SubcontractorBusyException extends
+    SubcontractorNotAvailableException {
+
+    /**
+     * Constructs a <code>SubcontractorBusyException</code>
+     * with no detail message.
+     */
+    public SubcontractorBusyException() {
+
+        super();
+    }
+
+    /**
+     * Constructs a <code>SubcontractorBusyException</code>
+     * with the specified detail message.
+     *
+     * @param desc
+     * the detail message.
+     */
+    public SubcontractorBusyException(final String desc) {
+
+        super(desc);
+    }
+
+    /**
+     * Constructs a <code>SubcontractorBusyException</code>
+     * with the specified detail message and cause.
+     *
+     * @param description
+     * the detail message.
+     *
+     * @param  cause
+     * the cause.
+     */
+    public SubcontractorBusyException(
+        final String description,
+        final Throwable cause) {
+
+        super(description, cause);
+    }
+}
+
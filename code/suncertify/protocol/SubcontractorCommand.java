@@ -43,6 +43,28 @@ public interface SubcontractorCommand extends Remote {
     Subcontractor[] find(String subcontractorName, String city)
         throws RemoteException;
 
+    /**
+     * Find <code>Subcontractor</code> objects that match the
+     * specified criteria, and are available for booking.
+     *
+     * @param subcontractorName
+     * match this subcontractor name;
+     * <code>null</code> matches any value.
+     *
+     * @param city
+     * match this city;
+     * <code>null</code> matches any value.
+     *
+     * @return
+     * an array of available <code>Subcontractor</code> objects
+     * that match the specified criteria.
+     *
+     * @throws RemoteException
+     * if an attempt to export a remote object fails.
+     */
+    Subcontractor[] findAvailable(String subcontractorName, String city)
+        throws RemoteException;
+
     /**
      * Book the specified <code>Subcontractor</code>.
      *
@@ -57,7 +79,9 @@ public interface SubcontractorCommand extends Remote {
      * if an attempt to export a remote object fails.
      *
      * @throws SubcontractorNotAvailableException
-     * if the subcontractor is not available.
+     * if the subcontractor is not available; or a
+     * <code>SubcontractorBusyException</code> if another client
+     * holds the subcontractor for too long.
      *
      * @throws SubcontractorNotFoundException
      * if a requested <code>Subcontractor</code> does not exist.
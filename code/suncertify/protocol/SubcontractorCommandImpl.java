@@ -13,24 +13,31 @@ import java.rmi.server.UnicastRemoteObject;
 
 import suncertify.db.DB;
 import suncertify.db.Data;
+import suncertify.db.ExtendedDB;
+import suncertify.db.RecordLockedException;
 import suncertify.db.RecordNotFoundException;
+import suncertify.db.TimedLockDB;
 import suncertify.db.Data.FieldDescriptor;
 
 /**
  * <p>
  * The <code>SubcontractorCommandImpl</code> class implements the
- * <code>SubcontractorCommand</code> interface and uses an
- * instance of the <code>Data</code> class (that implements the
- * <code>DB</code> interface) to access its data store.
+ * <code>SubcontractorCommand</code> interface and uses the
+ * <code>DB</code> interface to access its data store. When the
+ * data store implements the <code>ExtendedDB</code> extension,
+ * as the <code>Data</code> class does, records are searched and
+ * read in batches, and booked with one compare-and-set;
+ * otherwise each record is read, locked and updated in turn.
  * <h3>
  * Database schema
  * </h3>
  * <p>
  * The methods depend on the "Database field name" values
  * described below.
- * No assumptions are made regarding field sequence.
- * However, the database field names must match and all required
- * fields must be present.
+ * No assumptions are made regarding field sequence in a
+ * <code>Data</code> instance. However, the database field names
+ * must match and all required fields must be present. Any other
+ * <code>DB</code> must hold the fields in the order below.
  * </p>
  * <p>
  * The database that Bodgitt and Scarper uses contains the
@@ -110,28 +117,37 @@ public final class SubcontractorCommandImpl extends
     /** Identifier for 'owner' field. */
     private static final String DB_OWNER = "owner";
 
+    /**
+     * Longest time <code>book()</code> waits for another client
+     * to unlock a record, in milliseconds.
+     */
+    private static final long BOOK_LOCK_TIMEOUT = 1000;
+
     /** The <code>DB</code> interface for this
      * <code>Subcontractor</code>.
      */
     private final DB db;
 
+    /** The extensions of <code>db</code>, or <code>null</code>. */
+    private final ExtendedDB extendedDB;
+
     /** Array index of 'name' field. */
-    private int dbNameIndex;
+    private int dbNameIndex = 0;
 
     /** Array index of 'location' field. */
-    private int dbLocationIndex;
+    private int dbLocationIndex = 1;
 
     /** Array index of 'specialties' field. */
-    private int dbSpecialtiesIndex;
+    private int dbSpecialtiesIndex = 2;
 
     /** Array index of 'size' field. */
-    private int dbSizeIndex;
+    private int dbSizeIndex = 3;
 
     /** Array index of 'rate' field. */
-    private int dbRateIndex;
+    private int dbRateIndex = 4;
 
     /** Array index of 'owner' field. */
-    private int dbOwnerIndex;
+    private int dbOwnerIndex = 5;
 
     /**
      * Creates new <code>SubcontractorCommandImpl</code> object.
@@ -151,12 +167,16 @@ public final class SubcontractorCommandImpl extends
             throw new NullPointerException();
         }
 
+        db = newDB;
+        extendedDB = (newDB instanceof ExtendedDB)
+            ? (ExtendedDB) newDB
+            : null;
+
+        // any other DB holds the fields in the schema order
         if (!(newDB instanceof Data)) {
-            throw new IllegalArgumentException();
+            return;
         }
 
-        db = newDB;
-
         // discover the database field array indices
 
         final FieldDescriptor[] fieldDescriptors = ((Data) db)
@@ -228,42 +248,110 @@ public final class SubcontractorCommandImpl extends
         };
 
         // find all  records, per criteria
-        final int[] recNos = db.find(criteria);
+        return readSubcontractors(db.find(criteria), false);
+    }
+
+    /**
+     * Find <code>Subcontractor</code> objects that match the
+     * specified criteria, and are available for booking.
+     *
+     * @param subcontractorName
+     * match this subcontractor name;
+     * <code>null</code> matches any value.
+     *
+     * @param city
+     * match this city;
+     * <code>null</code> matches any value.
+     *
+     * @return
+     * an array of available <code>Subcontractor</code> objects
+     * that match the specified criteria.
+     *
+     * @throws RemoteException
+     * if an attempt to export a remote object fails.
+     */
+    public Subcontractor[] findAvailable(
+        final String subcontractorName,
+        final String city) throws RemoteException {
+
+        // build up 'criteria' as expected by the DB interface
+        final String[] criteria = new String[] {
+            subcontractorName,
+            city,
+            null,
+            null,
+            null,
+            null
+        };
+
+        // find the matching records with a blank 'owner' field
+        final int[] recNos = (null == extendedDB)
+            ? db.find(criteria)
+            : extendedDB.find(criteria, new int[] {
+                dbOwnerIndex
+            });
+
+        return readSubcontractors(recNos, true);
+    }
+
+    /**
+     * Reads the specified records, as <code>Subcontractor</code>
+     * objects.
+     *
+     * @param recNos
+     * the record numbers.
+     *
+     * @param available
+     * <code>true</code> if the records were found to be
+     * available for booking; records booked since then are
+     * ignored.
+     *
+     * @return
+     * an array of <code>Subcontractor</code> objects.
+     */
+    private Subcontractor[] readSubcontractors(
+        final int[] recNos,
+        final boolean available) {
 
         // we will return an array of Subcontrator object refs
         final Subcontractor[] subcontractors;
         subcontractors = new Subcontractor[recNos.length];
 
-        // read each matched data record
-        for (int i = 0, j = 0; i < recNos.length; i++) {
+        // read all matched data records; no value is padded
+        final String[][] records = readAll(recNos);
+        int j = 0;
+        for (int i = 0; i < recNos.length; i++) {
 
-            // read the record
-            String[] values = null;
-            try {
-                values = db.read(recNos[i]);
-            } catch (final RecordNotFoundException e) {
-                /* The record must have been deleted after we did
-                 * the find(), so just ignore it.
-                 */
+            /* A missing record must have been deleted after we did
+             * the find(), so just ignore it.
+             */
+            final String[] values = records[i];
+            if (null == values) {
                 continue;
             }
 
             // convert number of staff from a String to an int
             int size;
             try {
-                size = Integer.parseInt(values[dbSizeIndex]
-                    .trim());
+                size = Integer.parseInt(values[dbSizeIndex]);
             } catch (final NumberFormatException e) {
                 size = 0;
             }
 
-            // parse the customer id
-            long customerId;
-            try {
-                customerId = Long.parseLong(values[dbOwnerIndex]
-                    .trim());
-            } catch (final NumberFormatException e) {
-                customerId = 0;
+            // parse the customer id, unless the record is available
+            long customerId = 0;
+            if (available) {
+                if (0 != values[dbOwnerIndex].length()) {
+
+                    // booked after the find(), so just ignore it
+                    continue;
+                }
+            } else {
+                try {
+                    customerId = Long.parseLong(values[dbOwnerIndex]);
+                } catch (final NumberFormatException e) {
+                    customerId = 0;
+                }
             }
 
             /* Create a matching Subcontractor object.
@@ -280,20 +368,59 @@ public final class SubcontractorCommandImpl extends
              */
             final SubcontractorImpl subcontractor = new SubcontractorImpl(
                 new Integer(recNos[i]),
-                values[dbNameIndex].trim(),
-                values[dbLocationIndex].trim(),
-                values[dbSpecialtiesIndex].trim(),
+                values[dbNameIndex],
+                values[dbLocationIndex],
+                values[dbSpecialtiesIndex],
                 new Integer(size),
-                values[dbRateIndex].trim(),
+                values[dbRateIndex],
                 new Long(customerId));
 
             // add the new object to the result
             subcontractors[j++] = subcontractor;
         }
 
+        // leave out the records that were ignored
+        if (j < subcontractors.length) {
+            final Subcontractor[] found = new Subcontractor[j];
+            System.arraycopy(subcontractors, 0, found, 0, j);
+            return found;
+        }
+
         return subcontractors;
     }
 
+    /**
+     * Reads the specified records, in one call if the extensions
+     * are there, else one at a time.
+     *
+     * @param recNos
+     * the record numbers.
+     *
+     * @return
+     * the values of each record, without padding; or
+     * <code>null</code> for a record that no longer exists.
+     */
+    private String[][] readAll(final int[] recNos) {
+
+        if (null != extendedDB) {
+            return extendedDB.readAll(recNos);
+        }
+
+        final String[][] records = new String[recNos.length][];
+        for (int i = 0; i < recNos.length; i++) {
+            try {
+                records[i] = db.read(recNos[i]);
+            } catch (final RecordNotFoundException e) {
+                continue;
+            }
+            for (int j = 0; j < records[i].length; j++) {
+                records[i][j] = records[i][j].trim();
+            }
+        }
+
+        return records;
+    }
+
     /**
      * Book the specified <code>Subcontractor</code>.
      *
@@ -305,7 +432,9 @@ public final class SubcontractorCommandImpl extends
      * the <code>Subcontractor</code> to update.
      *
      * @throws SubcontractorNotAvailableException
-     * if the customer id has already been set.
+     * if the customer id has already been set; or a
+     * <code>SubcontractorBusyException</code> if another client
+     * holds the record for too long.
      *
      * @throws SubcontractorNotFoundException
      * if a requested <code>Subcontractor</code> does not exist.
@@ -329,96 +458,122 @@ public final class SubcontractorCommandImpl extends
         // get the record number
         final int recNo = ((Integer) o.getKey()).intValue();
 
-        // lock the record
-        long cookie = 0;
-        try {
-            cookie = db.lock(recNo);
-        } catch (final RecordNotFoundException e) {
-            throw new SubcontractorNotFoundException("lock()");
+        // without the extensions, lock, read and update the record
+        if (null == extendedDB) {
+            bookLocked(recNo, subcontractor.getCustomerId().toString());
+            return;
         }
 
-        // read the record
-        String[] values = null;
+        /* Set the owner only if the record is still available,
+         * in one step: the record is locked only while the owner
+         * is checked and written. Do not wait long for another
+         * client's lock: a server thread stuck behind a slow
+         * client can serve nobody.
+         */
+        final boolean booked;
         try {
-            values = db.read(recNo);
-        } catch (final RecordNotFoundException e) {
-
-            // release the lock and throw an exception
-            unlock(
+            booked = extendedDB.compareAndSet(
                 recNo,
-                cookie);
-
-            throw new SubcontractorNotFoundException("read()");
-        }
-
-        // parse the existing 'owner' value
-        long owner;
-        try {
-            owner = Long.parseLong(values[dbOwnerIndex]);
-        } catch (final NumberFormatException e) {
-            owner = 0;
+                dbOwnerIndex,
+                "",
+                subcontractor.getCustomerId().toString(),
+                BOOK_LOCK_TIMEOUT);
+        } catch (final RecordNotFoundException e) {
+            throw new SubcontractorNotFoundException("compareAndSet()");
+        } catch (final RecordLockedException e) {
+            throw new SubcontractorBusyException("compareAndSet()", e);
+        } catch (final InterruptedException e) {
+
+            // let the caller's thread see the interrupt, too
+            Thread.currentThread().interrupt();
+            throw new SubcontractorBusyException("compareAndSet()", e);
         }
 
-        // make sure the subcontractor is available
-        if (0 != owner) {
-
-            // release the lock and throw an exception
-            unlock(
-                recNo,
-                cookie);
-
+        // make sure the subcontractor was available
+        if (!booked) {
             throw new SubcontractorNotAvailableException();
         }
-
-        // update the customer id
-        values[dbOwnerIndex] = subcontractor
-            .getCustomerId()
-            .toString();
-
-        // update the record
-        try {
-            db.update(
-                recNo,
-                values,
-                cookie);
-        } catch (final RecordNotFoundException e) {
-
-            // release the lock and throw an exception
-            unlock(
-                recNo,
-                cookie);
-
-            throw new SubcontractorNotFoundException("update()");
-        }
-
-        // unlock the record
-        unlock(
-            recNo,
-            cookie);
     }
 
     /**
-     * Unlock a record.
+     * Book a record by locking it, reading it, and updating its
+     * owner if it is still available.
      *
      * @param recNo
      * the record number; 0-based.
      *
-     * @param cookie
-     * the cookie that uniquely identifies a lock.
+     * @param customerId
+     * the new owner.
+     *
+     * @throws SubcontractorNotAvailableException
+     * if the record is already booked; or a
+     * <code>SubcontractorBusyException</code> if another client
+     * holds the record for too long.
      *
      * @throws SubcontractorNotFoundException
-     * if a requested <code>Subcontractor</code> does not exist.
+     * if the record does not exist.
      */
-    private void unlock(final int recNo, final long cookie)
-        throws SubcontractorNotFoundException {
+    private void bookLocked(final int recNo, final String customerId)
+        throws SubcontractorNotAvailableException,
+        SubcontractorNotFoundException {
 
+        /* Lock the record, but do not wait long, if the DB can
+         * time out: a server thread stuck behind a slow client
+         * can serve nobody.
+         */
+        long cookie = 0;
         try {
-            db.unlock(
-                recNo,
-                cookie);
+            if (db instanceof TimedLockDB) {
+                cookie = ((TimedLockDB) db).lock(recNo, BOOK_LOCK_TIMEOUT);
+            } else {
+                cookie = db.lock(recNo);
+            }
         } catch (final RecordNotFoundException e) {
-            throw new SubcontractorNotFoundException("unlock()");
+            throw new SubcontractorNotFoundException("lock()");
+        } catch (final RecordLockedException e) {
+            throw new SubcontractorBusyException("lock()", e);
+        } catch (final InterruptedException e) {
+
+            // let the caller's thread see the interrupt, too
+            Thread.currentThread().interrupt();
+            throw new SubcontractorBusyException("lock()", e);
+        }
+
+        try {
+
+            // read the record
+            final String[] values;
+            try {
+                values = db.read(recNo);
+            } catch (final RecordNotFoundException e) {
+                throw new SubcontractorNotFoundException("read()");
+            }
+
+            // make sure the subcontractor is available
+            if (0 != values[dbOwnerIndex].trim().length()) {
+                throw new SubcontractorNotAvailableException();
+            }
+
+            // update the customer id
+            values[dbOwnerIndex] = customerId;
+            try {
+                db.update(
+                    recNo,
+                    values,
+                    cookie);
+            } catch (final RecordNotFoundException e) {
+                throw new SubcontractorNotFoundException("update()");
+            }
+        } finally {
+
+            // unlock the record
+            try {
+                db.unlock(
+                    recNo,
+                    cookie);
+            } catch (final RecordNotFoundException e) {
+                throw new SubcontractorNotFoundException("unlock()");
+            }
         }
     }
 }
-
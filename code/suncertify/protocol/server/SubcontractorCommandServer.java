@@ -19,6 +19,7 @@ import java.util.logging.Logger;
 
 import suncertify.db.DB;
 import suncertify.db.Data;
+import suncertify.db.DataOptions;
 import suncertify.db.InvalidDataHeaderException;
 import suncertify.db.InvalidMagicCookieException;
 import suncertify.protocol.SubcontractorCommand;
@@ -49,6 +50,9 @@ public final class SubcontractorCommandServer {
     /** System.exit() codes for InvalidDataHeaderException. */
     private static final int INVALID_DATA_HEADER_EXCEPTION = 5;
 
+    /** System.exit() codes for invalid database options. */
+    private static final int INVALID_DATA_OPTIONS = 6;
+
     /** Logger for this class. */
     private static final Logger LOGGER = Logger
         .getLogger(SubcontractorCommandServer.class.getName());
@@ -91,10 +95,22 @@ public final class SubcontractorCommandServer {
             System.exit(UNKNOWN_HOST_EXCEPTION);
         }
 
+        /* Collect the database options from the system
+         * properties; e.g. -Dsuncertify.db.storage=mapped
+         */
+        DataOptions options = null;
+        try {
+            options = DataOptions
+                .fromProperties(System.getProperties());
+        } catch (final IllegalArgumentException e) {
+            LOGGER.severe("Exiting -- " + e.toString());
+            System.exit(INVALID_DATA_OPTIONS);
+        }
+
         // open the database
         DB db = null;
         try {
-            db = new Data(DATABASE_NAME);
+            db = new Data(DATABASE_NAME, options);
         } catch (final InvalidMagicCookieException e) {
             LOGGER.severe("Exiting -- '"
                 + DATABASE_NAME
@@ -113,8 +129,40 @@ public final class SubcontractorCommandServer {
                 + "', "
                 + e.toString());
             System.exit(IO_EXCEPTION);
+        } catch (final IllegalArgumentException e) {
+            LOGGER.severe("Exiting -- '"
+                + DATABASE_NAME
+                + "', "
+                + e.toString());
+            System.exit(INVALID_DATA_OPTIONS);
         }
 
+        /* Close the database on the way out, so that changes that
+         * are only in memory reach the disk; write a snapshot
+         * first, if asked, for a quick restart.
+         */
+        final Data data = (Data) db;
+        final boolean snapshot = options.isSnapshot();
+        Runtime.getRuntime().addShutdownHook(new Thread("Data close") {
+
+            public void run() {
+
+                if (snapshot) {
+                    try {
+                        data.checkpoint();
+                    } catch (final IOException e) {
+                        LOGGER.warning("checkpoint failed -- "
+                            + e.toString());
+                    }
+                }
+                try {
+                    data.close();
+                } catch (final IOException e) {
+                    LOGGER.warning("close failed -- " + e.toString());
+                }
+            }
+        });
+
         // create the server object
         SubcontractorCommand server = null;
         try {